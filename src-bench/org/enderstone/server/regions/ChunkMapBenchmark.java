@@ -0,0 +1,143 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.enderstone.server.regions.io.ChunkManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the loaded chunk sets of {@link ChunkManager#createChunkSet}. Every
+ * operation works on all chunks of the set, the chunks are either close
+ * together like the chunks around a group of players, or scattered over the
+ * world like the chunks of players far away from each other.
+ *
+ * Run using <code>mvn -P benchmark test-compile exec:exec</code>
+ *
+ * @author Fernando
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkMapBenchmark {
+
+	@Param({ "region", "long" })
+	public String type;
+	@Param({ "clustered", "scattered" })
+	public String pattern;
+	@Param({ "4096" })
+	public int chunkCount;
+	private EnderChunk[] chunks;
+	private int[] lookupX;
+	private int[] lookupZ;
+	private ChunkSet filled;
+
+	@Setup(Level.Trial)
+	public void createChunks() {
+		Random random = new Random(1);
+		chunks = new EnderChunk[chunkCount];
+		lookupX = new int[chunkCount];
+		lookupZ = new int[chunkCount];
+		int side = (int) Math.ceil(Math.sqrt(chunkCount));
+		for (int i = 0; i < chunkCount; i++) {
+			int x, z;
+			if (pattern.equals("clustered")) {
+				x = i % side - side / 2;
+				z = i / side - side / 2;
+			} else {
+				x = random.nextInt(20000) - 10000;
+				z = random.nextInt(20000) - 10000;
+			}
+			chunks[i] = new EnderChunk(null, x, z);
+		}
+		// look the chunks up in another order than they were added in
+		for (int i = 0; i < chunkCount; i++) {
+			EnderChunk c = chunks[random.nextInt(chunkCount)];
+			lookupX[i] = c.getX();
+			lookupZ[i] = c.getZ();
+		}
+		filled = ChunkManager.createChunkSet(type);
+		for (EnderChunk c : chunks) {
+			filled.add(c);
+		}
+	}
+
+	/**
+	 * A full set for every invocation of {@link #remove}
+	 */
+	@State(Scope.Thread)
+	public static class RemoveTarget {
+
+		private ChunkSet set;
+
+		@Setup(Level.Invocation)
+		public void fill(ChunkMapBenchmark benchmark) {
+			set = ChunkManager.createChunkSet(benchmark.type);
+			for (EnderChunk c : benchmark.chunks) {
+				set.add(c);
+			}
+		}
+	}
+
+	@Benchmark
+	public void get(Blackhole hole) {
+		for (int i = 0; i < lookupX.length; i++) {
+			hole.consume(filled.get(lookupX[i], lookupZ[i]));
+		}
+	}
+
+	@Benchmark
+	public ChunkSet add() {
+		ChunkSet set = ChunkManager.createChunkSet(type);
+		for (EnderChunk c : chunks) {
+			set.add(c);
+		}
+		return set;
+	}
+
+	@Benchmark
+	public ChunkSet remove(RemoveTarget target) {
+		for (EnderChunk c : chunks) {
+			target.set.remove(c);
+		}
+		return target.set;
+	}
+
+	@Benchmark
+	public void iterate(Blackhole hole) {
+		for (EnderChunk c : filled) {
+			hole.consume(c);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server;
+
+import org.enderstone.server.profiler.TickPhase;
+import org.enderstone.server.profiler.TickProfiler;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Fernando
+ */
+public class WatchdogTest {
+
+	@Test
+	public void testStalledTickIsDumped() throws InterruptedException {
+		TickProfiler profiler = new TickProfiler();
+		Watchdog watchdog = new Watchdog(profiler, 100, 1000);
+		Thread thread = new Thread(watchdog, "Watchdog");
+		thread.setDaemon(true);
+		thread.start();
+		try {
+			for (int tick = 0; tick < 5; tick++) {
+				watchdog.heartbeat(tick);
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(0, watchdog.getDumpCount());
+
+			// a tick that hangs inside a phase for longer than the timeout
+			TickProfiler.Section section = profiler.getSection(TickPhase.SCHEDULER);
+			long start = section.start();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (watchdog.getDumpCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			section.end(start);
+			Assert.assertEquals(1, watchdog.getDumpCount());
+
+			watchdog.heartbeat(5);
+			Thread.sleep(100);
+			Assert.assertEquals(1, watchdog.getDumpCount());
+		} finally {
+			watchdog.stop();
+			thread.join(1000);
+		}
+		Assert.assertFalse(thread.isAlive());
+	}
+}
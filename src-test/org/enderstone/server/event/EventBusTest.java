@@ -0,0 +1,88 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.enderstone.server.api.event.Event;
+import org.enderstone.server.api.event.EventHandler;
+import org.enderstone.server.api.event.EventPriority;
+import org.enderstone.server.api.event.Listener;
+import org.enderstone.server.api.event.player.PlayerChatEvent;
+import org.enderstone.server.api.event.player.PlayerMoveEvent;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Fernando
+ */
+public class EventBusTest {
+
+	public static class TestListener implements Listener {
+
+		public final List<String> calls = new ArrayList<>();
+
+		@EventHandler(priority = EventPriority.HIGH)
+		public void onMoveHigh(PlayerMoveEvent event) {
+			calls.add("high");
+		}
+
+		@EventHandler(priority = EventPriority.LOW)
+		public void onMoveLow(PlayerMoveEvent event) {
+			calls.add("low");
+			event.setCancelled(true);
+		}
+
+		@EventHandler(ignoreCancelled = true)
+		public void onMoveNotCancelled(PlayerMoveEvent event) {
+			calls.add("normal");
+		}
+
+		@EventHandler(priority = EventPriority.MONITOR)
+		public void onAnyEvent(Event event) {
+			calls.add("monitor");
+		}
+	}
+
+	@Test
+	public void testDispatchOrder() {
+		EventBus bus = new EventBus();
+		Assert.assertFalse(bus.hasListeners(PlayerMoveEvent.class));
+		TestListener listener = new TestListener();
+		bus.registerListener(listener);
+		Assert.assertTrue(bus.hasListeners(PlayerMoveEvent.class));
+		Assert.assertTrue(bus.callEvent(new PlayerMoveEvent(null, null, null)));
+		Assert.assertEquals(3, listener.calls.size());
+		Assert.assertEquals("low", listener.calls.get(0));
+		Assert.assertEquals("high", listener.calls.get(1));
+		Assert.assertEquals("monitor", listener.calls.get(2));
+	}
+
+	@Test
+	public void testUnregister() {
+		EventBus bus = new EventBus();
+		TestListener listener = new TestListener();
+		bus.registerListener(listener);
+		Assert.assertTrue(bus.hasListeners(PlayerChatEvent.class));
+		bus.unregisterListener(listener);
+		Assert.assertFalse(bus.hasListeners(PlayerChatEvent.class));
+		Assert.assertFalse(bus.callEvent(new PlayerMoveEvent(null, null, null)));
+		Assert.assertTrue(listener.calls.isEmpty());
+	}
+}
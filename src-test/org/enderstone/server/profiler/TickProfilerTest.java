@@ -0,0 +1,84 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.profiler;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Fernando
+ */
+public class TickProfilerTest {
+
+	@Test
+	public void testNestedSectionsRestoreParent() {
+		TickProfiler profiler = new TickProfiler();
+		Thread thread = Thread.currentThread();
+		Assert.assertNull(profiler.getCurrentSection(thread));
+		TickProfiler.Section tick = profiler.getSection(TickPhase.TICK);
+		TickProfiler.Section tasks = profiler.getSection(TickPhase.TASKS);
+		long tickStart = tick.start();
+		long taskStart = tasks.start();
+		Assert.assertSame(tasks, profiler.getCurrentSection(thread));
+		tasks.end(taskStart);
+		Assert.assertSame(tick, profiler.getCurrentSection(thread));
+		tick.end(tickStart);
+		Assert.assertNull(profiler.getCurrentSection(thread));
+	}
+
+	@Test
+	public void testSectionsArePerThread() throws InterruptedException {
+		final TickProfiler profiler = new TickProfiler();
+		final TickProfiler.Section lighting = profiler.createWorldSection("world", TickPhase.LIGHTING);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread worker = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				long start = lighting.start();
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				lighting.end(start);
+			}
+		});
+		worker.start();
+		started.await();
+		TickProfiler.Section world = profiler.getSection(TickPhase.WORLD_TICK);
+		long start = world.start();
+		Assert.assertSame(world, profiler.getCurrentSection(Thread.currentThread()));
+		Assert.assertSame(lighting, profiler.getCurrentSection(worker));
+		Assert.assertEquals(2, profiler.getCurrentSections().size());
+		release.countDown();
+		worker.join();
+		world.end(start);
+		Assert.assertNull(profiler.getCurrentSection(worker));
+
+		// the server wide lighting section gets the time of the world section
+		profiler.endTick();
+		Assert.assertEquals(1, profiler.getSection(TickPhase.LIGHTING).getStats().getSampleCount());
+		Assert.assertEquals(lighting.getStats().getMax(), profiler.getSection(TickPhase.LIGHTING).getStats().getMax());
+		Assert.assertTrue(lighting.getStats().getMax() > 0);
+	}
+}
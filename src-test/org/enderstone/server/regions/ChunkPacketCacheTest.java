@@ -0,0 +1,173 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.enderstone.server.packet.PacketDataWrapper;
+import org.enderstone.server.packet.codec.DecodeException;
+import org.enderstone.server.packet.play.PacketOutMapChunkBulk;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Fernando
+ */
+public class ChunkPacketCacheTest {
+
+	private static EnderChunkMap createMap(ChunkPacketCache cache, int x, int size) {
+		EnderChunkMap map = new EnderChunkMap(x, 0, cache);
+		map.chunkData = new byte[size];
+		return map;
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		ChunkPacketCache cache = new ChunkPacketCache(3000);
+		EnderChunkMap first = createMap(cache, 0, 1000);
+		EnderChunkMap second = createMap(cache, 1, 1000);
+		EnderChunkMap third = createMap(cache, 2, 1000);
+		cache.access(first, false);
+		cache.access(second, false);
+		cache.access(third, false);
+		cache.access(first, true);
+		Assert.assertEquals(3000, cache.getMemory());
+
+		EnderChunkMap fourth = createMap(cache, 3, 1000);
+		cache.access(fourth, false);
+		Assert.assertTrue(second.isReleased());
+		Assert.assertFalse(first.isReleased());
+		Assert.assertEquals(1, cache.getEvictions());
+		Assert.assertEquals(3, cache.getSize());
+		Assert.assertEquals(1, cache.getHits());
+
+		cache.remove(first);
+		Assert.assertTrue(first.isReleased());
+		Assert.assertEquals(2000, cache.getMemory());
+	}
+
+	@Test
+	public void testEncodedOnce() throws IOException, DataFormatException {
+		ChunkPacketCache cache = new ChunkPacketCache(1 << 20);
+		EnderChunkMap map = createMap(cache, 5, 4096);
+		map.chunkData[100] = 42;
+		cache.access(map, false);
+		long before = cache.getMemory();
+
+		ByteBuf a = map.getEncoded(true);
+		ByteBuf b = map.getEncoded(true);
+		try {
+			Assert.assertEquals(a, b);
+			Assert.assertTrue(cache.getMemory() > before);
+			PacketDataWrapper in = new PacketDataWrapper(null, a);
+			int frameLength = in.readVarInt();
+			Assert.assertEquals(a.readableBytes(), frameLength);
+			int dataLength = in.readVarInt();
+			byte[] deflated = new byte[a.readableBytes()];
+			in.readBytes(deflated);
+			Inflater inflater = new Inflater();
+			inflater.setInput(deflated);
+			byte[] packet = new byte[dataLength];
+			Assert.assertEquals(dataLength, inflater.inflate(packet));
+			inflater.end();
+			Assert.assertEquals(0x21, packet[0]);
+		} finally {
+			a.release();
+			b.release();
+		}
+		map.release();
+		Assert.assertNull(map.getEncoded(true));
+	}
+
+	@Test
+	public void testBulkFromDeflatedColumns() throws IOException, DataFormatException, DecodeException {
+		ChunkPacketCache cache = new ChunkPacketCache(1 << 20);
+		EnderChunkMap[] maps = new EnderChunkMap[3];
+		byte[][] data = new byte[maps.length][];
+		Random random = new Random(5);
+		for (int i = 0; i < maps.length; i++) {
+			maps[i] = createMap(cache, i, 5000 + i * 1000);
+			maps[i].primaryBitmap = i + 1;
+			for (int j = 0; j < maps[i].chunkData.length; j += 7) {
+				maps[i].chunkData[j] = (byte) random.nextInt(4);
+			}
+			cache.access(maps[i], false);
+			data[i] = maps[i].chunkData;
+		}
+		int[] x = { 0, 1, 2 };
+		int[] z = { 0, -5, 7 };
+		short[] bitmaps = { 1, 2, 3 };
+		CachedBulkPacket packet = new CachedBulkPacket(x, z, bitmaps, data, maps);
+		Assert.assertNull(packet.getEncoded(false));
+
+		ByteBuf encoded = packet.getEncoded(true);
+		byte[] inflated;
+		try {
+			PacketDataWrapper in = new PacketDataWrapper(null, encoded);
+			int frameLength = in.readVarInt();
+			Assert.assertEquals(encoded.readableBytes(), frameLength);
+			inflated = new byte[in.readVarInt()];
+			byte[] deflated = new byte[encoded.readableBytes()];
+			in.readBytes(deflated);
+			Inflater inflater = new Inflater();
+			inflater.setInput(deflated);
+			Assert.assertEquals(inflated.length, inflater.inflate(inflated));
+			Assert.assertTrue(inflater.finished()); // the adler32 checksum matched
+			inflater.end();
+		} finally {
+			encoded.release();
+		}
+
+		// the same bytes as the normal encoding of the packet
+		ByteBuf normal = Unpooled.buffer();
+		new PacketOutMapChunkBulk(true, x, z, bitmaps, data).writeFully(new PacketDataWrapper(null, normal));
+		PacketDataWrapper wrapper = new PacketDataWrapper(null, normal);
+		byte[] expected = new byte[wrapper.readVarInt()];
+		wrapper.readBytes(expected);
+		normal.release();
+		Assert.assertArrayEquals(expected, inflated);
+
+		// the columns are deflated once, and counted by the cache
+		Assert.assertSame(maps[1].getDeflatedColumn(), maps[1].getDeflatedColumn());
+		Assert.assertTrue(cache.getMemory() > 5000 + 6000 + 7000);
+		maps[1].release();
+		Assert.assertNull(packet.getEncoded(true));
+	}
+
+	@Test
+	public void testCombineAdler32() {
+		byte[] first = "chunk bulk ".getBytes();
+		byte[] second = new byte[70000];
+		Arrays.fill(second, (byte) 0xFF);
+		Adler32 checksum = new Adler32();
+		checksum.update(first);
+		long adler1 = checksum.getValue();
+		checksum.update(second);
+		long expected = checksum.getValue();
+		checksum.reset();
+		checksum.update(second);
+		Assert.assertEquals(expected, CachedBulkPacket.combineAdler32(adler1, checksum.getValue(), second.length));
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Fernando
+ */
+public class ChunkSectionTest {
+
+	@Test
+	public void testSingleValue() {
+		ChunkSection section = new ChunkSection(1 << 4);
+		Assert.assertTrue(section.isSingleValue());
+		Assert.assertFalse(section.isEmpty());
+		Assert.assertEquals(1, section.getId(ChunkSection.index(15, 15, 15)));
+		section.set(100, 1 << 4); // same state, stays single value
+		Assert.assertTrue(section.isSingleValue());
+		section.set(100, 3 << 4 | 2);
+		Assert.assertFalse(section.isSingleValue());
+		Assert.assertEquals(4, section.getBitsPerEntry());
+		Assert.assertEquals(3, section.getId(100));
+		Assert.assertEquals(2, section.getData(100));
+		Assert.assertEquals(1, section.getId(99));
+		Assert.assertTrue(new ChunkSection().isEmpty());
+	}
+
+	@Test
+	public void testGrowsUntilDirect() {
+		ChunkSection section = new ChunkSection();
+		int[] expected = new int[ChunkSection.BLOCKS];
+		Random random = new Random(42);
+		for (int states = 2; states <= 1024; states *= 2) {
+			for (int i = 0; i < 2000; i++) {
+				int index = random.nextInt(ChunkSection.BLOCKS);
+				int state = random.nextInt(states);
+				section.set(index, state);
+				expected[index] = state;
+			}
+			for (int i = 0; i < ChunkSection.BLOCKS; i++) {
+				Assert.assertEquals(expected[i], section.get(i));
+			}
+		}
+		Assert.assertEquals(16, section.getBitsPerEntry());
+		Assert.assertEquals(0, section.getPaletteSize());
+	}
+
+	@Test
+	public void testCopyIsIndependent() {
+		short[] ids = new short[ChunkSection.BLOCKS];
+		byte[] data = new byte[ChunkSection.BLOCKS];
+		ids[5] = 7;
+		data[5] = 3;
+		ChunkSection section = new ChunkSection(ids, data);
+		ChunkSection copy = section.copy();
+		section.set(5, 0);
+		Assert.assertEquals(0, section.get(5));
+		Assert.assertEquals(7 << 4 | 3, copy.get(5));
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.jnbt.CompoundTag;
+import org.jnbt.NBTInputStream;
+import org.jnbt.NBTOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Fernando
+ */
+public class ChunkSnapshotTest {
+
+	@Test
+	public void testSaveLoad() throws IOException {
+		short[][] ids = new short[16][];
+		byte[][] data = new byte[16][];
+		ids[4] = new short[4096];
+		data[4] = new byte[4096];
+		ids[4][0] = BlockId.STONE.getId();
+		ids[4][4095] = BlockId.DIAMOND_PICKAXE.getId(); // needs the Add array
+		data[4][1] = 7;
+		data[4][4094] = 15;
+		byte[] biomes = new byte[256];
+		biomes[17] = 3;
+		EnderChunk chunk = new EnderChunk(null, 3, -2, ids, data, biomes, new ArrayList<BlockData>());
+		chunk.hasPopulated = true;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (NBTOutputStream out = new NBTOutputStream(bytes)) {
+			out.writeTag(chunk.createSnapshot().saveToNBT());
+		}
+		CompoundTag tag;
+		try (NBTInputStream in = new NBTInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			tag = (CompoundTag) in.readTag();
+		}
+		EnderChunk loaded = new EnderChunk(null, 3, -2);
+		loaded.loadFromNBT(tag);
+
+		Assert.assertTrue(loaded.hasPopulated);
+		Assert.assertEquals(BlockId.STONE, loaded.getBlock(0, 64, 0));
+		Assert.assertEquals(BlockId.DIAMOND_PICKAXE, loaded.getBlock(15, 79, 15));
+		Assert.assertEquals(BlockId.AIR, loaded.getBlock(5, 64, 5));
+		Assert.assertEquals(BlockId.AIR, loaded.getBlock(5, 10, 5));
+		Assert.assertEquals(7, loaded.getData(1, 64, 0));
+		Assert.assertEquals(15, loaded.getData(14, 79, 15));
+		Assert.assertEquals(64, loaded.getHighestBlockAt(0, 0));
+		Assert.assertEquals(79, loaded.getHighestBlockAt(15, 15));
+		Assert.assertEquals(0, loaded.getHighestBlockAt(5, 5));
+		Assert.assertEquals(64, chunk.getHighestBlockAt(0, 0));
+	}
+
+	@Test
+	public void testSnapshotSharesSections() {
+		short[][] ids = new short[16][];
+		ids[0] = new short[4096];
+		EnderChunk chunk = new EnderChunk(null, 0, 0, ids, new byte[16][], new byte[256], new ArrayList<BlockData>());
+		ChunkSnapshot snapshot = chunk.createSnapshot();
+		Assert.assertSame(chunk.createSnapshot().getSections()[0], snapshot.getSections()[0]);
+		Assert.assertNotNull(snapshot.getSections()[0]);
+		Assert.assertNull(snapshot.getSections()[1]);
+	}
+
+	@Test
+	public void testHeightMapAfterRemovingTopBlock() {
+		EnderChunk chunk = new EnderChunk(null, 0, 0, new short[16][], new byte[16][], new byte[256], new ArrayList<BlockData>());
+		chunk.writeBlock(2, 10, 3, BlockId.STONE, (byte) 0);
+		chunk.writeBlock(2, 40, 3, BlockId.STONE, (byte) 0);
+		chunk.writeBlock(5, 70, 5, BlockId.STONE, (byte) 0);
+		Assert.assertEquals(40, chunk.getHighestBlockAt(2, 3));
+		Assert.assertEquals(70, chunk.getHighestBlockAt(5, 5));
+
+		// removing a block below the top doesn't change the heightmap
+		chunk.writeBlock(2, 10, 3, BlockId.AIR, (byte) 0);
+		Assert.assertEquals(40, chunk.getHighestBlockAt(2, 3));
+		chunk.writeBlock(2, 10, 3, BlockId.STONE, (byte) 0);
+
+		// the scan goes down through the empty sections to the next block
+		chunk.writeBlock(2, 40, 3, BlockId.AIR, (byte) 0);
+		Assert.assertEquals(10, chunk.getHighestBlockAt(2, 3));
+
+		// the only block of the column
+		chunk.writeBlock(5, 70, 5, BlockId.AIR, (byte) 0);
+		Assert.assertEquals(0, chunk.getHighestBlockAt(5, 5));
+		Assert.assertEquals(10, chunk.getHighestBlockAt(2, 3));
+	}
+
+	@Test
+	public void testHeightMapAfterLoad() throws IOException {
+		short[][] ids = new short[16][];
+		ids[0] = new short[4096];
+		Arrays.fill(ids[0], BlockId.STONE.getId());
+		EnderChunk chunk = new EnderChunk(null, 1, 1, ids, new byte[16][], new byte[256], new ArrayList<BlockData>());
+		chunk.writeBlock(0, 100, 0, BlockId.STONE, (byte) 0);
+		chunk.writeBlock(7, 31, 9, BlockId.STONE, (byte) 0);
+		chunk.writeBlock(7, 31, 9, BlockId.AIR, (byte) 0);
+		chunk.writeBlock(15, 15, 15, BlockId.AIR, (byte) 0);
+		chunk.writeBlock(15, 14, 15, BlockId.AIR, (byte) 0);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (NBTOutputStream out = new NBTOutputStream(bytes)) {
+			out.writeTag(chunk.createSnapshot().saveToNBT());
+		}
+		CompoundTag tag;
+		try (NBTInputStream in = new NBTInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			tag = (CompoundTag) in.readTag();
+		}
+		EnderChunk loaded = new EnderChunk(null, 1, 1);
+		loaded.loadFromNBT(tag);
+
+		Assert.assertEquals(100, loaded.getHighestBlockAt(0, 0));
+		Assert.assertEquals(15, loaded.getHighestBlockAt(7, 9));
+		Assert.assertEquals(13, loaded.getHighestBlockAt(15, 15));
+		for (int x = 0; x < 16; x++) {
+			for (int z = 0; z < 16; z++) {
+				Assert.assertEquals(chunk.getHighestBlockAt(x, z), loaded.getHighestBlockAt(x, z));
+			}
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Fernando
+ */
+public class LightEngineTest {
+
+	private static EnderChunk createChunk(int chunkX, int chunkZ, int torchX, int torchZ) {
+		short[][] ids = new short[16][];
+		for (int i = 0; i < 4; i++) {
+			ids[i] = new short[4096];
+			Arrays.fill(ids[i], BlockId.STONE.getId());
+		}
+		if (torchX >= 0) {
+			ids[4] = new short[4096];
+			ids[4][ChunkSection.index(torchX, 0, torchZ)] = BlockId.TORCH.getId();
+		}
+		return new EnderChunk(null, chunkX, chunkZ, ids, new byte[16][], new byte[256], new ArrayList<BlockData>());
+	}
+
+	private static LightEngine createEngine(final Map<Long, EnderChunk> chunks) {
+		return new LightEngine(null) {
+
+			@Override
+			protected EnderChunk getChunk(int x, int z) {
+				return chunks.get((long) x << 32 ^ (z & 0xFFFFFFFFL));
+			}
+		};
+	}
+
+	@Test
+	public void testTorchAndSky() {
+		EnderChunk chunk = createChunk(0, 0, 8, 8);
+		Map<Long, EnderChunk> chunks = new HashMap<>();
+		chunks.put(0L, chunk);
+		LightEngine engine = createEngine(chunks);
+		engine.queueChunk(chunk);
+		engine.process(1_000_000_000L);
+
+		Assert.assertEquals(14, chunk.getBlockLight(8, 64, 8));
+		Assert.assertEquals(13, chunk.getBlockLight(9, 64, 8));
+		Assert.assertEquals(13, chunk.getBlockLight(8, 65, 8));
+		Assert.assertEquals(6, chunk.getBlockLight(8, 64, 0));
+		Assert.assertEquals(0, chunk.getBlockLight(8, 63, 8));
+		Assert.assertEquals(15, chunk.getSkyLight(0, 64, 0));
+		Assert.assertEquals(15, chunk.getSkyLight(0, 200, 0));
+		Assert.assertEquals(0, chunk.getSkyLight(0, 63, 0));
+		Assert.assertEquals(0, engine.getPendingChunks());
+	}
+
+	@Test
+	public void testLightCrossesChunks() {
+		EnderChunk lit = createChunk(0, 0, 15, 8);
+		EnderChunk dark = createChunk(1, 0, -1, -1);
+		Map<Long, EnderChunk> chunks = new HashMap<>();
+		chunks.put(0L, lit);
+		chunks.put(1L << 32, dark);
+		LightEngine engine = createEngine(chunks);
+		engine.queueChunk(lit);
+		engine.process(1_000_000_000L);
+		Assert.assertEquals(13, dark.getBlockLight(0, 64, 8));
+		Assert.assertEquals(12, dark.getBlockLight(1, 64, 8));
+
+		// light from a chunk that was already loaded spreads into a new chunk
+		EnderChunk later = createChunk(0, 1, -1, -1);
+		chunks.put(1L, later);
+		engine.queueChunk(later);
+		engine.process(1_000_000_000L);
+		Assert.assertEquals(6, later.getBlockLight(15, 64, 0));
+	}
+
+	/**
+	 * Changes a block the way {@link EnderChunk#setBlock} does, without
+	 * needing a running server
+	 */
+	private static void setBlock(LightEngine engine, EnderChunk chunk, int x, int y, int z, BlockId id) {
+		if (chunk.writeBlock(x & 0xF, y, z & 0xF, id, (byte) 0)) {
+			engine.queueBlockChange(x, y, z);
+		}
+	}
+
+	private static LightEngine createLoadedWorld(Map<Long, EnderChunk> chunks, EnderChunk... loaded) {
+		for (EnderChunk chunk : loaded) {
+			chunks.put((long) chunk.getX() << 32 ^ (chunk.getZ() & 0xFFFFFFFFL), chunk);
+		}
+		LightEngine engine = createEngine(chunks);
+		for (EnderChunk chunk : loaded) {
+			engine.queueChunk(chunk);
+		}
+		engine.process(1_000_000_000L);
+		return engine;
+	}
+
+	@Test
+	public void testPlaceAndRemoveTorch() {
+		EnderChunk chunk = createChunk(0, 0, -1, -1);
+		EnderChunk next = createChunk(1, 0, -1, -1);
+		LightEngine engine = createLoadedWorld(new HashMap<Long, EnderChunk>(), chunk, next);
+
+		setBlock(engine, chunk, 12, 64, 8, BlockId.TORCH);
+		Assert.assertEquals(1, engine.getPendingChanges());
+		engine.process(1_000_000_000L);
+		Assert.assertEquals(0, engine.getPendingChanges());
+		Assert.assertEquals(14, chunk.getBlockLight(12, 64, 8));
+		Assert.assertEquals(13, chunk.getBlockLight(11, 64, 8));
+		Assert.assertEquals(11, chunk.getBlockLight(15, 64, 8));
+		Assert.assertEquals(10, next.getBlockLight(0, 64, 8));
+		Assert.assertEquals(7, next.getBlockLight(0, 67, 8));
+
+		setBlock(engine, chunk, 12, 64, 8, BlockId.AIR);
+		engine.process(1_000_000_000L);
+		Assert.assertEquals(0, chunk.getBlockLight(12, 64, 8));
+		Assert.assertEquals(0, chunk.getBlockLight(15, 64, 8));
+		Assert.assertEquals(0, next.getBlockLight(0, 64, 8));
+		Assert.assertEquals(0, next.getBlockLight(0, 67, 8));
+	}
+
+	@Test
+	public void testPlaceAndRemoveRoof() {
+		EnderChunk chunk = createChunk(0, 0, -1, -1);
+		EnderChunk next = createChunk(1, 0, -1, -1);
+		LightEngine engine = createLoadedWorld(new HashMap<Long, EnderChunk>(), chunk, next);
+
+		// a roof from x 8 to 19 crosses the chunk border at x 16
+		for (int x = 8; x < 20; x++) {
+			for (int z = 4; z < 12; z++) {
+				setBlock(engine, x < 16 ? chunk : next, x, 70, z, BlockId.STONE);
+			}
+		}
+		engine.process(1_000_000_000L);
+		Assert.assertEquals(15, chunk.getSkyLight(8, 71, 8));
+		Assert.assertEquals(0, chunk.getSkyLight(8, 70, 8));
+		Assert.assertEquals(14, chunk.getSkyLight(8, 65, 8));
+		Assert.assertEquals(11, chunk.getSkyLight(12, 65, 8));
+		Assert.assertEquals(11, chunk.getSkyLight(15, 65, 7));
+		Assert.assertEquals(11, next.getSkyLight(0, 65, 7));
+		Assert.assertEquals(14, next.getSkyLight(3, 65, 7));
+		Assert.assertEquals(15, chunk.getSkyLight(7, 65, 8));
+
+		for (int x = 8; x < 20; x++) {
+			for (int z = 4; z < 12; z++) {
+				setBlock(engine, x < 16 ? chunk : next, x, 70, z, BlockId.AIR);
+			}
+		}
+		engine.process(1_000_000_000L);
+		Assert.assertEquals(15, chunk.getSkyLight(12, 65, 8));
+		Assert.assertEquals(15, chunk.getSkyLight(15, 64, 7));
+		Assert.assertEquals(15, next.getSkyLight(0, 64, 7));
+	}
+
+	@Test
+	public void testSkyLightUnderOverhangOfNewChunk() {
+		short[][] ids = new short[16][];
+		for (int i = 0; i < 4; i++) {
+			ids[i] = new short[4096];
+			Arrays.fill(ids[i], BlockId.STONE.getId());
+		}
+		ids[4] = new short[4096];
+		for (int x = 4; x < 12; x++) {
+			for (int z = 4; z < 12; z++) {
+				ids[4][ChunkSection.index(x, 6, z)] = BlockId.STONE.getId();
+			}
+		}
+		EnderChunk chunk = new EnderChunk(null, 0, 0, ids, new byte[16][], new byte[256], new ArrayList<BlockData>());
+		Assert.assertEquals(0, chunk.getSkyLight(8, 65, 8));
+		Map<Long, EnderChunk> chunks = new HashMap<>();
+		chunks.put(0L, chunk);
+		LightEngine engine = createEngine(chunks);
+		engine.queueChunk(chunk);
+
+		// lit before it is sent, the queued entry is skipped afterwards
+		engine.lightIfPending(chunk);
+		Assert.assertEquals(14, chunk.getSkyLight(4, 65, 8));
+		Assert.assertEquals(11, chunk.getSkyLight(8, 65, 8));
+		Assert.assertEquals(11, chunk.getSkyLight(7, 68, 7));
+		Assert.assertEquals(15, chunk.getSkyLight(3, 65, 8));
+		Assert.assertEquals(0, engine.process(1_000_000_000L));
+		Assert.assertEquals(0, engine.getPendingChunks());
+	}
+}
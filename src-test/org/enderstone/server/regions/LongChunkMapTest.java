@@ -0,0 +1,94 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Fernando
+ */
+public class LongChunkMapTest {
+
+	private static long key(int x, int z) {
+		return ((long) x << 32) ^ (z & 0xFFFFFFFFL);
+	}
+
+	@Test
+	public void testMatchesHashMap() {
+		Random random = new Random(42);
+		LongChunkMap map = new LongChunkMap();
+		Map<Long, EnderChunk> expected = new HashMap<>();
+		for (int i = 0; i < 20000; i++) {
+			int x = random.nextInt(80) - 40;
+			int z = random.nextInt(80) - 40;
+			if (random.nextInt(3) == 0) {
+				EnderChunk c = expected.remove(key(x, z));
+				Assert.assertEquals(c != null, map.remove(new EnderChunk(null, x, z)));
+			} else if (!expected.containsKey(key(x, z))) {
+				EnderChunk c = new EnderChunk(null, x, z);
+				expected.put(key(x, z), c);
+				Assert.assertTrue(map.add(c));
+			}
+		}
+		Assert.assertEquals(expected.size(), map.size());
+		for (int x = -41; x <= 41; x++) {
+			for (int z = -41; z <= 41; z++) {
+				Assert.assertSame(expected.get(key(x, z)), map.get(x, z));
+			}
+		}
+	}
+
+	@Test
+	public void testIteratorRemove() {
+		Random random = new Random(7);
+		for (int run = 0; run < 50; run++) {
+			// a small table, so the probe sequences often wrap around the end
+			LongChunkMap map = new LongChunkMap();
+			Set<EnderChunk> all = new HashSet<>();
+			for (int i = 0; i < 40; i++) {
+				EnderChunk c = new EnderChunk(null, random.nextInt(1000), random.nextInt(1000));
+				if (all.add(c)) {
+					map.add(c);
+				}
+			}
+			Set<EnderChunk> seen = new HashSet<>();
+			Set<EnderChunk> kept = new HashSet<>();
+			Iterator<EnderChunk> it = map.iterator();
+			while (it.hasNext()) {
+				EnderChunk c = it.next();
+				Assert.assertTrue("Visited twice: " + c, seen.add(c));
+				if (random.nextBoolean()) {
+					it.remove();
+				} else {
+					kept.add(c);
+				}
+			}
+			Assert.assertEquals(all, seen);
+			Assert.assertEquals(kept.size(), map.size());
+			Assert.assertEquals(kept, new HashSet<>(map));
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Fernando
+ */
+public class RegionSetTest {
+
+	@Test
+	public void testAddRemoveAcrossRegions() {
+		RegionSet set = new RegionSet();
+		// regions 0 and 16 share the same bucket
+		EnderChunk first = new EnderChunk(null, 5, 5);
+		EnderChunk second = new EnderChunk(null, 16 * 32 + 5, 5);
+		EnderChunk third = new EnderChunk(null, -1, -33);
+		Assert.assertTrue(set.add(first));
+		Assert.assertTrue(set.add(second));
+		Assert.assertTrue(set.add(third));
+		Assert.assertFalse(set.add(first));
+		Assert.assertEquals(3, set.size());
+		Assert.assertEquals(3, set.getRegionCount());
+		Assert.assertSame(first, set.get(5, 5));
+		Assert.assertSame(second, set.get(16 * 32 + 5, 5));
+		Assert.assertSame(third, set.get(-1, -33));
+		Assert.assertTrue(set.contains(5, 5));
+		Assert.assertFalse(set.contains(6, 5));
+		Assert.assertFalse(set.contains(16 * 32 + 6, 5));
+
+		Assert.assertTrue(set.remove(first));
+		Assert.assertFalse(set.remove(first));
+		Assert.assertNull(set.get(5, 5));
+		Assert.assertSame(second, set.get(16 * 32 + 5, 5));
+		Assert.assertEquals(2, set.size());
+		Assert.assertEquals(2, set.getRegionCount());
+	}
+
+	@Test
+	public void testIteratorRemove() {
+		RegionSet set = new RegionSet();
+		for (int x = -40; x < 40; x += 3) {
+			for (int z = -40; z < 40; z += 7) {
+				set.add(new EnderChunk(null, x, z));
+			}
+		}
+		int total = set.size();
+		int removed = 0;
+		Iterator<EnderChunk> it = set.iterator();
+		while (it.hasNext()) {
+			EnderChunk c = it.next();
+			if (c.getX() < 0) {
+				it.remove();
+				removed++;
+			}
+		}
+		Assert.assertEquals(total - removed, set.size());
+		int left = 0;
+		for (EnderChunk c : set) {
+			Assert.assertTrue(c.getX() >= 0);
+			left++;
+		}
+		Assert.assertEquals(set.size(), left);
+		// only the regions with x 0 and 1 are left, z goes from region -2 to 1
+		Assert.assertEquals(8, set.getRegionCount());
+	}
+
+	@Test
+	public void testRangeQueries() {
+		RegionSet set = new RegionSet();
+		List<EnderChunk> all = new ArrayList<>();
+		for (int x = -50; x <= 50; x += 2) {
+			for (int z = -50; z <= 50; z += 3) {
+				EnderChunk c = new EnderChunk(null, x, z);
+				set.add(c);
+				all.add(c);
+			}
+		}
+		Set<EnderChunk> found = new HashSet<>();
+		int count = set.getInRectangle(-10, 3, 40, 33, found);
+		Set<EnderChunk> expected = new HashSet<>();
+		for (EnderChunk c : all) {
+			if (c.getX() >= -10 && c.getX() <= 40 && c.getZ() >= 3 && c.getZ() <= 33) {
+				expected.add(c);
+			}
+		}
+		Assert.assertEquals(expected, found);
+		Assert.assertEquals(expected.size(), count);
+
+		found.clear();
+		count = set.getInRadius(-30, 0, 12, found);
+		expected.clear();
+		for (EnderChunk c : all) {
+			int dx = c.getX() + 30;
+			int dz = c.getZ();
+			if (dx * dx + dz * dz <= 144) {
+				expected.add(c);
+			}
+		}
+		Assert.assertEquals(expected, found);
+		Assert.assertEquals(expected.size(), count);
+
+		// covers more regions than the set has nodes
+		found.clear();
+		Assert.assertEquals(all.size(), set.getInRectangle(-100000, -100000, 100000, 100000, found));
+	}
+}
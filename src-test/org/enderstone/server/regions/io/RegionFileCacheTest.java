@@ -0,0 +1,90 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions.io;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Fernando
+ */
+public class RegionFileCacheTest {
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = File.createTempFile("regions", "");
+		Assert.assertTrue(dir.delete());
+		Assert.assertTrue(dir.mkdir());
+	}
+
+	@After
+	public void deleteDir() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private File region(int x) {
+		return new File(dir, "r." + x + ".0.mca");
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws IOException {
+		RegionFileCache cache = new RegionFileCache(2, 60_000);
+		RegionFile r0 = cache.acquire(region(0));
+		cache.release(r0);
+		RegionFile r1 = cache.acquire(region(1));
+		cache.release(r1);
+		Assert.assertSame(r0, cache.acquire(region(0))); // r0 is now the most recently used
+		cache.release(r0);
+		cache.release(cache.acquire(region(2)));
+		Assert.assertEquals(2, cache.getOpenCount());
+		Assert.assertEquals(1, cache.getEvictions());
+		Assert.assertSame(r0, cache.acquire(region(0)));
+		cache.release(r0);
+		Assert.assertEquals(2, cache.getHits());
+		Assert.assertEquals(3, cache.getMisses());
+		Assert.assertNotSame(r1, cache.acquire(region(1))); // r1 was evicted and reopened
+		cache.closeAll();
+	}
+
+	@Test
+	public void testNeverClosesAcquired() throws IOException {
+		RegionFileCache cache = new RegionFileCache(1, 0);
+		RegionFile r0 = cache.acquire(region(0));
+		RegionFile r1 = cache.acquire(region(1));
+		Assert.assertEquals(2, cache.getOpenCount()); // over the limit while both are used
+		cache.closeIdle();
+		Assert.assertEquals(2, cache.getOpenCount());
+		r0.write(0, 0, new byte[10], 10); // still open
+		cache.release(r0);
+		Assert.assertEquals(1, cache.getOpenCount());
+		cache.release(r1);
+		cache.closeIdle();
+		Assert.assertEquals(0, cache.getOpenCount());
+		Assert.assertEquals(1, cache.getIdleCloses());
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Fernando
+ */
+public class RegionFileTest {
+
+	private File file;
+
+	@Before
+	public void createFile() throws IOException {
+		file = File.createTempFile("r.0.0", ".mca");
+		Assert.assertTrue(file.delete());
+	}
+
+	@After
+	public void deleteFile() {
+		file.delete();
+	}
+
+	private static byte[] randomBytes(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data); // random data doesn't deflate, so the size on disk is predictable
+		return data;
+	}
+
+	private static void writeChunk(RegionFile region, int x, int z, byte[] data) throws IOException {
+		try (DataOutputStream out = region.getChunkDataOutputStream(x, z)) {
+			out.write(data);
+		}
+	}
+
+	private static byte[] readChunk(RegionFile region, int x, int z, int length) throws IOException {
+		try (DataInputStream in = region.getChunkDataInputStream(x, z)) {
+			Assert.assertNotNull(in);
+			byte[] data = new byte[length];
+			in.readFully(data);
+			Assert.assertEquals(-1, in.read());
+			return data;
+		}
+	}
+
+	@Test
+	public void testWriteReopenRead() throws IOException {
+		RegionFile region = new RegionFile(file);
+		Assert.assertEquals(2, region.getSectorCount());
+		Assert.assertFalse(region.hasChunk(3, 4));
+		Assert.assertNull(region.getChunkDataInputStream(3, 4));
+		writeChunk(region, 3, 4, randomBytes(100, 1));
+		writeChunk(region, 31, 31, randomBytes(10000, 2));
+		region.close();
+
+		Assert.assertEquals(0, file.length() % 4096);
+		try (RandomAccessFile raw = new RandomAccessFile(file, "r")) {
+			raw.seek((3 + 4 * 32) * 4);
+			int offset = raw.readInt();
+			Assert.assertEquals(2, offset >> 8); // first sector after the header
+			Assert.assertEquals(1, offset & 0xFF);
+			raw.seek(4096 * 2 + 4);
+			Assert.assertEquals(2, raw.readByte()); // deflate
+		}
+
+		region = new RegionFile(file);
+		Assert.assertTrue(region.hasChunk(3, 4));
+		Assert.assertTrue(region.getTimestamp(31, 31) > 0);
+		Assert.assertArrayEquals(randomBytes(100, 1), readChunk(region, 3, 4, 100));
+		Assert.assertArrayEquals(randomBytes(10000, 2), readChunk(region, 31, 31, 10000));
+		region.close();
+	}
+
+	@Test
+	public void testSectorReuse() throws IOException {
+		RegionFile region = new RegionFile(file);
+		writeChunk(region, 0, 0, randomBytes(10000, 1)); // sectors 2-4
+		writeChunk(region, 1, 0, randomBytes(100, 2)); // sector 5
+		Assert.assertEquals(6, region.getSectorCount());
+
+		writeChunk(region, 0, 0, randomBytes(20000, 3)); // doesn't fit anymore, moves to 6-10
+		Assert.assertEquals(11, region.getSectorCount());
+		Assert.assertEquals(2 + 1 + 5, region.getUsedSectorCount());
+
+		writeChunk(region, 2, 0, randomBytes(100, 4)); // first fit, reuses sector 2
+		Assert.assertEquals(11, region.getSectorCount());
+		Assert.assertEquals(2 + 1 + 5 + 1, region.getUsedSectorCount());
+
+		Assert.assertArrayEquals(randomBytes(20000, 3), readChunk(region, 0, 0, 20000));
+		Assert.assertArrayEquals(randomBytes(100, 2), readChunk(region, 1, 0, 100));
+		Assert.assertArrayEquals(randomBytes(100, 4), readChunk(region, 2, 0, 100));
+		region.close();
+		Assert.assertEquals(11 * 4096, file.length());
+	}
+}
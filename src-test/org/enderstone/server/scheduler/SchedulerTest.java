@@ -0,0 +1,98 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Fernando
+ */
+public class SchedulerTest {
+
+	private AsyncExecutor async;
+	private Scheduler scheduler;
+	private List<Long> runs;
+
+	@Before
+	public void setUp() {
+		async = new AsyncExecutor(1, 16, new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		scheduler = new Scheduler(async);
+		runs = new ArrayList<>();
+	}
+
+	@After
+	public void tearDown() {
+		async.shutdown();
+	}
+
+	private Runnable record() {
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				runs.add(scheduler.getCurrentTick());
+			}
+		};
+	}
+
+	@Test
+	public void testDelayLongerThanWheel() {
+		scheduler.runTaskLater(record(), 1000);
+		for (int i = 0; i < 1200; i++)
+			scheduler.tick();
+		Assert.assertEquals(1, runs.size());
+		Assert.assertEquals(1000L, (long) runs.get(0));
+		Assert.assertEquals(0, scheduler.getPendingTasks());
+	}
+
+	@Test
+	public void testRepeatingTask() {
+		scheduler.runTaskTimer(record(), 5, 10);
+		for (int i = 0; i < 30; i++)
+			scheduler.tick();
+		Assert.assertEquals(3, runs.size());
+		Assert.assertEquals(5L, (long) runs.get(0));
+		Assert.assertEquals(15L, (long) runs.get(1));
+		Assert.assertEquals(25L, (long) runs.get(2));
+	}
+
+	@Test
+	public void testCancel() {
+		scheduler.tick();
+		ScheduledTask task = scheduler.runTaskTimer(record(), 1, 1);
+		scheduler.tick();
+		task.cancel();
+		scheduler.tick();
+		scheduler.tick();
+		Assert.assertEquals(1, runs.size());
+		Assert.assertEquals(0, scheduler.getPendingTasks());
+	}
+}
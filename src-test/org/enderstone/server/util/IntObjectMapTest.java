@@ -0,0 +1,65 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Fernando
+ */
+public class IntObjectMapTest {
+
+	@Test
+	public void testPutGetRemove() {
+		IntObjectMap<String> map = new IntObjectMap<>(4);
+		Assert.assertNull(map.put(5, "five"));
+		Assert.assertNull(map.put(-5, "minus five"));
+		Assert.assertEquals("five", map.put(5, "FIVE"));
+		Assert.assertEquals("FIVE", map.get(5));
+		Assert.assertEquals("minus five", map.get(-5));
+		Assert.assertEquals(2, map.size());
+		Assert.assertEquals("FIVE", map.remove(5));
+		Assert.assertNull(map.get(5));
+		Assert.assertFalse(map.containsKey(5));
+		Assert.assertEquals(1, map.size());
+	}
+
+	@Test
+	public void testAgainstHashMap() {
+		IntObjectMap<Integer> map = new IntObjectMap<>();
+		Map<Integer, Integer> expected = new HashMap<>();
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			int key = random.nextInt(2000) - 1000;
+			if (random.nextBoolean()) {
+				Assert.assertEquals(expected.put(key, i), map.put(key, i));
+			} else {
+				Assert.assertEquals(expected.remove(key), map.remove(key));
+			}
+			Assert.assertEquals(expected.size(), map.size());
+		}
+		for (int key = -1000; key < 1000; key++) {
+			Assert.assertEquals(expected.get(key), map.get(key));
+		}
+	}
+}
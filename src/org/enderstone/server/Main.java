@@ -38,15 +38,18 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 import javax.xml.bind.DatatypeConverter;
 
-import org.enderstone.server.api.event.Cancellable;
 import org.enderstone.server.api.event.Event;
 import org.enderstone.server.api.messages.Message;
 import org.enderstone.server.commands.CommandMap;
@@ -57,6 +60,7 @@ import org.enderstone.server.commands.enderstone.LagCommand;
 import org.enderstone.server.commands.enderstone.PingCommand;
 import org.enderstone.server.commands.enderstone.QuitCommand;
 import org.enderstone.server.commands.enderstone.TickRateCommand;
+import org.enderstone.server.commands.enderstone.TimingsCommand;
 import org.enderstone.server.commands.enderstone.VersionCommand;
 import org.enderstone.server.commands.enderstone.WorldCommand;
 import org.enderstone.server.commands.vanilla.GameModeCommand;
@@ -65,16 +69,24 @@ import org.enderstone.server.commands.vanilla.StopCommand;
 import org.enderstone.server.commands.vanilla.TeleportCommand;
 import org.enderstone.server.commands.vanilla.TellCommand;
 import org.enderstone.server.entity.EnderEntity;
+import org.enderstone.server.entity.EntityRegistry;
+import org.enderstone.server.entity.player.ChunkSendScheduler;
 import org.enderstone.server.entity.player.EnderPlayer;
+import org.enderstone.server.event.EventBus;
 import org.enderstone.server.inventory.DefaultCraftingRecipes;
 import org.enderstone.server.packet.ConnectionInitializer;
 import org.enderstone.server.packet.Packet;
-import org.enderstone.server.packet.play.PacketKeepAlive;
 import org.enderstone.server.packet.play.PacketOutChatMessage;
-import org.enderstone.server.packet.play.PacketOutUpdateTime;
+import org.enderstone.server.profiler.TickPhase;
+import org.enderstone.server.profiler.TickProfiler;
+import org.enderstone.server.regions.ChunkPacketCache;
 import org.enderstone.server.regions.EnderWorld;
 import org.enderstone.server.regions.generators.FlyingIslandsGenerator;
 import org.enderstone.server.regions.generators.SimpleGenerator;
+import org.enderstone.server.regions.io.ChunkSaveQueue;
+import org.enderstone.server.regions.io.RegionFileCache;
+import org.enderstone.server.scheduler.AsyncExecutor;
+import org.enderstone.server.scheduler.Scheduler;
 import org.enderstone.server.util.NettyThreadFactory;
 import org.enderstone.server.uuid.UUIDFactory;
 
@@ -83,14 +95,6 @@ public class Main implements Runnable {
 	public static final String NAME = "Enderstone";
 	public static final String VERSION = "1.0.0";
 	public static final String PROTOCOL_VERSION = "1.8";
-        /**
-         * Amount of server ticks in 1 second
-         */
-	private int tickSpeed = 20;
-        /**
-         * time between ticks in ms
-         */
-	private int tickTime = 1000 / tickSpeed;
 	public static final int CANT_KEEP_UP_TIMEOUT = -10000;
 	public static final int MAX_VIEW_DISTANCE = 10;
 	public static final int MAX_NETTY_BOSS_THREADS = 4;
@@ -121,6 +125,56 @@ public class Main implements Runnable {
 	public volatile boolean isRunning = true;
 	private long tick = 0;
 	public final CommandMap commands;
+	/**
+	 * Ticks the worlds, either on the main thread or on a pool of world workers
+	 */
+	public WorldTicker worldTicker = new WorldTicker(0);
+	/**
+	 * Keeps track of the time spend in the different phases of the tick
+	 */
+	public final TickProfiler profiler = new TickProfiler();
+	/**
+	 * Decides when the next tick starts, 20 ticks in 1 second by default
+	 */
+	public final TickClock clock = new TickClock(20, TickClock.OverloadMode.CATCH_UP, 10, -CANT_KEEP_UP_TIMEOUT * 1_000_000L);
+	/**
+	 * Runs the given tasks on the main thread
+	 */
+	private final Executor mainThreadExecutor = new Executor() {
+
+		@Override
+		public void execute(Runnable command) {
+			sendToMainThread(command);
+		}
+	};
+	/**
+	 * Runs heavy work outside the main thread, the amount of threads is configured using async-threads
+	 */
+	public final AsyncExecutor asyncExecutor = new AsyncExecutor(Runtime.getRuntime().availableProcessors(), 4096, mainThreadExecutor);
+	/**
+	 * Generates chunks for all worlds, the amount of threads is configured using generator-threads
+	 */
+	public final AsyncExecutor generatorExecutor = new AsyncExecutor("Chunk generators", "generator", Runtime.getRuntime().availableProcessors(), 4096, mainThreadExecutor);
+	/**
+	 * Runs delayed and repeating tasks, use this instead of checking the tick counter
+	 */
+	public final Scheduler scheduler = new Scheduler(asyncExecutor);
+	/**
+	 * Writes the chunks of all worlds to the disk on a background thread
+	 */
+	public final ChunkSaveQueue saveQueue = new ChunkSaveQueue();
+	/**
+	 * Region files kept open for all worlds, configured using region-cache-size and region-idle-timeout
+	 */
+	public final RegionFileCache regionCache = new RegionFileCache(256, 60_000);
+	/**
+	 * Encoded chunk packets, shared by all players that get the same chunk
+	 */
+	public final ChunkPacketCache chunkPacketCache = new ChunkPacketCache(64L << 20);
+	/**
+	 * Dumps the main thread when a tick hangs, null when disabled
+	 */
+	public Watchdog watchdog;
 
 	{
 		commands = new CommandMap();
@@ -141,6 +195,7 @@ public class Main implements Runnable {
 		commands.registerCommand(new LagCommand());
 		commands.registerCommand(new AiCommand());
 		commands.registerCommand(new TickRateCommand());
+		commands.registerCommand(new TimingsCommand());
 	}
 
 	private static Main instance;
@@ -153,7 +208,53 @@ public class Main implements Runnable {
 	public volatile int playerCount = 0; // high performance solution for getting the onlinePlayers.size() from an async thread
 	public final Set<EnderPlayer> onlinePlayers = new HashSet<>();
 	public final List<EnderWorld> worlds = new ArrayList<>();
-	private final List<Runnable> sendToMainThread = new ArrayList<Runnable>(); // don't forget to synchronize
+	/**
+	 * Finds players and entities by id, uuid or name
+	 */
+	public final EntityRegistry entityRegistry = new EntityRegistry();
+	/**
+	 * Calls the event handlers of the registered listeners
+	 */
+	public final EventBus eventBus = new EventBus();
+	/**
+	 * Tasks send from other threads to the main thread, netty workers only need to do a lock free insert here
+	 */
+	private final Queue<Runnable> sendToMainThread = new ConcurrentLinkedQueue<>();
+	/**
+	 * Amount of tasks waiting inside sendToMainThread, the size() of the queue itself is O(n)
+	 */
+	private final AtomicInteger pendingMainThreadTasks = new AtomicInteger();
+	/**
+	 * Maximum time in nanoseconds the main thread spends running tasks every tick, tasks that don't fit are run next tick
+	 */
+	private long mainThreadTaskBudget = 25_000_000;
+	/**
+	 * Maximum time in nanoseconds every world spends on light updates every tick
+	 */
+	public long lightBudget = 5_000_000;
+	/**
+	 * Maximum size in bytes of the chunk data packed in one chunk bulk packet
+	 */
+	public int chunkBulkSize = 262_144;
+	/**
+	 * Maximum amount of chunks every world unloads every tick
+	 */
+	public int chunkUnloadBudget = 16;
+	/**
+	 * Maximum amount of changed chunks every world saves every tick
+	 */
+	public int chunkSaveBudget = 8;
+	/**
+	 * Maximum amount of tile blocks every world ticks every tick
+	 */
+	public int tileBlockBudget = 512;
+	/**
+	 * Sends the queued chunks to the players, configured using
+	 * chunk-send-global-budget and chunk-send-player-budget
+	 */
+	public final ChunkSendScheduler chunkSendScheduler = new ChunkSendScheduler(8 << 20, 1 << 20);
+	private volatile long lastTaskDrainTime = 0;
+	private volatile int lastTaskDrainCount = 0;
 
 	public static Main getInstance() {
 		return instance;
@@ -162,10 +263,70 @@ public class Main implements Runnable {
 	public void sendToMainThread(Runnable run) {
 		if (isCurrentThreadMainThread())
 			run.run();
-		else
-			synchronized (sendToMainThread) {
-				sendToMainThread.add(run);
+		else {
+			sendToMainThread.add(run);
+			pendingMainThreadTasks.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Runs the tasks send to the main thread until the queue is empty or the task budget for this tick is used
+	 */
+	private void runMainThreadTasks() {
+		final long start = System.nanoTime();
+		int executed = 0;
+		Runnable run;
+		while ((run = sendToMainThread.poll()) != null) {
+			pendingMainThreadTasks.decrementAndGet();
+			executed++;
+			try {
+				run.run();
+			} catch (Exception e) {
+				EnderLogger.warn("Problem while executing task " + run.toString());
+				EnderLogger.exception(e);
 			}
+			if (System.nanoTime() - start >= mainThreadTaskBudget)
+				break;
+		}
+		this.lastTaskDrainTime = System.nanoTime() - start;
+		this.lastTaskDrainCount = executed;
+	}
+
+	/**
+	 * Gets the amount of tasks that are waiting to be executed by the main thread
+	 * @return the amount of waiting tasks
+	 */
+	public int getMainThreadQueueDepth() {
+		return pendingMainThreadTasks.get();
+	}
+
+	/**
+	 * Gets the time spend running main thread tasks during the last tick
+	 * @return the time in nanoseconds
+	 */
+	public long getLastTaskDrainTime() {
+		return lastTaskDrainTime;
+	}
+
+	/**
+	 * Gets the amount of main thread tasks executed during the last tick
+	 * @return the amount of tasks
+	 */
+	public int getLastTaskDrainCount() {
+		return lastTaskDrainCount;
+	}
+
+	/**
+	 * Gets a setting that can be set for every world separately using
+	 * &lt;world name&gt;.&lt;key&gt;, falling back to the setting for all worlds
+	 *
+	 * @param worldName the name of the world
+	 * @param key the key of the setting
+	 * @param defaultValue the value used when the setting isn't set at all
+	 * @return the value
+	 */
+	public String getWorldProperty(String worldName, String key, String defaultValue) {
+		return prop.getProperty(worldName + "." + key, prop.getProperty(key, defaultValue));
 	}
 
 	public static void main(String[] args) {
@@ -183,6 +344,43 @@ public class Main implements Runnable {
 		this.motd = (String) prop.get("motd");
 		// TODO read max players from config
 		// this.maxPlayers = ;
+		if (Boolean.parseBoolean(prop.getProperty("parallel-world-ticking", "false"))) {
+			int threads = Integer.parseInt(prop.getProperty("world-tick-threads", "0"));
+			if (threads <= 0)
+				threads = Runtime.getRuntime().availableProcessors();
+			this.worldTicker = new WorldTicker(threads);
+			EnderLogger.info("Ticking worlds in parallel on " + threads + " threads");
+		}
+		this.mainThreadTaskBudget = Long.parseLong(prop.getProperty("main-thread-task-budget", "25000000"));
+		this.lightBudget = Long.parseLong(prop.getProperty("light-budget", "5000000"));
+		this.chunkBulkSize = Integer.parseInt(prop.getProperty("chunk-bulk-size", "262144"));
+		this.chunkUnloadBudget = Integer.parseInt(prop.getProperty("chunk-unload-budget", "16"));
+		this.chunkSaveBudget = Integer.parseInt(prop.getProperty("chunk-save-budget", "8"));
+		this.tileBlockBudget = Integer.parseInt(prop.getProperty("tile-block-budget", "512"));
+		this.chunkSendScheduler.setBudgets(Integer.parseInt(prop.getProperty("chunk-send-global-budget", "8388608")),
+				Integer.parseInt(prop.getProperty("chunk-send-player-budget", "1048576")));
+		try {
+			this.clock.setMode(TickClock.OverloadMode.valueOf(prop.getProperty("tick-overload-mode", "catch_up").toUpperCase()));
+		} catch (IllegalArgumentException e) {
+			EnderLogger.warn("Unknown tick-overload-mode " + prop.getProperty("tick-overload-mode") + ", expected catch_up, skip or stretch");
+		}
+		this.clock.setMaxCatchUp(Integer.parseInt(prop.getProperty("tick-max-catch-up", "10")));
+		int asyncThreads = Integer.parseInt(prop.getProperty("async-threads", "0"));
+		if (asyncThreads > 0)
+			this.asyncExecutor.setThreads(asyncThreads);
+		int generatorThreads = Integer.parseInt(prop.getProperty("generator-threads", "0"));
+		if (generatorThreads > 0)
+			this.generatorExecutor.setThreads(generatorThreads);
+		this.regionCache.setMaxOpen(Integer.parseInt(prop.getProperty("region-cache-size", "256")));
+		this.regionCache.setIdleTimeout(Long.parseLong(prop.getProperty("region-idle-timeout", "60000")));
+		this.chunkPacketCache.setMaxMemory(Long.parseLong(prop.getProperty("chunk-packet-cache-mb", "64")) << 20);
+		long watchdogTimeout = Long.parseLong(prop.getProperty("watchdog-timeout", "10000"));
+		if (watchdogTimeout > 0) {
+			this.watchdog = new Watchdog(profiler, watchdogTimeout, Long.parseLong(prop.getProperty("watchdog-repeat", "5000")));
+			Thread t = new Thread(watchdog, "Watchdog");
+			t.setDaemon(true);
+			t.start();
+		}
 		EnderLogger.info("Loaded server.properties file!");
 
 		EnderLogger.info("Loading favicon...");
@@ -197,6 +395,14 @@ public class Main implements Runnable {
 		}
 
 		EnderLogger.info("Server ready... Starting required threads now!");
+		this.saveQueue.start();
+		this.scheduler.runTaskTimerAsync(new Runnable() {
+
+			@Override
+			public void run() {
+				regionCache.closeIdle();
+			}
+		}, 20 * 10, 20 * 10);
 
 		final ThreadGroup nettyListeners = new ThreadGroup(Thread.currentThread().getThreadGroup(), "Netty Listeners");
 		for (final int nettyPort : new int[] { this.port }) {
@@ -233,6 +439,7 @@ public class Main implements Runnable {
 
 		(mainThread = new Thread(new Runnable() {
 			long lastTick = System.currentTimeMillis();
+			long lastSkippedTicks = 0;
 
 			@Override
 			public void run() {
@@ -243,6 +450,7 @@ public class Main implements Runnable {
 				worlds.add(new EnderWorld("world1", new SimpleGenerator(), new File("world1")));
 				worlds.add(new EnderWorld("world2", new FlyingIslandsGenerator(), new File("world2")));
 
+				clock.reset();
 				try {
 					while (Main.this.isRunning) {
 						mainServerTick();
@@ -264,42 +472,40 @@ public class Main implements Runnable {
 			}
 
 			private void mainServerTick() throws InterruptedException {
-				
-				synchronized (sendToMainThread) {
-					for (Runnable run : sendToMainThread) {
-						try {
-							run.run();
-						} catch (Exception e) {
-							EnderLogger.warn("Problem while executing task " + run.toString());
-							EnderLogger.exception(e);
-						}
-					}
-					sendToMainThread.clear();
-				}
+				TickProfiler.Section tickSection = profiler.getSection(TickPhase.TICK);
+				long tickStart = tickSection.start();
+
+				TickProfiler.Section taskSection = profiler.getSection(TickPhase.TASKS);
+				long taskStart = taskSection.start();
+				runMainThreadTasks();
+				taskSection.end(taskStart);
+
+				TickProfiler.Section schedulerSection = profiler.getSection(TickPhase.SCHEDULER);
+				long schedulerStart = schedulerSection.start();
+				scheduler.tick();
+				schedulerSection.end(schedulerStart);
 
 				try {
 					serverTick(tick);
+				} catch (InterruptedException e) {
+					throw e;
 				} catch (Exception e) {
 					EnderLogger.error("Problem while running ServerTick()");
 					EnderLogger.exception(e);
 				}
-				this.lastTick += getTickTime();
-				long sleepTime = (lastTick) - System.currentTimeMillis();
-				Main.this.lastTickSlices[Main.this.lastTickPointer] = sleepTime;
+				tickSection.end(tickStart);
+				profiler.endTick();
+				if (watchdog != null)
+					watchdog.heartbeat(tick);
+				this.lastTick = System.currentTimeMillis();
+				long sleepTime = clock.waitForNextTick();
+				Main.this.lastTickSlices[Main.this.lastTickPointer] = sleepTime / 1_000_000;
 				if (++Main.this.lastTickPointer >= Main.this.lastTickSlices.length)
 					Main.this.lastTickPointer = 0;
-				if (sleepTime < Main.CANT_KEEP_UP_TIMEOUT) {
-					this.warn("Can't keep up! " + -(sleepTime / tickTime) + " ticks behind!");
-					this.lastTick = System.currentTimeMillis();
-				} else if (sleepTime > Main.MAX_SLEEP) {
-					this.warn("Did the system time change?");
-					this.lastTick = System.currentTimeMillis();
-				} else if (sleepTime > 0) {
-					Thread.sleep(sleepTime);
-				} else {
-					if (Thread.interrupted()) {
-						throw new InterruptedException();
-					}
+				long skipped = clock.getSkippedTicks();
+				if (skipped != lastSkippedTicks) {
+					this.warn("Can't keep up! " + -(sleepTime / clock.getTickNanos()) + " ticks behind, skipped " + (skipped - lastSkippedTicks) + " ticks!");
+					lastSkippedTicks = skipped;
 				}
 				tick++;
 			}
@@ -364,6 +570,26 @@ public class Main implements Runnable {
 				prop.setProperty("port", "25565");
 				prop.setProperty("max-players", "20");
 				prop.setProperty("view-distance", "7");
+				prop.setProperty("parallel-world-ticking", "false");
+				prop.setProperty("world-tick-threads", "0");
+				prop.setProperty("main-thread-task-budget", "25000000");
+				prop.setProperty("light-budget", "5000000");
+				prop.setProperty("chunk-bulk-size", "262144");
+				prop.setProperty("chunk-unload-budget", "16");
+				prop.setProperty("chunk-save-budget", "8");
+				prop.setProperty("tile-block-budget", "512");
+				prop.setProperty("chunk-map", "long");
+				prop.setProperty("chunk-send-global-budget", "8388608");
+				prop.setProperty("chunk-send-player-budget", "1048576");
+				prop.setProperty("tick-overload-mode", "catch_up");
+				prop.setProperty("tick-max-catch-up", "10");
+				prop.setProperty("async-threads", "0");
+				prop.setProperty("generator-threads", "0");
+				prop.setProperty("region-cache-size", "256");
+				prop.setProperty("region-idle-timeout", "60000");
+				prop.setProperty("chunk-packet-cache-mb", "64");
+				prop.setProperty("watchdog-timeout", "10000");
+				prop.setProperty("watchdog-repeat", "5000");
 			}
 			prop.store(output, "Enderstone Server Config!");
 		} catch (IOException e1) {
@@ -387,64 +613,78 @@ public class Main implements Runnable {
 	}
 
 	/**
-	 * Get a player by its username
+	 * Get a player by its username, ignoring case
 	 * @param name
 	 * @return 
 	 */
 	public EnderPlayer getPlayer(String name) {
-		for (EnderPlayer ep : this.onlinePlayers) {
-			if (ep.getPlayerName().equals(name)) {
-				return ep;
-			}
-		}
-		return null;
+		return entityRegistry.getPlayer(name);
 	}
 	/**
 	 * Gets a player by its UUID
 	 */
 	public EnderPlayer getPlayer(UUID uuid) {
-		for (EnderPlayer ep : this.onlinePlayers) {
-			if (ep.uuid.equals(uuid)) {
-				return ep;
-			}
-		}
-		return null;
+		return entityRegistry.getPlayer(uuid);
 	}
 
-	private long latestKeepAlive = 0;
-	private long latestChunkUpdate = 0;
-
-	private void serverTick(long tick) {
+	private void serverTick(long tick) throws InterruptedException {
 		int recepies = DefaultCraftingRecipes.serverTick();
 		if (recepies != -1) {
 			EnderLogger.info(recepies + " crafting recipes listeners loaded!");
 		}
 		this.playerCount = this.onlinePlayers.size();
-		boolean doKeepAliveUpdate = (latestKeepAlive++ & 0b0011_1111) == 0; // faster than % 64 == 0
-		boolean doChunkUpdate = (latestChunkUpdate++ & 0b0001_1111) == 0; // faster than % 31 == 0
-		boolean doUpdateTimeAndWeather = (tick & 0b0011_1111) == 0; // faster than % 64 == 0
+		TickProfiler.Section section = profiler.getSection(TickPhase.PLAYER_TICK);
+		long start = section.start();
 		for (EnderPlayer p : onlinePlayers) {
 			p.serverTick();
-			if (doKeepAliveUpdate) {
-				p.getNetworkManager().sendPacket(new PacketKeepAlive(p.keepAliveID = random.nextInt(Integer.MAX_VALUE)));
-			}
-			if (doChunkUpdate && !p.isDead()) {
-				p.getWorld().doChunkUpdatesForPlayer(p, p.chunkInformer, Math.min(p.clientSettings.renderDistance - 1, MAX_VIEW_DISTANCE));
-				p.updatePlayers(onlinePlayers);
-			}
-			for (EnderWorld world : worlds) {
-				world.updateEntities(onlinePlayers);
-			}
-			if (doUpdateTimeAndWeather) {
-				p.getNetworkManager().sendPacket(new PacketOutUpdateTime(tick, this.getWorld(p).getTime()));
-			}
 		}
-		for (EnderWorld world : worlds) {
-			world.serverTick();
+		section.end(start);
+		section = profiler.getSection(TickPhase.KEEP_ALIVE);
+		start = section.start();
+		for (EnderPlayer p : onlinePlayers) {
+			p.sendDueKeepAlive();
+		}
+		section.end(start);
+		section = profiler.getSection(TickPhase.CHUNK_UPDATES);
+		start = section.start();
+		for (EnderPlayer p : onlinePlayers) {
+			p.doDuePlayerUpdate(onlinePlayers);
+		}
+		chunkSendScheduler.tick(onlinePlayers);
+		section.end(start);
+		section = profiler.getSection(TickPhase.WORLD_TICK);
+		start = section.start();
+		worldTicker.tickWorlds(worlds);
+		section.end(start);
+	}
+
+	/**
+	 * Delays work that touches more than one world when called from a world
+	 * worker, the work is then executed on the main thread after all worlds
+	 * have finished their tick.
+	 *
+	 * @param run the work to delay
+	 * @return true if the work was delayed, false if the caller may execute it
+	 * directly
+	 */
+	public boolean deferIfWorldThread(Runnable run) {
+		if (WorldTicker.isCurrentThreadWorldThread()) {
+			worldTicker.defer(run);
+			return true;
 		}
+		return false;
 	}
 
-	public void broadcastMessage(Message message) {
+	public void broadcastMessage(final Message message) {
+		if (deferIfWorldThread(new Runnable() {
+
+			@Override
+			public void run() {
+				broadcastMessage(message);
+			}
+		})) {
+			return;
+		}
 		EnderLogger.info(message.toPlainText());
 		Packet p = new PacketOutChatMessage(message, (byte) 1);
 		for (EnderPlayer player : Main.getInstance().onlinePlayers) {
@@ -467,6 +707,18 @@ public class Main implements Runnable {
 		if (this.mainThread != null) {
 			this.mainThread.interrupt();
 		}
+		if (this.watchdog != null) {
+			this.watchdog.stop();
+		}
+		this.worldTicker.shutdown();
+		for (EnderWorld world : this.worlds) {
+			world.saveChunks();
+		}
+		EnderLogger.info("Writing " + this.saveQueue.getQueueDepth() + " chunks to disk...");
+		this.saveQueue.shutdown();
+		this.regionCache.closeAll();
+		this.asyncExecutor.shutdown();
+		this.generatorExecutor.shutdown();
 		for (Thread t : this.listenThreads) {
 			t.interrupt();
 		}
@@ -487,12 +739,7 @@ public class Main implements Runnable {
 	}
 
 	public EnderPlayer getPlayer(int entityId) {
-		for (EnderPlayer ep : this.onlinePlayers) {
-			if (ep.getEntityId() == entityId) {
-				return ep;
-			}
-		}
-		return null;
+		return entityRegistry.getPlayer(entityId);
 	}
 
 	public static boolean isCurrentThreadMainThread() {
@@ -500,36 +747,32 @@ public class Main implements Runnable {
 	}
 
 	public EnderWorld getWorld(EnderPlayer player) {
-		for (EnderWorld world : this.worlds) {
-			if (world.players.contains(player)) {
-				return world;
-			}
-		}
-		return null;
+		return entityRegistry.getWorld(player);
 	}
 
 	public EnderEntity getEntityById(int targetId) {
-		for (EnderWorld w : this.worlds) {
-			for (EnderEntity e : w.entities) {
-				if (e.getEntityId() == targetId) {
-					return e;
-				}
-			}
-		}
-		for (EnderPlayer ep : this.onlinePlayers) {
-			if (ep.getEntityId() == targetId) {
-				return ep;
-			}
-		}
-		return null;
+		return entityRegistry.getEntity(targetId);
 	}
 
+	/**
+	 * Calls all handlers of an event
+	 *
+	 * @param e the event
+	 * @return true if the event is cancelled
+	 */
 	public boolean callEvent(Event e) {
-		// TODO call events
-		if (e instanceof Cancellable) {
-			return ((Cancellable) e).isCancelled();
-		}
-		return false;
+		return eventBus.callEvent(e);
+	}
+
+	/**
+	 * Checks if any handler listens to an event, hot code paths use this to
+	 * skip creating the event
+	 *
+	 * @param type the type of the event
+	 * @return true if there is a handler for the event
+	 */
+	public boolean hasListeners(Class<? extends Event> type) {
+		return eventBus.hasListeners(type);
 	}
 
 	public long[] getLastLag() {
@@ -543,27 +786,39 @@ public class Main implements Runnable {
 		return last;
 	}
 
-    /**
-     * @return the tickSpeed
-     */
-    public int getTickSpeed() {
-        return tickSpeed;
-    }
-
-    /**
-     * @param tickSpeed the tickSpeed to set
-     */
-    public void setTickSpeed(int tickSpeed) {
-        if(tickSpeed <= 0) 
-            throw new IllegalArgumentException("tickSpeed <= 0: "+tickSpeed);
-        this.tickSpeed = tickSpeed;
-        this.tickTime = 1000 / tickSpeed;
-    }
-
-    /**
-     * @return the tickTime
-     */
-    public int getTickTime() {
-        return tickTime;
-    }
+	/**
+	 * Gets the amount of ticks the server tries to run every second
+	 *
+	 * @return the tickSpeed
+	 */
+	public int getTickSpeed() {
+		return clock.getTickSpeed();
+	}
+
+	/**
+	 * @param tickSpeed the tickSpeed to set
+	 */
+	public void setTickSpeed(int tickSpeed) {
+		clock.setTickSpeed(tickSpeed);
+	}
+
+	/**
+	 * Gets the time between ticks, rounded to milliseconds, use the clock for
+	 * the exact time
+	 *
+	 * @return the tickTime in ms
+	 */
+	public int getTickTime() {
+		return (int) (clock.getTickNanos() / 1_000_000);
+	}
+
+	/**
+	 * Gets the amount of ticks that actually ran every second over the last
+	 * 100 ticks
+	 *
+	 * @return the delivered TPS
+	 */
+	public double getDeliveredTps() {
+		return clock.getDeliveredTps();
+	}
 }
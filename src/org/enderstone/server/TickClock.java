@@ -0,0 +1,237 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides when the next tick should start. Deadlines are calculated from the
+ * moment the tick rate was set, instead of adding a rounded tick time to the
+ * previous deadline, so no drift builds up at tick rates that don't divide a
+ * second.
+ *
+ * @author Fernando
+ */
+public class TickClock {
+
+	/**
+	 * Amount of ticks the delivered TPS is calculated over
+	 */
+	private static final int TPS_SAMPLES = 100;
+	private static final long NANOS_PER_SECOND = 1_000_000_000L;
+	private volatile int tickSpeed;
+	private volatile OverloadMode mode;
+	private volatile int maxCatchUp;
+	private final long resetAfter;
+	private int currentTickSpeed;
+	private long epoch;
+	private long ticksSinceEpoch;
+	private long nextTick;
+	private final long[] tickStarts = new long[TPS_SAMPLES];
+	private int tickStartPointer = 0;
+	private int tickStartCount = 0;
+	private volatile double deliveredTps;
+	private volatile long skippedTicks = 0;
+
+	/**
+	 * Creates a new TickClock
+	 *
+	 * @param tickSpeed the amount of ticks per second
+	 * @param mode what to do when ticks take longer than the tick time
+	 * @param maxCatchUp the maximum amount of ticks executed back to back in
+	 * CATCH_UP mode
+	 * @param resetAfter the amount of nanoseconds the clock may be behind
+	 * before it gives up and continues from the current time
+	 */
+	public TickClock(int tickSpeed, OverloadMode mode, int maxCatchUp, long resetAfter) {
+		this.tickSpeed = tickSpeed;
+		this.mode = mode;
+		this.maxCatchUp = maxCatchUp;
+		this.resetAfter = resetAfter;
+		this.deliveredTps = tickSpeed;
+		rebase(System.nanoTime());
+	}
+
+	/**
+	 * Lets the next tick start now, call this right before the first tick
+	 */
+	public void reset() {
+		rebase(System.nanoTime());
+	}
+
+	private void rebase(long now) {
+		this.currentTickSpeed = this.tickSpeed;
+		this.epoch = now;
+		this.ticksSinceEpoch = 0;
+		this.nextTick = now;
+	}
+
+	private long deadline(long ticks) {
+		return epoch + ticks * NANOS_PER_SECOND / currentTickSpeed;
+	}
+
+	/**
+	 * Waits until the next tick should start
+	 *
+	 * @return the time slept in nanoseconds, negative if the server is behind
+	 * @throws InterruptedException when the thread is interrupted
+	 */
+	public long waitForNextTick() throws InterruptedException {
+		if (currentTickSpeed != tickSpeed) {
+			rebase(nextTick);
+		}
+		nextTick = deadline(++ticksSinceEpoch);
+		long now = System.nanoTime();
+		long sleepTime = nextTick - now;
+		if (sleepTime > 0) {
+			long remaining = sleepTime;
+			do {
+				LockSupport.parkNanos(this, remaining);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			} while ((remaining = nextTick - System.nanoTime()) > 0);
+		} else {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			long tickNanos = getTickNanos();
+			long behind = -sleepTime / tickNanos;
+			if (-sleepTime > resetAfter) {
+				skippedTicks += behind;
+				rebase(now);
+			} else {
+				switch (mode) {
+					case CATCH_UP:
+						if (behind > maxCatchUp) {
+							skippedTicks += behind - maxCatchUp;
+							rebase(now - maxCatchUp * tickNanos);
+						}
+						break;
+					case SKIP:
+						if (behind > 0) {
+							// keep the ticks on the same phase, only drop the ticks we can't make
+							skippedTicks += behind;
+							ticksSinceEpoch += behind;
+							nextTick = deadline(ticksSinceEpoch);
+						}
+						break;
+					case STRETCH:
+						rebase(now);
+						break;
+				}
+			}
+		}
+		recordTickStart(System.nanoTime());
+		return sleepTime;
+	}
+
+	private void recordTickStart(long now) {
+		tickStarts[tickStartPointer] = now;
+		if (++tickStartPointer >= tickStarts.length)
+			tickStartPointer = 0;
+		if (tickStartCount < tickStarts.length)
+			tickStartCount++;
+		if (tickStartCount > 1) {
+			int oldest = tickStartCount < tickStarts.length ? 0 : tickStartPointer;
+			long elapsed = now - tickStarts[oldest];
+			if (elapsed > 0)
+				deliveredTps = (tickStartCount - 1) * (double) NANOS_PER_SECOND / elapsed;
+		}
+	}
+
+	/**
+	 * Gets the amount of ticks that actually ran per second, measured over
+	 * the last 100 ticks
+	 *
+	 * @return the delivered ticks per second
+	 */
+	public double getDeliveredTps() {
+		return deliveredTps;
+	}
+
+	/**
+	 * Gets the amount of ticks that were dropped because the server couldn't
+	 * keep up
+	 *
+	 * @return the amount of skipped ticks since startup
+	 */
+	public long getSkippedTicks() {
+		return skippedTicks;
+	}
+
+	public int getTickSpeed() {
+		return tickSpeed;
+	}
+
+	/**
+	 * Changes the tick speed, takes effect at the next tick
+	 *
+	 * @param tickSpeed the amount of ticks per second
+	 */
+	public void setTickSpeed(int tickSpeed) {
+		if (tickSpeed <= 0)
+			throw new IllegalArgumentException("tickSpeed <= 0: " + tickSpeed);
+		this.tickSpeed = tickSpeed;
+	}
+
+	/**
+	 * Gets the time between 2 ticks
+	 *
+	 * @return the time in nanoseconds
+	 */
+	public long getTickNanos() {
+		return NANOS_PER_SECOND / tickSpeed;
+	}
+
+	public OverloadMode getMode() {
+		return mode;
+	}
+
+	public void setMode(OverloadMode mode) {
+		this.mode = mode;
+	}
+
+	public int getMaxCatchUp() {
+		return maxCatchUp;
+	}
+
+	public void setMaxCatchUp(int maxCatchUp) {
+		this.maxCatchUp = maxCatchUp;
+	}
+
+	/**
+	 * What the clock does when a tick takes longer than the tick time
+	 */
+	public enum OverloadMode {
+
+		/**
+		 * Runs the missed ticks back to back, up to the max catch up
+		 */
+		CATCH_UP,
+		/**
+		 * Drops the missed ticks, the next tick starts at the next regular
+		 * deadline
+		 */
+		SKIP,
+		/**
+		 * Starts the next tick directly, following ticks are timed from there
+		 */
+		STRETCH
+	}
+}
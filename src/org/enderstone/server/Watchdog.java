@@ -0,0 +1,126 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.enderstone.server.profiler.TickProfiler;
+
+/**
+ * Watches the heartbeat of the main thread, when no tick finished for the
+ * configured time the stack trace of the main thread and the tick phase it is
+ * in are dumped to the log. This repeats while the main thread hangs.
+ *
+ * The main thread only writes a volatile timestamp every tick, so this can
+ * stay enabled in production.
+ *
+ * @author Fernando
+ */
+public class Watchdog implements Runnable {
+
+	private final TickProfiler profiler;
+	private final long timeout;
+	private final long repeat;
+	private volatile Thread thread;
+	private volatile long heartbeat = 0;
+	private volatile long lastTick = 0;
+	private volatile boolean running = true;
+	private volatile int dumps = 0;
+
+	/**
+	 * Creates a new Watchdog
+	 *
+	 * @param profiler the profiler to read the current phases from
+	 * @param timeout time in milliseconds a tick may take before the first dump
+	 * @param repeat time in milliseconds between the dumps while the stall
+	 * continues
+	 */
+	public Watchdog(TickProfiler profiler, long timeout, long repeat) {
+		this.profiler = profiler;
+		this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+		this.repeat = TimeUnit.MILLISECONDS.toNanos(repeat);
+	}
+
+	/**
+	 * Tells the watchdog the main thread is alive, called every tick. The
+	 * thread calling this method is the thread that is watched.
+	 *
+	 * @param tick the tick that just finished
+	 */
+	public void heartbeat(long tick) {
+		this.thread = Thread.currentThread();
+		this.lastTick = tick;
+		this.heartbeat = System.nanoTime();
+	}
+
+	public void stop() {
+		this.running = false;
+	}
+
+	/**
+	 * Gets the amount of times a stall has been dumped to the log
+	 *
+	 * @return the amount of dumps
+	 */
+	public int getDumpCount() {
+		return dumps;
+	}
+
+	@Override
+	public void run() {
+		long lastDump = 0;
+		long sleep = Math.max(10, TimeUnit.NANOSECONDS.toMillis(Math.min(timeout, repeat)) / 4);
+		try {
+			while (running) {
+				Thread.sleep(sleep);
+				long beat = this.heartbeat;
+				if (beat == 0) {
+					continue; // the first tick didn't finish yet
+				}
+				long now = System.nanoTime();
+				long stalled = now - beat;
+				if (stalled < timeout) {
+					lastDump = 0;
+				} else if (lastDump == 0 || now - lastDump >= repeat) {
+					lastDump = now;
+					dump(stalled);
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void dump(long stalled) {
+		Thread watched = this.thread;
+		dumps++;
+		TickProfiler.Section section = profiler.getCurrentSection(watched);
+		EnderLogger.error("The server thread didn't finish a tick for " + TimeUnit.NANOSECONDS.toMillis(stalled) + " ms!");
+		EnderLogger.error("Last finished tick was " + lastTick + ", current phase: " + (section == null ? "none" : section.getName()));
+		EnderLogger.error("Stack trace of " + watched.getName() + " (" + watched.getState() + "):");
+		for (StackTraceElement element : watched.getStackTrace()) {
+			EnderLogger.error("\tat " + element);
+		}
+		// the main thread waits for the world workers during the world tick, these show which world is stuck
+		for (Map.Entry<Thread, TickProfiler.Section> entry : profiler.getCurrentSections().entrySet()) {
+			if (entry.getKey() != watched) {
+				EnderLogger.error(entry.getKey().getName() + " is in phase: " + entry.getValue().getName());
+			}
+		}
+	}
+}
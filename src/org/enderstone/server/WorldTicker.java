@@ -0,0 +1,157 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.enderstone.server.regions.EnderWorld;
+import org.enderstone.server.util.NettyThreadFactory;
+
+/**
+ * Runs the per world part of a server tick. In parallel mode every world is
+ * ticked on its own worker, the main thread waits for all of them before it
+ * continues, so the tick takes as long as the slowest world instead of the sum
+ * of all worlds.
+ *
+ * Work that crosses world borders (switching worlds, global broadcasts) may
+ * not run on a world worker, it is queued using {@link #defer(Runnable)} and
+ * executed on the main thread after all worlds are done.
+ *
+ * @author Fernando
+ */
+public class WorldTicker {
+
+	private static final ThreadLocal<EnderWorld> currentWorld = new ThreadLocal<>();
+	private final ExecutorService executor;
+	private final Queue<Runnable> deferred = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Creates a new WorldTicker
+	 *
+	 * @param threads the amount of worker threads, 0 or less to tick all worlds
+	 * on the main thread
+	 */
+	public WorldTicker(int threads) {
+		if (threads > 0) {
+			ThreadGroup group = new ThreadGroup(Thread.currentThread().getThreadGroup(), "World tickers");
+			this.executor = Executors.newFixedThreadPool(threads, new NettyThreadFactory(group, "worker"));
+		} else {
+			this.executor = null;
+		}
+	}
+
+	public boolean isParallel() {
+		return this.executor != null;
+	}
+
+	/**
+	 * Ticks all the worlds, returns after all worlds have been ticked and the
+	 * deferred cross-world work has been executed
+	 *
+	 * @param worlds the worlds to tick
+	 * @throws InterruptedException when the main thread got interrupted while
+	 * waiting for the workers
+	 */
+	public void tickWorlds(List<EnderWorld> worlds) throws InterruptedException {
+		if (executor == null || worlds.size() < 2) {
+			for (EnderWorld world : worlds) {
+				world.serverTick();
+			}
+		} else {
+			List<Future<?>> running = new ArrayList<>(worlds.size());
+			for (final EnderWorld world : worlds) {
+				running.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() {
+						currentWorld.set(world);
+						try {
+							world.serverTick();
+						} finally {
+							currentWorld.remove();
+						}
+						return null;
+					}
+				}));
+			}
+			for (int i = 0; i < running.size(); i++) {
+				try {
+					running.get(i).get();
+				} catch (ExecutionException ex) {
+					EnderLogger.error("Problem while ticking world " + worlds.get(i).worldName);
+					EnderLogger.exception(ex.getCause());
+				}
+			}
+		}
+		runDeferred();
+	}
+
+	private void runDeferred() {
+		Runnable run;
+		while ((run = deferred.poll()) != null) {
+			try {
+				run.run();
+			} catch (Exception e) {
+				EnderLogger.warn("Problem while executing deferred task " + run.toString());
+				EnderLogger.exception(e);
+			}
+		}
+	}
+
+	/**
+	 * Checks if the current thread is ticking a world in parallel with other
+	 * worlds
+	 *
+	 * @return true if the current thread is a world worker
+	 */
+	public static boolean isCurrentThreadWorldThread() {
+		return currentWorld.get() != null;
+	}
+
+	/**
+	 * Gets the world that is being ticked by the current thread
+	 *
+	 * @return the world, or null if this isn't a world worker
+	 */
+	public static EnderWorld getCurrentThreadWorld() {
+		return currentWorld.get();
+	}
+
+	/**
+	 * Queues a task to be executed on the main thread once all worlds have
+	 * finished their tick
+	 *
+	 * @param run the task
+	 */
+	public void defer(Runnable run) {
+		this.deferred.add(run);
+	}
+
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+}
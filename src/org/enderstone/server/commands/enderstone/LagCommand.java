@@ -25,6 +25,14 @@ import org.enderstone.server.commands.Command;
 import org.enderstone.server.commands.CommandMap;
 import org.enderstone.server.commands.CommandSender;
 import org.enderstone.server.commands.SimpleCommand;
+import org.enderstone.server.entity.player.ChunkSendScheduler;
+import org.enderstone.server.profiler.TickPhase;
+import org.enderstone.server.profiler.TickProfiler;
+import org.enderstone.server.regions.ChunkPacketCache;
+import org.enderstone.server.regions.EnderWorld;
+import org.enderstone.server.regions.LightEngine;
+import org.enderstone.server.regions.io.ChunkSaveQueue;
+import org.enderstone.server.regions.io.RegionFileCache;
 
 public class LagCommand extends SimpleCommand {
 
@@ -91,6 +99,48 @@ public class LagCommand extends SimpleCommand {
 						tps < Main.getInstance().getTickSpeed() ? ChatColor.YELLOW : 
 								ChatColor.GREEN).
 				addPart("Average TPS: " + String.format("%.3f", tps)).build());
+		sender.sendMessage(new SimpleMessage("Delivered TPS: " + String.format("%.3f", Main.getInstance().getDeliveredTps())
+				+ " (" + Main.getInstance().clock.getMode().name().toLowerCase() + ", " + Main.getInstance().clock.getSkippedTicks() + " ticks skipped)"));
+		sender.sendMessage(new SimpleMessage("Main thread tasks: " + Main.getInstance().getMainThreadQueueDepth() + " waiting, last tick ran "
+				+ Main.getInstance().getLastTaskDrainCount() + " in " + String.format("%.3f", Main.getInstance().getLastTaskDrainTime() / 1_000_000d) + " ms"));
+		ChunkSaveQueue saves = Main.getInstance().saveQueue;
+		sender.sendMessage(new SimpleMessage("Chunk saves: " + saves.getQueueDepth() + " waiting, " + saves.getSavedChunks() + " saved, "
+				+ saves.getCoalescedChunks() + " coalesced, " + String.format("%.1f KB/s, flush latency avg %.1f max %.1f ms", saves.getBytesPerSecond() / 1024d,
+						saves.getAverageLatency() / 1_000_000d, saves.getMaxLatency() / 1_000_000d)));
+		RegionFileCache regions = Main.getInstance().regionCache;
+		sender.sendMessage(new SimpleMessage("Region files: " + regions.getOpenCount() + " open, " + regions.getHits() + " hits, " + regions.getMisses() + " misses, "
+				+ regions.getEvictions() + " evicted, " + regions.getIdleCloses() + " closed idle"));
+		ChunkSendScheduler chunkSends = Main.getInstance().chunkSendScheduler;
+		sender.sendMessage(new SimpleMessage("Chunk sending: " + chunkSends.getLastTickQueued() + " queued, " + chunkSends.getLastTickBytes() / 1024 + " KB sent last tick"));
+		ChunkPacketCache chunkPackets = Main.getInstance().chunkPacketCache;
+		sender.sendMessage(new SimpleMessage("Chunk packets: " + chunkPackets.getSize() + " cached (" + chunkPackets.getMemory() / 1024 + " KB), "
+				+ chunkPackets.getHits() + " hits, " + chunkPackets.getMisses() + " misses, " + chunkPackets.getEvictions() + " evicted"));
+		int loadedChunks = 0;
+		int unloadQueue = 0;
+		int saveQueue = 0;
+		for (EnderWorld world : Main.getInstance().worlds) {
+			loadedChunks += world.getLoadedChunks().size();
+			unloadQueue += world.getUnloadQueueSize();
+			saveQueue += world.getSaveQueueSize();
+		}
+		sender.sendMessage(new SimpleMessage("Chunk lifetime: " + loadedChunks + " loaded, " + unloadQueue + " waiting to unload, " + saveQueue + " waiting to save"));
+		int lightChanges = 0;
+		int lightChunks = 0;
+		long lightUpdated = 0;
+		long lightCoalesced = 0;
+		for (EnderWorld world : Main.getInstance().worlds) {
+			LightEngine light = world.getLightEngine();
+			lightChanges += light.getPendingChanges();
+			lightChunks += light.getPendingChunks();
+			lightUpdated += light.getUpdatedBlocks();
+			lightCoalesced += light.getCoalescedChanges();
+		}
+		sender.sendMessage(new SimpleMessage("Lighting: " + lightChanges + " block changes and " + lightChunks + " chunks waiting, "
+				+ lightUpdated + " blocks updated, " + lightCoalesced + " changes coalesced"));
+		TickProfiler profiler = Main.getInstance().profiler;
+		for (TickPhase phase : TickPhase.values()) {
+			sender.sendMessage(new SimpleMessage(phase.getDisplayName() + ": " + profiler.getSection(phase).getStats().format()));
+		}
 		return COMMAND_SUCCESS;
 	}
 
@@ -36,7 +36,7 @@ public class TickRateCommand extends SimpleCommand {
 	@Override
 	public int executeCommand(Command cmd, String alias, CommandSender sender, String[] args) {
 		if (args.length == 0) {
-			sender.sendMessage(new SimpleMessage("Current tickspeed: "+Main.getInstance().getTickSpeed() + " (default: 20)"));
+			sender.sendMessage(new SimpleMessage("Current tickspeed: "+Main.getInstance().getTickSpeed() + " (default: 20), delivered: " + String.format("%.2f", Main.getInstance().getDeliveredTps())));
 			return Command.COMMAND_SUCCESS;
 		}
                 else if (args.length == 1) {
@@ -0,0 +1,86 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.commands.enderstone;
+
+import org.enderstone.server.Main;
+import org.enderstone.server.api.messages.AdvancedMessage;
+import org.enderstone.server.api.messages.ChatColor;
+import org.enderstone.server.api.messages.SimpleMessage;
+import org.enderstone.server.commands.Command;
+import org.enderstone.server.commands.CommandMap;
+import org.enderstone.server.commands.CommandSender;
+import org.enderstone.server.commands.SimpleCommand;
+import org.enderstone.server.profiler.TickPhase;
+import org.enderstone.server.profiler.TickProfiler;
+import org.enderstone.server.scheduler.AsyncExecutor;
+
+/**
+ * Shows the time spend in every phase of the tick
+ *
+ * @author Fernando
+ */
+public class TimingsCommand extends SimpleCommand {
+
+	public TimingsCommand() {
+		super("command.enderstone.timings", "timings", CommandMap.DEFAULT_ENDERSTONE_COMMAND_PRIORITY, "timing");
+	}
+
+	@Override
+	public int executeCommand(Command cmd, String alias, CommandSender sender, String[] args) {
+		TickProfiler profiler = Main.getInstance().profiler;
+		if (args.length == 1 && args[0].equalsIgnoreCase("reset")) {
+			profiler.reset();
+			sender.sendMessage(new SimpleMessage("Timings reset"));
+			return COMMAND_SUCCESS;
+		} else if (args.length != 0) {
+			sender.sendMessage(new SimpleMessage("Usage: /" + alias + " [reset]"));
+			return COMMAND_FAILED;
+		}
+		long tickTime = Main.getInstance().clock.getTickNanos();
+		sender.sendMessage(new SimpleMessage("Timings over the last " + profiler.getSection(TickPhase.TICK).getStats().getSampleCount() + " ticks:"));
+		for (TickPhase phase : TickPhase.values()) {
+			sendSection(sender, profiler.getSection(phase), tickTime);
+		}
+		for (TickProfiler.Section section : profiler.getWorldSections()) {
+			sendSection(sender, section, tickTime);
+		}
+		sendExecutor(sender, "Async tasks", Main.getInstance().asyncExecutor);
+		sendExecutor(sender, "Chunk generators", Main.getInstance().generatorExecutor);
+		return COMMAND_SUCCESS;
+	}
+
+	private void sendExecutor(CommandSender sender, String name, AsyncExecutor async) {
+		sender.sendMessage(new SimpleMessage(name + ": " + async.getActiveCount() + " running, " + async.getQueueSize() + " waiting, " + async.getRejectedCount() + " rejected"));
+		for (AsyncExecutor.TaskTimings timing : async.getTimings()) {
+			long count = Math.max(1, timing.getCount());
+			sender.sendMessage(new SimpleMessage(timing.getName() + ": " + timing.getCount() + " runs, " + timing.getFailedCount() + " failed, "
+					+ String.format("avg wait %.2f avg run %.2f max run %.2f ms", timing.getTotalWaitTime() / 1_000_000d / count,
+							timing.getTotalRunTime() / 1_000_000d / count, timing.getMaxRunTime() / 1_000_000d)));
+		}
+	}
+
+	private void sendSection(CommandSender sender, TickProfiler.Section section, long tickTime) {
+		TickProfiler.Stats stats = section.getStats();
+		long p95 = stats.getPercentile(95);
+		sender.sendMessage(new AdvancedMessage()
+				.getBase()
+					.setColor(p95 > tickTime ? ChatColor.RED : p95 > tickTime / 2 ? ChatColor.YELLOW : ChatColor.GREEN)
+				.addPart(section.getName() + ": " + stats.format())
+				.build());
+	}
+}
@@ -18,6 +18,7 @@
 package org.enderstone.server.entity;
 
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.enderstone.server.Main;
 import org.enderstone.server.api.Location;
@@ -39,7 +40,7 @@ import org.enderstone.server.regions.EnderWorld;
 
 public abstract class EnderEntity implements Entity {
 
-	private static int entityCount = 0;
+	private static final AtomicInteger entityCount = new AtomicInteger();
 
 	private final int entityId;
 	private final Location location;
@@ -54,7 +55,7 @@ public abstract class EnderEntity implements Entity {
 	private boolean broadcastDespawn = true;
 
 	protected EnderEntity(Location location) {
-		this.entityId = entityCount++;
+		this.entityId = entityCount.getAndIncrement();
 		this.location = location.clone();
 	}
 
@@ -84,7 +85,32 @@ public abstract class EnderEntity implements Entity {
 
 	protected abstract float getBaseMaxHealth();
 
-	public abstract void updatePlayers(Set<EnderPlayer> onlinePlayers);
+	/**
+	 * Updates the players this entity can see, entities inside a world are
+	 * tracked by the {@link EntityTracker} of that world instead
+	 *
+	 * @param onlinePlayers the players to check
+	 */
+	public void updatePlayers(Set<EnderPlayer> onlinePlayers) {
+	}
+
+	/**
+	 * Gets the distance from where players can see this entity
+	 *
+	 * @return the distance in blocks
+	 */
+	public double getTrackingRange() {
+		return 40;
+	}
+
+	/**
+	 * Checks if the height difference counts for the tracking range
+	 *
+	 * @return true if the y coordinate is checked
+	 */
+	public boolean isTrackedVertically() {
+		return true;
+	}
 
 	public abstract void broadcastLocation(Location newLocation);
 
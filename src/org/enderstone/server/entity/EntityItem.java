@@ -17,7 +17,6 @@
  */
 package org.enderstone.server.entity;
 
-import java.util.Set;
 import java.util.UUID;
 
 import org.enderstone.server.Main;
@@ -28,7 +27,6 @@ import org.enderstone.server.entity.player.EnderPlayer;
 import org.enderstone.server.inventory.ItemStack;
 import org.enderstone.server.packet.Packet;
 import org.enderstone.server.packet.play.PacketOutCollectItem;
-import org.enderstone.server.packet.play.PacketOutEntityDestroy;
 import org.enderstone.server.packet.play.PacketOutEntityMetadata;
 import org.enderstone.server.packet.play.PacketOutEntityVelocity;
 import org.enderstone.server.packet.play.PacketOutSpawnObject;
@@ -59,7 +57,6 @@ public class EntityItem extends EnderEntity implements Item {
 	@Override
 	public void onSpawn() {
 		this.updateDataWatcher();
-		this.updatePlayers(Main.getInstance().onlinePlayers);
 	}
 
 	@Override
@@ -113,23 +110,6 @@ public class EntityItem extends EnderEntity implements Item {
 		return 1;
 	}
 
-	@Override
-	public void updatePlayers(Set<EnderPlayer> onlinePlayers) {
-		Packet[] spawnPackets = this.getSpawnPackets();
-		for (EnderPlayer pl : onlinePlayers) {
-			if (pl.getLocation().isInRange(40, getLocation(), true) && !pl.canSeeEntity.contains(this)) {
-				pl.canSeeEntity.add(this);
-				pl.getNetworkManager().sendPacket(spawnPackets);
-			} else if (!pl.getLocation().isInRange(40, this.getLocation(), true) && pl.canSeeEntity.contains(this)) {
-				pl.canSeeEntity.remove(this);
-				pl.getNetworkManager().sendPacket(new PacketOutEntityDestroy(new Integer[] { this.getEntityId() }));
-			} else if (pl.canSeeEntity.contains(this) && !Main.getInstance().getWorld(pl).entities.contains(this)) {
-				pl.canSeeEntity.remove(this);
-				pl.getNetworkManager().sendPacket(new PacketOutEntityDestroy(new Integer[] { this.getEntityId() }));
-			}
-		}
-	}
-
 	@Override
 	public void broadcastLocation(Location newLocation) {
 	}
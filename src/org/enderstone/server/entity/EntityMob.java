@@ -19,7 +19,6 @@ package org.enderstone.server.entity;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import org.enderstone.server.Main;
 import org.enderstone.server.api.Location;
@@ -29,7 +28,6 @@ import org.enderstone.server.entity.player.DamageItemType;
 import org.enderstone.server.entity.player.EnderPlayer;
 import org.enderstone.server.inventory.ItemStack;
 import org.enderstone.server.packet.Packet;
-import org.enderstone.server.packet.play.PacketOutEntityDestroy;
 import org.enderstone.server.packet.play.PacketOutEntityHeadLook;
 import org.enderstone.server.packet.play.PacketOutEntityLook;
 import org.enderstone.server.packet.play.PacketOutEntityRelativeMove;
@@ -55,7 +53,6 @@ public abstract class EntityMob extends EnderEntity implements Mob {
 	@Override
 	public void onSpawn() {
 		this.updateDataWatcher();
-		this.updatePlayers(Main.getInstance().onlinePlayers);
 	}
 
 	@Override
@@ -94,19 +91,8 @@ public abstract class EntityMob extends EnderEntity implements Mob {
 	}
 
 	@Override
-	public void updatePlayers(Set<EnderPlayer> onlinePlayers) {
-		for (EnderPlayer ep : onlinePlayers) {
-			if (ep.getLocation().isInRange(40, this.getLocation(), false) && !ep.canSeeEntity.contains(this)) {
-				ep.canSeeEntity.add(this);
-				ep.getNetworkManager().sendPacket(this.getSpawnPackets());
-			} else if (!ep.getLocation().isInRange(40, this.getLocation(), false) && ep.canSeeEntity.contains(this)) {
-				ep.canSeeEntity.remove(this);
-				ep.getNetworkManager().sendPacket(new PacketOutEntityDestroy(new Integer[] { this.getEntityId() }));
-			} else if (ep.canSeeEntity.contains(this) && !Main.getInstance().getWorld(ep).entities.contains(this)) {
-				ep.canSeeEntity.remove(this);
-				ep.getNetworkManager().sendPacket(new PacketOutEntityDestroy(new Integer[] { this.getEntityId() }));
-			}
-		}
+	public boolean isTrackedVertically() {
+		return false;
 	}
 
 	private int moveUpdates = 0;
@@ -127,7 +113,7 @@ public abstract class EntityMob extends EnderEntity implements Mob {
 			packet = new PacketOutEntityRelativeMove(this.getEntityId(), (byte) dx, (byte) dy, (byte) dz, false);
 		}
 
-		for (EnderPlayer ep : Main.getInstance().onlinePlayers) {
+		for (EnderPlayer ep : world.players) {
 			if (ep.canSeeEntity.contains(this)) {
 				ep.getNetworkManager().sendPacket(packet);
 			}
@@ -139,7 +125,7 @@ public abstract class EntityMob extends EnderEntity implements Mob {
 		Packet pack1 = new PacketOutEntityLook(this.getEntityId(), (byte) calcYaw(yaw * 256.0F / 360.0F), (byte) calcYaw(pitch * 256.0F / 360.0F), false);
 		Packet pack2 = new PacketOutEntityHeadLook(this.getEntityId(), (byte) calcYaw(yaw * 256.0F / 360.0F));
 
-		for (EnderPlayer ep : Main.getInstance().onlinePlayers) {
+		for (EnderPlayer ep : world.players) {
 			if (ep.canSeeEntity.contains(this)) {
 				ep.getNetworkManager().sendPacket(pack1);
 				ep.getNetworkManager().sendPacket(pack2);
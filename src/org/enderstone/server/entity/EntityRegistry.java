@@ -0,0 +1,112 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.entity;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import org.enderstone.server.entity.player.EnderPlayer;
+import org.enderstone.server.regions.EnderWorld;
+import org.enderstone.server.util.IntObjectMap;
+
+/**
+ * Index of all entities and players that are inside a world, by entity id,
+ * uuid and lower-cased player name. The worlds keep this up to date when
+ * entities spawn, despawn or switch worlds.
+ *
+ * Worlds may be ticked in parallel, so every method is synchronized.
+ *
+ * @author Fernando
+ */
+public class EntityRegistry {
+
+	private final IntObjectMap<EnderEntity> entities = new IntObjectMap<>(1024);
+	private final IntObjectMap<EnderWorld> worlds = new IntObjectMap<>(1024);
+	private final Map<UUID, EnderPlayer> playersByUUID = new HashMap<>();
+	private final Map<String, EnderPlayer> playersByName = new HashMap<>();
+
+	/**
+	 * Registers an entity, or moves it to another world if it was already
+	 * registered
+	 *
+	 * @param entity the entity
+	 * @param world the world the entity is in
+	 */
+	public synchronized void add(EnderEntity entity, EnderWorld world) {
+		entities.put(entity.getEntityId(), entity);
+		worlds.put(entity.getEntityId(), world);
+		if (entity instanceof EnderPlayer) {
+			EnderPlayer player = (EnderPlayer) entity;
+			playersByUUID.put(player.uuid, player);
+			playersByName.put(player.getPlayerName().toLowerCase(Locale.ENGLISH), player);
+		}
+	}
+
+	/**
+	 * Removes an entity
+	 *
+	 * @param entity the entity
+	 */
+	public synchronized void remove(EnderEntity entity) {
+		if (entities.get(entity.getEntityId()) != entity)
+			return;
+		entities.remove(entity.getEntityId());
+		worlds.remove(entity.getEntityId());
+		if (entity instanceof EnderPlayer) {
+			EnderPlayer player = (EnderPlayer) entity;
+			// a player that logged in again may already have replaced these entries
+			if (playersByUUID.get(player.uuid) == player)
+				playersByUUID.remove(player.uuid);
+			String name = player.getPlayerName().toLowerCase(Locale.ENGLISH);
+			if (playersByName.get(name) == player)
+				playersByName.remove(name);
+		}
+	}
+
+	public synchronized EnderEntity getEntity(int entityId) {
+		return entities.get(entityId);
+	}
+
+	public synchronized EnderPlayer getPlayer(int entityId) {
+		EnderEntity entity = entities.get(entityId);
+		return entity instanceof EnderPlayer ? (EnderPlayer) entity : null;
+	}
+
+	public synchronized EnderPlayer getPlayer(UUID uuid) {
+		return playersByUUID.get(uuid);
+	}
+
+	/**
+	 * Gets a player by name, ignoring case
+	 *
+	 * @param name the name of the player
+	 * @return the player, or null if not online
+	 */
+	public synchronized EnderPlayer getPlayer(String name) {
+		return playersByName.get(name.toLowerCase(Locale.ENGLISH));
+	}
+
+	public synchronized EnderWorld getWorld(EnderEntity entity) {
+		return worlds.get(entity.getEntityId());
+	}
+
+	public synchronized int getEntityCount() {
+		return entities.size();
+	}
+}
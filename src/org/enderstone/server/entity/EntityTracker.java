@@ -0,0 +1,168 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.entity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.enderstone.server.api.Location;
+import org.enderstone.server.entity.player.EnderPlayer;
+import org.enderstone.server.packet.Packet;
+import org.enderstone.server.packet.play.PacketOutEntityDestroy;
+import org.enderstone.server.regions.EnderWorld;
+
+/**
+ * Decides which players can see which entities of a world. This runs once per
+ * tick for the whole world, players are put in a grid first so every entity
+ * only checks the players near it. The spawn packets and destroyed entity ids
+ * are collected per player and send in one go at the end.
+ *
+ * @author Fernando
+ */
+public class EntityTracker {
+
+	/**
+	 * Size in blocks of a cell of the player grid
+	 */
+	private static final int CELL_SIZE = 64;
+	private final EnderWorld world;
+	private final Map<Long, List<EnderPlayer>> grid = new HashMap<>();
+	private final Map<EnderPlayer, PendingPackets> pending = new HashMap<>();
+
+	public EntityTracker(EnderWorld world) {
+		this.world = world;
+	}
+
+	/**
+	 * Updates the visible entities for all players inside the world
+	 */
+	public void update() {
+		if (world.players.isEmpty()) {
+			return;
+		}
+		try {
+			for (EnderPlayer player : world.players) {
+				Location loc = player.getLocation();
+				long key = key(cell(loc.getX()), cell(loc.getZ()));
+				List<EnderPlayer> list = grid.get(key);
+				if (list == null) {
+					grid.put(key, list = new ArrayList<>(4));
+				}
+				list.add(player);
+			}
+			trackGained();
+			trackLost();
+			for (Map.Entry<EnderPlayer, PendingPackets> entry : pending.entrySet()) {
+				entry.getValue().send(entry.getKey());
+			}
+		} finally {
+			grid.clear();
+			pending.clear();
+		}
+	}
+
+	private void trackGained() {
+		for (EnderEntity e : world.entities) {
+			Location loc = e.getLocation();
+			double range = e.getTrackingRange();
+			boolean checkY = e.isTrackedVertically();
+			int cells = (int) Math.ceil(range / CELL_SIZE);
+			int cellX = cell(loc.getX());
+			int cellZ = cell(loc.getZ());
+			Packet[] spawnPackets = null;
+			for (int x = cellX - cells; x <= cellX + cells; x++) {
+				for (int z = cellZ - cells; z <= cellZ + cells; z++) {
+					List<EnderPlayer> players = grid.get(key(x, z));
+					if (players == null) {
+						continue;
+					}
+					for (EnderPlayer player : players) {
+						if (player.canSeeEntity.contains(e)) {
+							continue;
+						}
+						if (!player.getLocation().isInRange(range, loc, checkY)) {
+							continue;
+						}
+						if (spawnPackets == null) {
+							spawnPackets = e.getSpawnPackets();
+						}
+						player.canSeeEntity.add(e);
+						getPending(player).addSpawn(spawnPackets);
+					}
+				}
+			}
+		}
+	}
+
+	private void trackLost() {
+		for (EnderPlayer player : world.players) {
+			if (player.canSeeEntity.isEmpty()) {
+				continue;
+			}
+			Location loc = player.getLocation();
+			Iterator<EnderEntity> it = player.canSeeEntity.iterator();
+			while (it.hasNext()) {
+				EnderEntity e = it.next();
+				if (!world.entities.contains(e) || !loc.isInRange(e.getTrackingRange(), e.getLocation(), e.isTrackedVertically())) {
+					it.remove();
+					getPending(player).addDestroy(e.getEntityId());
+				}
+			}
+		}
+	}
+
+	private PendingPackets getPending(EnderPlayer player) {
+		PendingPackets packets = pending.get(player);
+		if (packets == null) {
+			pending.put(player, packets = new PendingPackets());
+		}
+		return packets;
+	}
+
+	private static int cell(double coord) {
+		return (int) Math.floor(coord / CELL_SIZE);
+	}
+
+	private static long key(int x, int z) {
+		return ((long) x << 32) | (z & 0xFFFFFFFFL);
+	}
+
+	private static class PendingPackets {
+
+		private final List<Packet> spawn = new ArrayList<>();
+		private final List<Integer> destroy = new ArrayList<>();
+
+		public void addSpawn(Packet[] packets) {
+			Collections.addAll(spawn, packets);
+		}
+
+		public void addDestroy(int entityId) {
+			destroy.add(entityId);
+		}
+
+		public void send(EnderPlayer player) {
+			if (!destroy.isEmpty()) {
+				spawn.add(0, new PacketOutEntityDestroy(destroy.toArray(new Integer[destroy.size()])));
+			}
+			player.getNetworkManager().sendPacket(spawn.toArray(new Packet[spawn.size()]));
+		}
+	}
+}
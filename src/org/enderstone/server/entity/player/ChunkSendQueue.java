@@ -0,0 +1,345 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.entity.player;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.enderstone.server.api.Location;
+import org.enderstone.server.regions.ChunkTicketType;
+import org.enderstone.server.regions.EnderChunk;
+import org.enderstone.server.regions.EnderWorld;
+import org.enderstone.server.regions.EnderWorld.ChunkInformer;
+import org.enderstone.server.scheduler.FutureCallback;
+
+/**
+ * The chunks a player still has to receive. Every tick the closest chunks,
+ * with the chunks in front of the player first, are sent until the byte
+ * budget of the player is used. Chunks that aren't loaded yet are requested
+ * from the world and sent once they are ready.
+ *
+ * The budget adapts to the connection: it grows while the player uses all of
+ * it and the channel keeps up, and is halved when the channel stops being
+ * writable because the client can't receive the data fast enough.
+ *
+ * Only used from the main thread.
+ *
+ * @author Fernando
+ */
+public class ChunkSendQueue {
+
+	/**
+	 * Maximum amount of chunks that are being loaded for a player at the
+	 * same time
+	 */
+	private static final int MAX_REQUESTS = 32;
+	/**
+	 * The queue is sorted again when the player turned more than this amount
+	 * of degrees since the last sort
+	 */
+	private static final float RESORT_ANGLE = 45;
+	private final EnderPlayer player;
+	private final Set<Long> queued = new HashSet<>();
+	private final Set<Long> requested = new HashSet<>();
+	/**
+	 * Requested chunks that are loaded but not sent yet, these hold a
+	 * {@link ChunkTicketType#ASYNC} ticket until they are sent or leave the
+	 * queue
+	 */
+	private final Map<Long, EnderChunk> ready = new HashMap<>();
+	/**
+	 * The queued chunks ordered by priority. Only sorted again when chunks are
+	 * added, the player moves to another chunk or turns more than
+	 * {@link #RESORT_ANGLE} degrees, chunks that left the queue since are
+	 * skipped.
+	 */
+	private long[] sorted = new long[0];
+	private int sortedHead;
+	private int sortedSize;
+	private boolean sortNeeded = true;
+	private int sortedX;
+	private int sortedZ;
+	private float sortedYaw;
+	private long[] sortKeys = new long[0];
+	private long[] sortOrder = new long[0];
+	private int viewX;
+	private int viewZ;
+	/**
+	 * The view radius in chunks, -1 when the player has no view yet
+	 */
+	private int radius = -1;
+	private int budget;
+	private long sentBytes;
+	private long sentChunks;
+
+	public ChunkSendQueue(EnderPlayer player, int initialBudget) {
+		this.player = player;
+		this.budget = initialBudget;
+	}
+
+	private static long key(int x, int z) {
+		return ((long) x << 32) ^ (z & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Adds a chunk to the queue
+	 *
+	 * @param x the chunk x
+	 * @param z the chunk z
+	 */
+	public void add(int x, int z) {
+		if (queued.add(key(x, z))) {
+			sortNeeded = true;
+		}
+	}
+
+	public boolean contains(int x, int z) {
+		return queued.contains(key(x, z));
+	}
+
+	/**
+	 * Removes a chunk from the queue
+	 *
+	 * @param x the chunk x
+	 * @param z the chunk z
+	 */
+	public void remove(int x, int z) {
+		long key = key(x, z);
+		queued.remove(key);
+		release(key);
+	}
+
+	private void release(long key) {
+		EnderChunk chunk = ready.remove(key);
+		if (chunk != null) {
+			chunk.removeTicket(ChunkTicketType.ASYNC);
+		}
+	}
+
+	/**
+	 * Sets the view of the player, the world removes the chunks that left the
+	 * view from the queue
+	 *
+	 * @param centerX the chunk x of the player
+	 * @param centerZ the chunk z of the player
+	 * @param radius the view radius in chunks
+	 */
+	public void setView(int centerX, int centerZ, int radius) {
+		this.viewX = centerX;
+		this.viewZ = centerZ;
+		this.radius = radius;
+	}
+
+	public boolean hasView() {
+		return radius >= 0;
+	}
+
+	public int getViewX() {
+		return viewX;
+	}
+
+	public int getViewZ() {
+		return viewZ;
+	}
+
+	public int getViewRadius() {
+		return radius;
+	}
+
+	/**
+	 * Removes all chunks and the view, the next view update sends the full
+	 * view again
+	 */
+	public void clear() {
+		queued.clear();
+		for (EnderChunk chunk : ready.values()) {
+			chunk.removeTicket(ChunkTicketType.ASYNC);
+		}
+		ready.clear();
+		radius = -1;
+		sortedHead = sortedSize = 0;
+		sortNeeded = true;
+	}
+
+	public int size() {
+		return queued.size();
+	}
+
+	public int getBudget() {
+		return budget;
+	}
+
+	public long getSentBytes() {
+		return sentBytes;
+	}
+
+	public long getSentChunks() {
+		return sentChunks;
+	}
+
+	/**
+	 * Sends the queued chunks with the highest priority
+	 *
+	 * @param allowance the maximum amount of bytes the global budget allows
+	 * this player to use this tick
+	 * @param minBudget the minimum budget of a player
+	 * @param maxBudget the maximum budget of a player
+	 * @return the amount of bytes sent
+	 */
+	public int drain(int allowance, int minBudget, int maxBudget) {
+		if (queued.isEmpty()) {
+			return 0;
+		}
+		if (!player.getNetworkManager().isWritable()) {
+			budget = Math.max(minBudget, budget / 2);
+			return 0;
+		}
+		int limit = Math.min(budget, allowance);
+		EnderWorld world = player.getWorld();
+		ChunkInformer informer = player.chunkInformer;
+		int used = 0;
+		synchronized (informer) {
+			try {
+				updateOrder();
+				for (int i = sortedHead; i < sortedSize; i++) {
+					long key = sorted[i];
+					if (!queued.contains(key)) {
+						if (i == sortedHead) {
+							sortedHead++;
+						}
+						continue;
+					}
+					int x = (int) (key >> 32);
+					int z = (int) key;
+					EnderChunk chunk = world.getLoadedChunk(x, z);
+					if (chunk == null || !chunk.hasPopulated) {
+						request(world, key, x, z);
+						continue;
+					}
+					// the world workers are idle while the chunks are sent
+					world.getLightEngine().lightIfPending(chunk);
+					byte[] data = chunk.getCompressedChunk().getChunkData();
+					int size = data == null ? 0 : data.length;
+					if (used > 0 && used + size > limit) {
+						break;
+					}
+					queued.remove(key);
+					if (i == sortedHead) {
+						sortedHead++;
+					}
+					if (player.getLoadedChunks().get(x, z) != null) {
+						release(key);
+						continue;
+					}
+					used += size;
+					chunk.addTicket(ChunkTicketType.PLAYER);
+					release(key);
+					player.getLoadedChunks().add(chunk);
+					informer.sendChunk(chunk);
+					sentChunks++;
+				}
+			} finally {
+				informer.done();
+			}
+		}
+		sentBytes += used;
+		if (used >= budget) {
+			budget = Math.min(maxBudget, budget + maxBudget / 16);
+		}
+		return used;
+	}
+
+	/**
+	 * Sorts the queue again if chunks were added, the player moved to another
+	 * chunk or turned too far since the last sort
+	 */
+	private void updateOrder() {
+		Location loc = player.getLocation();
+		int centerX = loc.getBlockX() >> 4;
+		int centerZ = loc.getBlockZ() >> 4;
+		float turned = Math.abs(((loc.getYaw() - sortedYaw) % 360 + 540) % 360 - 180);
+		if (sortNeeded || centerX != sortedX || centerZ != sortedZ || turned > RESORT_ANGLE) {
+			sortByPriority(centerX, centerZ, loc.getYaw());
+		}
+	}
+
+	/**
+	 * Orders the queued chunks by distance to the player, chunks in the
+	 * direction the player is looking at count as half as far away. The
+	 * arrays are reused between sorts.
+	 */
+	private void sortByPriority(int centerX, int centerZ, float yaw) {
+		double radians = Math.toRadians(yaw);
+		double facingX = -Math.sin(radians);
+		double facingZ = Math.cos(radians);
+		int size = queued.size();
+		if (sortKeys.length < size) {
+			int length = Math.max(size, sortKeys.length * 2);
+			sortKeys = new long[length];
+			sortOrder = new long[length];
+			sorted = new long[length];
+		}
+		int index = 0;
+		for (long key : queued) {
+			int dx = (int) (key >> 32) - centerX;
+			int dz = (int) key - centerZ;
+			double distance = Math.sqrt(dx * dx + dz * dz);
+			double cos = distance == 0 ? 1 : (dx * facingX + dz * facingZ) / distance;
+			int priority = (int) (distance * (1 - 0.5 * cos) * 1024);
+			sortKeys[index] = key;
+			sortOrder[index] = (long) priority << 32 | index;
+			index++;
+		}
+		Arrays.sort(sortOrder, 0, size);
+		for (int i = 0; i < size; i++) {
+			sorted[i] = sortKeys[(int) sortOrder[i]];
+		}
+		sortedHead = 0;
+		sortedSize = size;
+		sortNeeded = false;
+		sortedX = centerX;
+		sortedZ = centerZ;
+		sortedYaw = yaw;
+	}
+
+	private void request(final EnderWorld world, final long key, int x, int z) {
+		if (requested.size() >= MAX_REQUESTS || !requested.add(key)) {
+			return;
+		}
+		world.requestPopulatedChunk(x, z).addCallback(new FutureCallback<EnderChunk>() {
+
+			@Override
+			public void onSuccess(EnderChunk chunk) {
+				requested.remove(key);
+				// keep it loaded until the next drain sends it
+				if (player.getWorld() == world && queued.contains(key) && !ready.containsKey(key)) {
+					chunk.addTicket(ChunkTicketType.ASYNC);
+					ready.put(key, chunk);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				// the ChunkManager logged it already, the next drain tries again
+				requested.remove(key);
+			}
+		});
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.entity.player;
+
+import java.util.Collection;
+
+/**
+ * Drains the {@link ChunkSendQueue}s of all players every tick. The global
+ * budget is shared fairly: every player gets an equal part of what is left,
+ * and the players that don't need their part leave it for the players after
+ * them. The order rotates every tick so no player always comes last.
+ *
+ * The budgets count the bytes of the uncompressed chunk data.
+ *
+ * @author Fernando
+ */
+public class ChunkSendScheduler {
+
+	private int globalBudget;
+	private int minPlayerBudget;
+	private int maxPlayerBudget;
+	private int rotation;
+	private int lastTickBytes;
+	private int lastTickQueued;
+
+	/**
+	 * Creates a new ChunkSendScheduler
+	 *
+	 * @param globalBudget the maximum bytes sent to all players every tick
+	 * @param maxPlayerBudget the maximum bytes sent to one player every tick
+	 */
+	public ChunkSendScheduler(int globalBudget, int maxPlayerBudget) {
+		setBudgets(globalBudget, maxPlayerBudget);
+	}
+
+	public final void setBudgets(int globalBudget, int maxPlayerBudget) {
+		this.globalBudget = globalBudget;
+		this.maxPlayerBudget = maxPlayerBudget;
+		this.minPlayerBudget = Math.max(1, maxPlayerBudget / 32);
+	}
+
+	/**
+	 * @return the budget a new player starts with
+	 */
+	public int getInitialPlayerBudget() {
+		return maxPlayerBudget / 4;
+	}
+
+	public void tick(Collection<EnderPlayer> players) {
+		EnderPlayer[] waiting = new EnderPlayer[players.size()];
+		int count = 0;
+		int queuedChunks = 0;
+		for (EnderPlayer player : players) {
+			int size = player.chunkSendQueue.size();
+			if (size > 0 && !player.isDead()) {
+				waiting[count++] = player;
+				queuedChunks += size;
+			}
+		}
+		lastTickQueued = queuedChunks;
+		lastTickBytes = 0;
+		if (count == 0) {
+			return;
+		}
+		int remaining = globalBudget;
+		int start = rotation % count;
+		rotation = (start + 1) % count;
+		for (int i = 0; i < count && remaining > 0; i++) {
+			EnderPlayer player = waiting[(start + i) % count];
+			int share = remaining / (count - i);
+			int used = player.chunkSendQueue.drain(Math.max(share, 1), minPlayerBudget, maxPlayerBudget);
+			remaining -= used;
+			lastTickBytes += used;
+		}
+	}
+
+	public int getLastTickBytes() {
+		return lastTickBytes;
+	}
+
+	public int getLastTickQueued() {
+		return lastTickQueued;
+	}
+}
@@ -58,6 +58,8 @@ import org.enderstone.server.inventory.PlayerInventory;
 import org.enderstone.server.inventory.armour.Armor;
 import org.enderstone.server.packet.NetworkManager;
 import org.enderstone.server.packet.Packet;
+import org.enderstone.server.packet.play.PacketKeepAlive;
+import org.enderstone.server.packet.play.PacketOutMapChunkBulk;
 import org.enderstone.server.packet.play.PacketInTabComplete;
 import org.enderstone.server.packet.play.PacketOutBlockChange;
 import org.enderstone.server.packet.play.PacketOutChangeGameState;
@@ -90,15 +92,24 @@ import org.enderstone.server.packet.play.PacketOutTitle;
 import org.enderstone.server.packet.play.PacketOutTitle.ActionDisplayTitle;
 import org.enderstone.server.packet.play.PacketOutTitle.ActionSubtitle;
 import org.enderstone.server.packet.play.PacketOutUpdateHealth;
+import org.enderstone.server.packet.play.PacketOutUpdateTime;
 import org.enderstone.server.regions.BlockId;
 import org.enderstone.server.regions.EnderChunk;
+import org.enderstone.server.regions.CachedBulkPacket;
+import org.enderstone.server.regions.EnderChunkMap;
 import org.enderstone.server.regions.EnderWorld;
 import org.enderstone.server.regions.EnderWorld.ChunkInformer;
 import org.enderstone.server.regions.RegionSet;
+import org.enderstone.server.scheduler.ScheduledTask;
 
 public class EnderPlayer extends EnderEntity implements CommandSender, Player {
 
-	private static final int MAX_CHUNKS_EVERY_UPDATE = 16;
+	/**
+	 * Ticks between the periodic updates, these must be powers of 2
+	 */
+	private static final int KEEP_ALIVE_INTERVAL = 64;
+	private static final int PLAYER_UPDATE_INTERVAL = 32;
+	private static final int TIME_UPDATE_INTERVAL = 64;
 
 	private final InventoryHandler inventoryHandler = new InventoryHandler(this);
 	{
@@ -132,6 +143,12 @@ public class EnderPlayer extends EnderEntity implements CommandSender, Player {
 
 	public volatile boolean isOnline = true;
 	public int keepAliveID = 0;
+	/**
+	 * The repeating tasks of this player, cancelled when the player disconnects
+	 */
+	private final List<ScheduledTask> tasks = new ArrayList<>();
+	private boolean keepAliveDue;
+	private boolean playerUpdateDue;
 	private int entitySubId;
 
 	public final String playerName;
@@ -178,20 +195,66 @@ public class EnderPlayer extends EnderEntity implements CommandSender, Player {
 			int size = cache.size();
 			if (size == 0)
 				return;
-			Packet[] packets = new Packet[size];
+			int maxBulkSize = Main.getInstance().chunkBulkSize;
+			List<Packet> packets = new ArrayList<>();
+			List<EnderChunk> batch = new ArrayList<>();
+			List<EnderChunkMap> batchMaps = new ArrayList<>();
+			List<byte[]> batchData = new ArrayList<>();
+			int batchSize = 0;
 			for (int i = 0; i < size; i++) {
 				EnderChunk c = cache.get(i);
-				packets[i] = c.getCompressedChunk().toPacket(c.getX(), c.getZ());
+				EnderChunkMap map = c.getCompressedChunk();
+				byte[] data = map.getChunkData();
+				if (data == null) { // evicted by another world
+					map = c.build();
+					data = map.chunkData;
+				}
+				int columnSize = PacketOutMapChunkBulk.getColumnSize(data.length);
+				if (!batch.isEmpty() && batchSize + columnSize > maxBulkSize) {
+					packets.add(createChunkPacket(batch, batchMaps, batchData));
+					batch.clear();
+					batchMaps.clear();
+					batchData.clear();
+					batchSize = 0;
+				}
+				batch.add(c);
+				batchMaps.add(map);
+				batchData.add(data);
+				batchSize += columnSize;
 			}
+			packets.add(createChunkPacket(batch, batchMaps, batchData));
 			cache.clear();
-			networkManager.sendPacket(packets);
+			networkManager.sendPacket(packets.toArray(new Packet[packets.size()]));
 		}
 
-		@Override
-		public int maxChunks() {
-			return MAX_CHUNKS_EVERY_UPDATE;
+		/**
+		 * Packs the chunks in a bulk packet, a single chunk is sent using its
+		 * shared encoded chunk packet. The bulk packet is compressed from the
+		 * shared deflated columns.
+		 */
+		private Packet createChunkPacket(List<EnderChunk> batch, List<EnderChunkMap> batchMaps, List<byte[]> batchData) {
+			int size = batch.size();
+			if (size == 1) {
+				EnderChunk c = batch.get(0);
+				return batchMaps.get(0).toPacket(c.getX(), c.getZ(), batchData.get(0));
+			}
+			int[] x = new int[size];
+			int[] z = new int[size];
+			short[] bitmaps = new short[size];
+			for (int i = 0; i < size; i++) {
+				EnderChunk c = batch.get(i);
+				x[i] = c.getX();
+				z[i] = c.getZ();
+				bitmaps[i] = (short) batchMaps.get(i).primaryBitmap;
+			}
+			return new CachedBulkPacket(x, z, bitmaps, batchData.toArray(new byte[size][]), batchMaps.toArray(new EnderChunkMap[size]));
 		}
 	};
+	/**
+	 * The chunks this player still has to receive, drained every tick by the
+	 * {@link ChunkSendScheduler}
+	 */
+	public final ChunkSendQueue chunkSendQueue = new ChunkSendQueue(this, Main.getInstance().chunkSendScheduler.getInitialPlayerBudget());
 
 	public EnderPlayer(EnderWorld world, String userName, NetworkManager networkManager, UUID uuid, PlayerTextureStore textures) {
 		super(world.getSpawn().clone());
@@ -237,14 +300,24 @@ public class EnderPlayer extends EnderEntity implements CommandSender, Player {
 		return new ProfileProperty("textures", textureValue, true, textureSignature);
 	}
 
-	public void switchWorld(EnderWorld toWorld) {
+	public void switchWorld(final EnderWorld toWorld) {
+		if (Main.getInstance().deferIfWorldThread(new Runnable() {
+
+			@Override
+			public void run() {
+				switchWorld(toWorld);
+			}
+		})) {
+			return;
+		}
 		this.getNetworkManager().sendPacket(new PacketOutRespawn(0, (byte) 0, (byte) GameMode.SURVIVAL.getId(), "default"));
 		EnderWorld currentWorld = this.getWorld();
 		boolean succes = currentWorld.players.remove(this);
 		assert succes;
 		toWorld.players.add(this);
+		Main.getInstance().entityRegistry.add(this, toWorld);
+		currentWorld.releasePlayerChunks(this);
 		this.setLocation(this.getLocation().cloneFrom(toWorld.getSpawn()));
-		this.loadedChunks.clear();
 		toWorld.doChunkUpdatesForPlayer(this, this.chunkInformer, 3);
 		networkManager.player.getInventory().updateInventory();
 		this.getNetworkManager().sendPacket(new PacketOutPlayerPositionLook(toWorld.getSpawn().getX(), toWorld.getSpawn().getY(), toWorld.getSpawn().getZ(), 0F, 0F, (byte) 1));
@@ -285,6 +358,69 @@ public class EnderPlayer extends EnderEntity implements CommandSender, Player {
 			this.getNetworkManager().sendPacket(new PacketOutPlayerListItem(new Action[] { new ActionAddPlayer(player.uuid, player.getPlayerName(), player.getProfileProperties(), player.clientSettings.gameMode.getId(), 1, false, "") }));
 		}
 		Main.getInstance().broadcastMessage(new AdvancedMessage().getBase().setText(this.getPlayerName() + " joined the game!").setColor(ChatColor.YELLOW).build());
+		this.scheduleTasks();
+	}
+
+	/**
+	 * Schedules the keep alives, player updates and time updates of this
+	 * player. The first run is offset using the entity id, so the tasks of all
+	 * players are spread over the ticks instead of running at the same tick.
+	 * The keep alive and player update tasks only mark the work as due, the
+	 * work itself is done in the keep alive and chunk update phases of the
+	 * server tick, so its time isn't counted by the scheduler section too.
+	 */
+	private void scheduleTasks() {
+		final Main main = Main.getInstance();
+		int offset = this.getEntityId();
+		tasks.add(main.scheduler.runTaskTimer(new Runnable() {
+
+			@Override
+			public void run() {
+				keepAliveDue = true;
+			}
+		}, 1 + (offset & KEEP_ALIVE_INTERVAL - 1), KEEP_ALIVE_INTERVAL));
+		tasks.add(main.scheduler.runTaskTimer(new Runnable() {
+
+			@Override
+			public void run() {
+				playerUpdateDue = true;
+			}
+		}, 1 + (offset & PLAYER_UPDATE_INTERVAL - 1), PLAYER_UPDATE_INTERVAL));
+		tasks.add(main.scheduler.runTaskTimer(new Runnable() {
+
+			@Override
+			public void run() {
+				networkManager.sendPacket(new PacketOutUpdateTime(main.getCurrentServerTick(), getWorld().getTime()));
+			}
+		}, 1 + (offset + TIME_UPDATE_INTERVAL / 2 & TIME_UPDATE_INTERVAL - 1), TIME_UPDATE_INTERVAL));
+	}
+
+	/**
+	 * Sends a keep alive if the scheduled keep alive task marked one as due
+	 */
+	public void sendDueKeepAlive() {
+		if (!keepAliveDue) {
+			return;
+		}
+		keepAliveDue = false;
+		networkManager.sendPacket(new PacketKeepAlive(keepAliveID = Main.random.nextInt(Integer.MAX_VALUE)));
+	}
+
+	/**
+	 * Updates the visible players if the scheduled player update task marked
+	 * an update as due
+	 *
+	 * @param onlinePlayers the players that are online
+	 */
+	public void doDuePlayerUpdate(Set<EnderPlayer> onlinePlayers) {
+		if (!playerUpdateDue) {
+			return;
+		}
+		playerUpdateDue = false;
+		if (isDead()) {
+			return;
+		}
+		updatePlayers(onlinePlayers);
 	}
 
 	@Override
@@ -402,6 +538,11 @@ public class EnderPlayer extends EnderEntity implements CommandSender, Player {
 
 	public void onDisconnect() {
 		this.isOnline = false;
+		for (ScheduledTask task : tasks) {
+			task.cancel();
+		}
+		tasks.clear();
+		this.getWorld().releasePlayerChunks(this);
 		if (Main.getInstance().getWorld(this).players.contains(this)) {
 			Main.getInstance().getWorld(this).players.remove(this);
 		}
@@ -419,6 +560,7 @@ public class EnderPlayer extends EnderEntity implements CommandSender, Player {
 				}
 			}
 		}
+		Main.getInstance().entityRegistry.remove(this);
 		Main.getInstance().broadcastMessage(new AdvancedMessage().getBase().setText(playerName + " left the game!").setColor(ChatColor.YELLOW).build());
 	}
 
@@ -585,10 +727,25 @@ public class EnderPlayer extends EnderEntity implements CommandSender, Player {
 	}
 
 	@Override
-	public void teleport(Location newLocation) {
+	public void teleport(final Location newLocation) {
+		if (newLocation.getWorld() != null && newLocation.getWorld() != this.getWorld()) {
+			// moving between worlds touches the player lists of both worlds
+			if (Main.getInstance().deferIfWorldThread(new Runnable() {
+
+				@Override
+				public void run() {
+					teleport(newLocation);
+				}
+			})) {
+				return;
+			}
+		}
 		if (Main.getInstance().callEvent(new PlayerTeleportEvent(this, this.getLocation(), newLocation))) {
 			return;
 		}
+		if (newLocation.getWorld() != null && newLocation.getWorld() != this.getWorld()) {
+			this.switchWorld(newLocation.getWorld());
+		}
 		this.teleportInternally(newLocation);
 	}
 
@@ -612,6 +769,10 @@ public class EnderPlayer extends EnderEntity implements CommandSender, Player {
 	@Override
 	public void serverTick() {
 		super.serverTick();
+		if (!this.isDead() && this.chunkSendQueue.hasView()) {
+			// only does work after the player crossed a chunk border
+			this.getWorld().doChunkUpdatesForPlayer(this, this.chunkInformer, Math.min(clientSettings.renderDistance - 1, Main.MAX_VIEW_DISTANCE));
+		}
 		if (Main.getInstance().doPhysics == false) {
 			return;
 		}
@@ -0,0 +1,279 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.event;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+import org.enderstone.server.EnderLogger;
+import org.enderstone.server.api.event.Cancellable;
+import org.enderstone.server.api.event.Event;
+import org.enderstone.server.api.event.EventHandler;
+import org.enderstone.server.api.event.EventPriority;
+import org.enderstone.server.api.event.Listener;
+
+/**
+ * Calls the handlers of the registered listeners. For every event type a class
+ * is generated that calls all handlers of that type directly, in priority
+ * order, so calling an event doesn't use reflection or allocate anything.
+ *
+ * The generated classes are thrown away and regenerated on first use when a
+ * listener is (un)registered.
+ *
+ * @author Fernando
+ */
+public class EventBus {
+
+	private static final EventExecutor NO_HANDLERS = new EventExecutor() {
+
+		@Override
+		public void execute(Event event) {
+		}
+	};
+	private static final AtomicInteger generatedClasses = new AtomicInteger();
+	private final List<RegisteredHandler> handlers = new ArrayList<>();
+	private final ConcurrentMap<Class<?>, EventExecutor> executors = new ConcurrentHashMap<>();
+	private int registrationOrder = 0;
+
+	/**
+	 * Registers all {@link EventHandler} methods of a listener
+	 *
+	 * @param listener the listener
+	 * @throws IllegalArgumentException when the listener or one of its handlers
+	 * isn't valid
+	 */
+	public synchronized void registerListener(Listener listener) {
+		Class<?> type = listener.getClass();
+		for (Class<?> c = type; c != null; c = c.getEnclosingClass()) {
+			if (!Modifier.isPublic(c.getModifiers()))
+				throw new IllegalArgumentException("Listener " + type.getName() + " must be a public class");
+		}
+		List<RegisteredHandler> found = new ArrayList<>();
+		for (Method method : type.getMethods()) {
+			EventHandler annotation = method.getAnnotation(EventHandler.class);
+			if (annotation == null)
+				continue;
+			Class<?>[] parameters = method.getParameterTypes();
+			if (parameters.length != 1 || !Event.class.isAssignableFrom(parameters[0]))
+				throw new IllegalArgumentException("Event handler " + method + " must have 1 event as parameter");
+			if (Modifier.isStatic(method.getModifiers()))
+				throw new IllegalArgumentException("Event handler " + method + " may not be static");
+			if (!Modifier.isPublic(parameters[0].getModifiers()))
+				throw new IllegalArgumentException("Event " + parameters[0].getName() + " must be a public class");
+			found.add(new RegisteredHandler(listener, method, parameters[0].asSubclass(Event.class),
+					annotation.priority(), annotation.ignoreCancelled(), registrationOrder++));
+		}
+		handlers.addAll(found);
+		executors.clear();
+	}
+
+	/**
+	 * Removes all handlers of a listener
+	 *
+	 * @param listener the listener
+	 */
+	public synchronized void unregisterListener(Listener listener) {
+		Iterator<RegisteredHandler> it = handlers.iterator();
+		while (it.hasNext()) {
+			if (it.next().listener == listener)
+				it.remove();
+		}
+		executors.clear();
+	}
+
+	/**
+	 * Checks if an event has handlers, use this to skip creating events
+	 * nobody listens to
+	 *
+	 * @param type the type of the event
+	 * @return true if there is at least 1 handler for the event
+	 */
+	public boolean hasListeners(Class<? extends Event> type) {
+		return getExecutor(type) != NO_HANDLERS;
+	}
+
+	/**
+	 * Calls all handlers of an event
+	 *
+	 * @param event the event
+	 * @return true if the event got cancelled
+	 */
+	public boolean callEvent(Event event) {
+		getExecutor(event.getClass()).execute(event);
+		return event instanceof Cancellable && ((Cancellable) event).isCancelled();
+	}
+
+	private EventExecutor getExecutor(Class<? extends Event> type) {
+		EventExecutor executor = executors.get(type);
+		if (executor == null)
+			executor = createExecutor(type);
+		return executor;
+	}
+
+	private synchronized EventExecutor createExecutor(Class<? extends Event> type) {
+		EventExecutor executor = executors.get(type);
+		if (executor != null)
+			return executor;
+		List<RegisteredHandler> matching = new ArrayList<>();
+		for (RegisteredHandler handler : handlers) {
+			if (handler.eventType.isAssignableFrom(type))
+				matching.add(handler);
+		}
+		if (matching.isEmpty()) {
+			executor = NO_HANDLERS;
+		} else {
+			Collections.sort(matching, new Comparator<RegisteredHandler>() {
+
+				@Override
+				public int compare(RegisteredHandler o1, RegisteredHandler o2) {
+					int c = o1.priority.compareTo(o2.priority);
+					return c != 0 ? c : Integer.compare(o1.order, o2.order);
+				}
+			});
+			try {
+				executor = generate(type, matching);
+			} catch (ReflectiveOperationException | CannotCompileException | NotFoundException | IOException ex) {
+				throw new IllegalStateException("Unable to generate the executor for " + type.getName(), ex);
+			}
+		}
+		executors.put(type, executor);
+		return executor;
+	}
+
+	private EventExecutor generate(Class<? extends Event> type, List<RegisteredHandler> matching)
+			throws ReflectiveOperationException, CannotCompileException, NotFoundException, IOException {
+		Set<ClassLoader> loaders = new LinkedHashSet<>();
+		loaders.add(EventBus.class.getClassLoader());
+		loaders.add(type.getClassLoader());
+		for (RegisteredHandler handler : matching)
+			loaders.add(handler.listener.getClass().getClassLoader());
+		loaders.remove(null);
+
+		ClassPool pool = new ClassPool(true);
+		for (ClassLoader loader : loaders)
+			pool.appendClassPath(new LoaderClassPath(loader));
+		String name = EventBus.class.getPackage().getName() + ".generated." + type.getSimpleName() + "Executor" + generatedClasses.incrementAndGet();
+		CtClass cc = pool.makeClass(name);
+		cc.addInterface(pool.get(EventExecutor.class.getName()));
+
+		StringBuilder constructor = new StringBuilder("public " + cc.getSimpleName() + "(Object[] listeners) {");
+		StringBuilder execute = new StringBuilder("public void execute(" + Event.class.getName() + " event) {");
+		execute.append(type.getName()).append(" e = (").append(type.getName()).append(") event;");
+		boolean cancellable = Cancellable.class.isAssignableFrom(type);
+		Object[] listeners = new Object[matching.size()];
+		for (int i = 0; i < matching.size(); i++) {
+			RegisteredHandler handler = matching.get(i);
+			String listenerType = handler.listener.getClass().getName();
+			listeners[i] = handler.listener;
+			cc.addField(CtField.make("private final " + listenerType + " l" + i + ";", cc));
+			constructor.append("this.l").append(i).append(" = (").append(listenerType).append(") listeners[").append(i).append("];");
+			if (handler.ignoreCancelled && cancellable)
+				execute.append("if (!((").append(Cancellable.class.getName()).append(") e).isCancelled())");
+			execute.append("try { this.l").append(i).append('.').append(handler.method.getName())
+					.append("((").append(handler.eventType.getName()).append(") e); } catch (Throwable t) { ")
+					.append(EventBus.class.getName()).append(".handlerFailed(t, \"").append(handler.toString()).append("\"); }");
+		}
+		constructor.append('}');
+		execute.append('}');
+		cc.addConstructor(CtNewConstructor.make(constructor.toString(), cc));
+		cc.addMethod(CtNewMethod.make(execute.toString(), cc));
+		byte[] bytecode = cc.toBytecode();
+		cc.detach();
+
+		Class<?> generated = new GeneratedClassLoader(loaders).define(name, bytecode);
+		return (EventExecutor) generated.getConstructor(Object[].class).newInstance((Object) listeners);
+	}
+
+	/**
+	 * Called by the generated executors when a handler throws an exception
+	 *
+	 * @param t the exception
+	 * @param handler the handler that failed
+	 */
+	public static void handlerFailed(Throwable t, String handler) {
+		EnderLogger.warn("Problem while executing event handler " + handler);
+		EnderLogger.exception(t);
+	}
+
+	private static class RegisteredHandler {
+
+		private final Listener listener;
+		private final Method method;
+		private final Class<? extends Event> eventType;
+		private final EventPriority priority;
+		private final boolean ignoreCancelled;
+		private final int order;
+
+		public RegisteredHandler(Listener listener, Method method, Class<? extends Event> eventType, EventPriority priority, boolean ignoreCancelled, int order) {
+			this.listener = listener;
+			this.method = method;
+			this.eventType = eventType;
+			this.priority = priority;
+			this.ignoreCancelled = ignoreCancelled;
+			this.order = order;
+		}
+
+		@Override
+		public String toString() {
+			return listener.getClass().getName() + "." + method.getName() + "(" + eventType.getSimpleName() + ")";
+		}
+	}
+
+	private static class GeneratedClassLoader extends ClassLoader {
+
+		private final ClassLoader[] loaders;
+
+		public GeneratedClassLoader(Set<ClassLoader> loaders) {
+			super(EventBus.class.getClassLoader());
+			this.loaders = loaders.toArray(new ClassLoader[loaders.size()]);
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			for (ClassLoader loader : loaders) {
+				try {
+					return Class.forName(name, false, loader);
+				} catch (ClassNotFoundException ex) {
+				}
+			}
+			throw new ClassNotFoundException(name);
+		}
+
+		public Class<?> define(String name, byte[] bytecode) {
+			return defineClass(name, bytecode, 0, bytecode.length);
+		}
+	}
+}
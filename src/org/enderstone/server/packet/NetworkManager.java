@@ -73,7 +73,7 @@ public class NetworkManager extends ChannelHandlerAdapter {
 	/**
 	 * MAIN THREAD USE ONLY
 	 */
-	public EnderPlayer player;
+	public volatile EnderPlayer player;
 	public String wantedName;
 	private EncryptionSettings encryptionSettings;
 	public UUID uuid;
@@ -85,6 +85,7 @@ public class NetworkManager extends ChannelHandlerAdapter {
 
 	private final Queue<Packet> packets = new LinkedList<>();
 	private volatile boolean isConnected = true;
+	private volatile boolean compression = false;
 
 	public NetworkManager(Map<InetAddress, Long> connectionThrottlingMap, long maxConnectionThrottle) {
 		this.connectionThrottlingMap = connectionThrottlingMap;
@@ -115,13 +116,46 @@ public class NetworkManager extends ChannelHandlerAdapter {
 		synchronized (packets) {
 			Packet p;
 			while ((p = packets.poll()) != null) {
-				ctx.write(p);
+				if (p instanceof PreEncodedPacket) {
+					writeEncoded(p);
+				} else {
+					ctx.write(p);
+				}
 				p.onSend(this);
 			}
 			ctx.flush();
 		}
 	}
 
+	/**
+	 * Checks if the channel accepts more data without buffering it, this
+	 * becomes false when the client can't keep up with the data we send
+	 *
+	 * @return true if more data can be written
+	 */
+	public boolean isWritable() {
+		return ctx != null && ctx.channel().isWritable();
+	}
+
+	/**
+	 * Writes the encoded form of a packet directly to the handler after the
+	 * compressor, falls back to the normal encoding if that fails
+	 */
+	private void writeEncoded(Packet p) {
+		ByteBuf encoded;
+		try {
+			encoded = ((PreEncodedPacket) p).getEncoded(compression);
+		} catch (IOException ex) {
+			EnderLogger.exception(ex);
+			encoded = null;
+		}
+		if (encoded == null) {
+			ctx.write(p);
+			return;
+		}
+		ctx.pipeline().context(compression ? "packet_w_compressor" : "packet_rw_converter").write(encoded);
+	}
+
 	@Override
 	public void channelRead(ChannelHandlerContext ctx, Object msg) {
 		this.ctx = ctx;
@@ -193,7 +227,7 @@ public class NetworkManager extends ChannelHandlerAdapter {
 	public void sendPacket(Packet... packets) {
 		if (this.isConnected == false)
 			return;
-		synchronized (packets) {
+		synchronized (this.packets) {
 			if (this.isConnected == false)
 				return;
 			for (Packet packet : packets) {
@@ -242,6 +276,9 @@ public class NetworkManager extends ChannelHandlerAdapter {
 		}
 	}
 
+	/**
+	 * Spawns the player on the main thread, this method returns directly
+	 */
 	public void spawnPlayer() {
 		if (player != null)
 			throw new IllegalStateException();
@@ -252,59 +289,55 @@ public class NetworkManager extends ChannelHandlerAdapter {
 		if (this.skinBlob == null)
 			this.skinBlob = PlayerTextureStore.DEFAULT_STORE; // Null oject design pattern
 
-		final Object lock = new Object();
-		synchronized (lock) {
-			Main.getInstance().sendToMainThread(new Runnable() {
-
-				@Override
-				public void run() {
-					EnderWorld world = Main.getInstance().worlds.get(0);
-					EnderLogger.info("Player " + wantedName + " spawning in world: " + world.worldName);
-					EnderPlayer existingPlayer = Main.getInstance().getPlayer(uuid);
-					if (existingPlayer != null) {
-						existingPlayer.networkManager.disconnect("Logged in from another location", false);
-					}
-					player = new EnderPlayer(world, wantedName, NetworkManager.this, uuid, skinBlob);
-
-					world.players.add(player);
-					Main.getInstance().onlinePlayers.add(player);
-					try {
-						sendPacket(new PacketOutLoginSucces(player.uuid.toString(), player.getPlayerName()));
-						sendPacket(new PacketOutJoinGame(player.getEntityId(), (byte) player.clientSettings.gameMode.getId(), (byte) 0, (byte) 1, (byte) 60, "default", false));
-						sendPacket(new PacketOutUpdateTime(0, world.getTime()));
-						Location loc = player.getLocation();
-						player.setLocation(loc.cloneFrom(world.getSpawn()));
-
-						PlayerJoinEvent e = new PlayerJoinEvent(player);
-						Main.getInstance().callEvent(e);
-						if (e.getDisconnectMessage() != null) {
-							disconnect(e.getDisconnectMessage().toPlainText(), false);
-							return;
-						}
+		Main.getInstance().sendToMainThread(new Runnable() {
 
-						world.doChunkUpdatesForPlayer(player, player.chunkInformer, 3);
-						player.teleportInternally(world.getSpawn());
-						player.onSpawn();
-						player.updateClientSettings();
-						sendPacket(new PacketOutSpawnPosition(world.getSpawn()));
-						sendPacket(new PacketOutPlayerPositionLook(loc.getX(), loc.getY(), loc.getZ(), loc.getYaw(), loc.getPitch(), (byte) 0b00000)); // all absolute locations
-						sendPacket(new PacketOutUpdateHealth(player.getHealth(), player.clientSettings.food, player.clientSettings.foodSaturation));
-					} catch (Exception e) {
-						EnderLogger.exception(e);
-					} finally {
-						synchronized (lock) {
-							lock.notifyAll();
-						}
+			@Override
+			public void run() {
+				// the uuid and session lookups run async, the client may have
+				// disconnected in the meantime. disconnectConnection() also runs
+				// on the main thread, so if it ran first isConnected is false
+				// here and no player may be created that nobody removes again
+				if (!isConnected)
+					return;
+				EnderWorld world = Main.getInstance().worlds.get(0);
+				EnderLogger.info("Player " + wantedName + " spawning in world: " + world.worldName);
+				EnderPlayer existingPlayer = Main.getInstance().getPlayer(uuid);
+				if (existingPlayer != null) {
+					existingPlayer.networkManager.disconnect("Logged in from another location", false);
+				}
+				player = new EnderPlayer(world, wantedName, NetworkManager.this, uuid, skinBlob);
+
+				world.players.add(player);
+				Main.getInstance().onlinePlayers.add(player);
+				Main.getInstance().entityRegistry.add(player, world);
+				try {
+					sendPacket(new PacketOutLoginSucces(player.uuid.toString(), player.getPlayerName()));
+					sendPacket(new PacketOutJoinGame(player.getEntityId(), (byte) player.clientSettings.gameMode.getId(), (byte) 0, (byte) 1, (byte) 60, "default", false));
+					sendPacket(new PacketOutUpdateTime(0, world.getTime()));
+					Location loc = player.getLocation();
+					player.setLocation(loc.cloneFrom(world.getSpawn()));
+
+					PlayerJoinEvent e = new PlayerJoinEvent(player);
+					Main.getInstance().callEvent(e);
+					if (e.getDisconnectMessage() != null) {
+						disconnect(e.getDisconnectMessage().toPlainText(), false);
+						return;
 					}
+
+					world.doChunkUpdatesForPlayer(player, player.chunkInformer, 3);
+					player.teleportInternally(world.getSpawn());
+					player.onSpawn();
+					player.updateClientSettings();
+					sendPacket(new PacketOutSpawnPosition(world.getSpawn()));
+					sendPacket(new PacketOutPlayerPositionLook(loc.getX(), loc.getY(), loc.getZ(), loc.getYaw(), loc.getPitch(), (byte) 0b00000)); // all absolute locations
+					sendPacket(new PacketOutUpdateHealth(player.getHealth(), player.clientSettings.food, player.clientSettings.foodSaturation));
+				} catch (Exception e) {
+					EnderLogger.exception(e);
+				} finally {
+					forcePacketFlush(); // the client doesn't send anything before it got the login success
 				}
-			});
-			try {
-				lock.wait();
-			} catch (InterruptedException ex) {
-				Thread.currentThread().interrupt();
 			}
-		}
-
+		});
 	}
 
 	public class EncryptionSettings {
@@ -388,6 +421,7 @@ public class NetworkManager extends ChannelHandlerAdapter {
 	public void enableCompression() {
 		this.ctx.pipeline().addBefore("packet_rw_converter", "packet_r_decompressor", new MinecraftDecompressionCodex(this));
 		this.ctx.pipeline().addBefore("packet_rw_converter", "packet_w_compressor", new MinecraftCompressionCodex(this));
+		this.compression = true;
 	}
 
 	public String digitalName() {
@@ -0,0 +1,42 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.packet;
+
+import io.netty.buffer.ByteBuf;
+import java.io.IOException;
+
+/**
+ * A packet that keeps its encoded form, so the same bytes can be written to
+ * many connections without encoding and compressing them again. The
+ * {@link NetworkManager} writes the returned buffer after the compressor in
+ * the pipeline.
+ *
+ * @author Fernando
+ */
+public interface PreEncodedPacket {
+
+	/**
+	 * Gets the encoded packet, including its length prefix
+	 *
+	 * @param compressed true to get the frame in the compressed format
+	 * @return a buffer the caller owns a reference to, or null to encode the
+	 * packet the normal way
+	 * @throws IOException when the packet couldn't be encoded
+	 */
+	public ByteBuf getEncoded(boolean compressed) throws IOException;
+}
@@ -42,13 +42,23 @@ public class MinecraftCompressionCodex extends MessageToByteEncoder<ByteBuf> {
 		
 		int startSize = incoming.readVarInt();
 		
+		byte[] array = new byte[startSize];
+		incoming.readBytes(array); //the whole uncompressed packet
+		writeCompressed(compressor, array, outgoing);
+	}
+
+	/**
+	 * Writes a packet in the compressed format: the length of the frame, the
+	 * uncompressed length and the deflated packet
+	 *
+	 * @param compressor the deflater to use, reset when this returns
+	 * @param array the packet id and contents
+	 * @param outgoing the buffer to write the frame to
+	 */
+	public static void writeCompressed(Deflater compressor, byte[] array, PacketDataWrapper outgoing) {
+		int startSize = array.length;
 		ByteBuf temporarilyBuf = Unpooled.buffer();
 		try { // compress it
-			
-			byte[] array = new byte[startSize];
-			incoming.readBytes(array); //the whole uncompressed packet
-			//Packet.writeVarInt(array.length, temporarilyBuf);
-
 			compressor.setInput(array);
 			compressor.finish();
 
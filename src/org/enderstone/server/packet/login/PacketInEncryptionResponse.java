@@ -19,16 +19,19 @@ package org.enderstone.server.packet.login;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.concurrent.Callable;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.enderstone.server.EnderLogger;
+import org.enderstone.server.Main;
 import org.enderstone.server.entity.player.PlayerTextureStore;
 import org.enderstone.server.packet.NetworkEncrypter;
 import org.enderstone.server.packet.NetworkManager;
 import org.enderstone.server.packet.Packet;
 import org.enderstone.server.packet.PacketDataWrapper;
+import org.enderstone.server.scheduler.FutureCallback;
 import org.enderstone.server.uuid.ServerRequest;
 
 import static org.enderstone.server.uuid.UUIDFactory.parseUUID;
@@ -72,30 +75,50 @@ public class PacketInEncryptionResponse extends Packet {
 		NetworkManager.EncryptionSettings ec = networkManager.getEncryptionSettings();
 		this.verifyToken = NetworkEncrypter.decrypt(ec.getKeyPair().getPrivate(), this.verifyToken);
 		this.sharedSecret = NetworkEncrypter.decrypt(ec.getKeyPair().getPrivate(), this.sharedSecret);
-		SecretKey key = new SecretKeySpec(sharedSecret, "AES");
+		final SecretKey key = new SecretKeySpec(sharedSecret, "AES");
+		final String hash;
 		try {
-			String hash = new BigInteger(NetworkEncrypter.createHash(ec.getServerid(), ec.getKeyPair().getPublic(), key)).toString(16);
-			String url = "https://sessionserver.mojang.com/session/minecraft/hasJoined?username=" + networkManager.wantedName + "&serverId=" + hash;
-			ServerRequest r = new ServerRequest(url);
-			JSONObject json = r.get();
-			if (json == null) {
-				networkManager.disconnect("invalid encryption token", false);
-				return;
-			}
-			String uuid = json.optString("id", null);
-			networkManager.wantedName = json.optString("name", networkManager.wantedName);
-			if (uuid == null) {
-				networkManager.disconnect("invalid session server response: \n" + url + "\n" + json.toString(), false);
-				return;
-			}
-			networkManager.uuid = parseUUID(uuid);
-			networkManager.skinBlob = new PlayerTextureStore(json.optJSONArray("properties"));
+			hash = new BigInteger(NetworkEncrypter.createHash(ec.getServerid(), ec.getKeyPair().getPublic(), key)).toString(16);
 			networkManager.setupEncryption(key);
-			networkManager.spawnPlayer();
-			networkManager.player.updateClientSettings();
 		} catch (IOException ex) {
 			networkManager.disconnect("internal exception: " + ex.toString(), false);
 			EnderLogger.exception(ex);
+			return;
 		}
+		// the session server may be slow, don't block the network thread while waiting for it
+		Main.getInstance().asyncExecutor.submit("Session server lookup", new Callable<Void>() {
+
+			@Override
+			public Void call() throws IOException {
+				String url = "https://sessionserver.mojang.com/session/minecraft/hasJoined?username=" + networkManager.wantedName + "&serverId=" + hash;
+				ServerRequest r = new ServerRequest(url);
+				JSONObject json = r.get();
+				if (json == null) {
+					networkManager.disconnect("invalid encryption token", false);
+					return null;
+				}
+				String uuid = json.optString("id", null);
+				networkManager.wantedName = json.optString("name", networkManager.wantedName);
+				if (uuid == null) {
+					networkManager.disconnect("invalid session server response: \n" + url + "\n" + json.toString(), false);
+					return null;
+				}
+				networkManager.uuid = parseUUID(uuid);
+				networkManager.skinBlob = new PlayerTextureStore(json.optJSONArray("properties"));
+				networkManager.spawnPlayer();
+				return null;
+			}
+		}).addCallback(new FutureCallback<Void>() {
+
+			@Override
+			public void onSuccess(Void result) {
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				networkManager.disconnect("internal exception: " + cause.toString(), false);
+				EnderLogger.exception(cause);
+			}
+		});
 	}
 }
@@ -31,6 +31,7 @@ import org.enderstone.server.entity.player.PlayerTextureStore;
 import org.enderstone.server.packet.NetworkManager;
 import org.enderstone.server.packet.Packet;
 import org.enderstone.server.packet.PacketDataWrapper;
+import org.enderstone.server.scheduler.FutureCallback;
 import org.enderstone.server.uuid.UUIDFactory;
 
 public class PacketInLoginStart extends Packet {
@@ -84,19 +85,36 @@ public class PacketInLoginStart extends Packet {
 			NetworkManager.EncryptionSettings en = networkManager.getEncryptionSettings();
 			networkManager.sendPacket(new PacketOutEncryptionRequest(en.getServerid(), en.getKeyPair().getPublic(), en.getVerifyToken()));
 		} else {
-			UUIDFactory factory = Main.getInstance().uuidFactory;
-			UUID uuid = factory.getPlayerUUIDAsync(name);
-			PlayerTextureStore texture;
-			if (uuid == null) {
-				texture = PlayerTextureStore.DEFAULT_STORE;
-				uuid = UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes(Charset.forName("UTF_8")));
-			} else {
-				texture = factory.getTextureDataAsync(uuid);
-			}
-			networkManager.wantedName = name;
-			networkManager.uuid = uuid;
-			networkManager.skinBlob = texture;
-			networkManager.spawnPlayer();
+			final UUIDFactory factory = Main.getInstance().uuidFactory;
+			Main.getInstance().asyncExecutor.submit("UUID lookup", new Runnable() {
+
+				@Override
+				public void run() {
+					UUID uuid = factory.getPlayerUUIDAsync(name);
+					PlayerTextureStore texture;
+					if (uuid == null) {
+						texture = PlayerTextureStore.DEFAULT_STORE;
+						uuid = UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes(Charset.forName("UTF_8")));
+					} else {
+						texture = factory.getTextureDataAsync(uuid);
+					}
+					networkManager.wantedName = name;
+					networkManager.uuid = uuid;
+					networkManager.skinBlob = texture;
+					networkManager.spawnPlayer();
+				}
+			}).addCallback(new FutureCallback<Void>() {
+
+				@Override
+				public void onSuccess(Void result) {
+				}
+
+				@Override
+				public void onFailure(Throwable cause) {
+					networkManager.disconnect("internal exception: " + cause.toString(), false);
+					EnderLogger.exception(cause);
+				}
+			});
 		}
 	}
 
@@ -88,7 +88,7 @@ public class PacketInPlayerDigging extends Packet {
 					}
 				} else if (getStatus() == 2) {
 					Block b =  world.getBlock(loc);
-					if(Main.getInstance().callEvent(new PlayerBreakBlockEvent(networkManager.player, b))){
+					if (Main.getInstance().hasListeners(PlayerBreakBlockEvent.class) && Main.getInstance().callEvent(new PlayerBreakBlockEvent(networkManager.player, b))) {
 						//tell the client it was cancelled by replacing the block
 						networkManager.player.getNetworkManager().sendPacket(new PacketOutBlockChange(loc, b.getBlock().getId(), b.getData()));
 						return;
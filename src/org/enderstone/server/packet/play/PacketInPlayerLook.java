@@ -69,11 +69,13 @@ public class PacketInPlayerLook extends Packet {
 					return;
 				}
 				
-				Location newLoc = loc.clone();
-				newLoc.setPitch(getPitch());
-				newLoc.setYaw(getYaw());
-				if(Main.getInstance().callEvent(new PlayerMoveEvent(networkManager.player, loc, newLoc))){
-					return;
+				if (Main.getInstance().hasListeners(PlayerMoveEvent.class)) {
+					Location newLoc = loc.clone();
+					newLoc.setPitch(getPitch());
+					newLoc.setYaw(getYaw());
+					if (Main.getInstance().callEvent(new PlayerMoveEvent(networkManager.player, loc, newLoc))) {
+						return;
+					}
 				}
 				
 				try {
@@ -90,12 +90,14 @@ public class PacketInPlayerPosition extends Packet {
 					networkManager.player.waitingForValidMoveAfterTeleport = 0;
 				}
 
-				Location newLoc = loc.clone();
-				newLoc.setX(getX());
-				newLoc.setY(getFeetY());
-				newLoc.setZ(getZ());
-				if (Main.getInstance().callEvent(new PlayerMoveEvent(networkManager.player, loc, newLoc))) {
-					return;
+				if (Main.getInstance().hasListeners(PlayerMoveEvent.class)) {
+					Location newLoc = loc.clone();
+					newLoc.setX(getX());
+					newLoc.setY(getFeetY());
+					newLoc.setZ(getZ());
+					if (Main.getInstance().callEvent(new PlayerMoveEvent(networkManager.player, loc, newLoc))) {
+						return;
+					}
 				}
 
 				networkManager.player.broadcastLocation(new Location(networkManager.player.getWorld(), getX(), getFeetY(), getZ(), networkManager.player.getLocation().getYaw(), networkManager.player.getLocation().getPitch()));
@@ -82,14 +82,16 @@ public class PacketInPlayerPositionLook extends Packet {
 					}
 					networkManager.player.waitingForValidMoveAfterTeleport = 0;
 				}
-				Location newLoc = loc.clone();
-				newLoc.setX(getX());
-				newLoc.setY(getFeetY());
-				newLoc.setZ(getZ());
-				newLoc.setPitch(getPitch());
-				newLoc.setYaw(getYaw());
-				if(Main.getInstance().callEvent(new PlayerMoveEvent(networkManager.player, loc, newLoc))){
-					return;
+				if (Main.getInstance().hasListeners(PlayerMoveEvent.class)) {
+					Location newLoc = loc.clone();
+					newLoc.setX(getX());
+					newLoc.setY(getFeetY());
+					newLoc.setZ(getZ());
+					newLoc.setPitch(getPitch());
+					newLoc.setYaw(getYaw());
+					if (Main.getInstance().callEvent(new PlayerMoveEvent(networkManager.player, loc, newLoc))) {
+						return;
+					}
 				}
 				
 				networkManager.player.broadcastLocation(new Location(networkManager.player.getWorld(), getX(), getFeetY(), getZ(), getYaw(), getPitch()));
@@ -0,0 +1,93 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.packet.play;
+
+import java.io.IOException;
+import org.enderstone.server.packet.Packet;
+import org.enderstone.server.packet.PacketDataWrapper;
+
+/**
+ * Sends multiple full chunk columns in one packet, every column has the same
+ * data format as a ground up continuous {@link PacketOutChunkData}
+ *
+ * @author Fernando
+ */
+public class PacketOutMapChunkBulk extends Packet {
+
+	private boolean skyLightSent;
+	private int[] x;
+	private int[] z;
+	private short[] primaryBitMap;
+	private byte[][] data;
+
+	public PacketOutMapChunkBulk(boolean skyLightSent, int[] x, int[] z, short[] primaryBitMap, byte[][] data) {
+		this.skyLightSent = skyLightSent;
+		this.x = x;
+		this.z = z;
+		this.primaryBitMap = primaryBitMap;
+		this.data = data;
+	}
+
+	@Override
+	public void read(PacketDataWrapper wrapper) throws IOException {
+		throw new RuntimeException("Packet " + this.getClass().getSimpleName() + " with ID 0x" + Integer.toHexString(getId()) + " cannot be read.");
+	}
+
+	@Override
+	public void write(PacketDataWrapper wrapper) throws IOException {
+		wrapper.writeBoolean(skyLightSent);
+		wrapper.writeVarInt(data.length);
+		for (int i = 0; i < data.length; i++) {
+			wrapper.writeInt(x[i]);
+			wrapper.writeInt(z[i]);
+			wrapper.writeShort(primaryBitMap[i]);
+		}
+		for (byte[] column : data) {
+			wrapper.writeBytes(column);
+		}
+	}
+
+	@Override
+	public int getSize() throws IOException {
+		int size = 1 + getVarIntSize(data.length) + data.length * (2 * getIntSize() + getShortSize()) + getVarIntSize(getId());
+		for (byte[] column : data) {
+			size += column.length;
+		}
+		return size;
+	}
+
+	@Override
+	public byte getId() {
+		return 0x26;
+	}
+
+	/**
+	 * Gets the amount of bytes a column adds to this packet
+	 *
+	 * @param dataLength the length of the data of the column
+	 * @return the size in bytes
+	 */
+	public static int getColumnSize(int dataLength) {
+		return 2 * getIntSize() + getShortSize() + dataLength;
+	}
+
+	@Override
+	public String toString() {
+		return "PacketOutMapChunkBulk{" + "columns=" + data.length + ", skyLightSent=" + skyLightSent + '}';
+	}
+}
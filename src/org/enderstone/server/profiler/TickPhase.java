@@ -0,0 +1,64 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.profiler;
+
+/**
+ * The parts a server tick is made of
+ *
+ * @author Fernando
+ */
+public enum TickPhase {
+
+	TICK("Full tick"),
+	TASKS("Task drain"),
+	SCHEDULER("Scheduled tasks"),
+	PLAYER_TICK("Player ticks"),
+	KEEP_ALIVE("Keep alives"),
+	CHUNK_UPDATES("Chunk updates"),
+	WORLD_TICK("World tick"),
+	ENTITY_UPDATES("Entity updates", true),
+	TILE_BLOCKS("Tile blocks", true),
+	LIGHTING("Lighting", true),
+	CHUNK_CLEANUP("Chunk cleanup", true);
+
+	private final String displayName;
+	private final boolean worldOnly;
+
+	private TickPhase(String displayName) {
+		this(displayName, false);
+	}
+
+	private TickPhase(String displayName, boolean worldOnly) {
+		this.displayName = displayName;
+		this.worldOnly = worldOnly;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	/**
+	 * Checks if this phase is only timed per world, the server wide numbers of
+	 * these phases are the sum of all worlds
+	 *
+	 * @return true if this phase only runs inside worlds
+	 */
+	public boolean isWorldOnly() {
+		return worldOnly;
+	}
+}
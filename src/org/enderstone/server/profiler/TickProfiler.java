@@ -0,0 +1,327 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.profiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Measures how long every phase of the server tick takes. Time spend inside a
+ * section is summed during a tick, at the end of the tick the sum is stored in
+ * a ring buffer so the percentiles over the last samples can be calculated.
+ *
+ * A section may only be timed by one thread at the same time, per world
+ * sections are only timed by the thread ticking that world. Sections can be
+ * nested, every thread keeps track of the section it is timing right now so
+ * the {@link org.enderstone.server.Watchdog} can tell where a thread hangs.
+ *
+ * @author Fernando
+ */
+public class TickProfiler {
+
+	/**
+	 * Amount of ticks kept for every section, 30 seconds at 20 TPS
+	 */
+	public static final int SAMPLES = 600;
+	private final Section[] globalSections;
+	private final List<Section> sections = new CopyOnWriteArrayList<>();
+	/**
+	 * The state of every thread that timed a section, threads that died are
+	 * removed by the garbage collector
+	 */
+	private final Map<Thread, ThreadState> threads = Collections.synchronizedMap(new WeakHashMap<Thread, ThreadState>());
+	private final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+
+		@Override
+		protected ThreadState initialValue() {
+			ThreadState state = new ThreadState();
+			threads.put(Thread.currentThread(), state);
+			return state;
+		}
+	};
+
+	private static class ThreadState {
+
+		private volatile Section current;
+	}
+
+	public TickProfiler() {
+		TickPhase[] phases = TickPhase.values();
+		this.globalSections = new Section[phases.length];
+		for (int i = 0; i < phases.length; i++) {
+			this.globalSections[i] = new Section(null, phases[i]);
+			this.sections.add(this.globalSections[i]);
+		}
+	}
+
+	/**
+	 * Gets the server wide section for a phase
+	 *
+	 * @param phase the phase
+	 * @return the section
+	 */
+	public Section getSection(TickPhase phase) {
+		return globalSections[phase.ordinal()];
+	}
+
+	/**
+	 * Creates a section for a phase inside a world, callers should keep a
+	 * reference to the section instead of creating a new one every tick
+	 *
+	 * @param world the name of the world
+	 * @param phase the phase
+	 * @return the new section
+	 */
+	public Section createWorldSection(String world, TickPhase phase) {
+		Section section = new Section(world, phase);
+		this.sections.add(section);
+		return section;
+	}
+
+	/**
+	 * Removes a section created by createWorldSection
+	 *
+	 * @param section the section to remove
+	 */
+	public void removeWorldSection(Section section) {
+		this.sections.remove(section);
+	}
+
+	/**
+	 * Gets the innermost section a thread is timing right now, this is the
+	 * section that is running when the thread hangs
+	 *
+	 * @param thread the thread
+	 * @return the section, or null if the thread isn't inside a section
+	 */
+	public Section getCurrentSection(Thread thread) {
+		ThreadState state = threads.get(thread);
+		return state == null ? null : state.current;
+	}
+
+	/**
+	 * Gets the innermost section of every thread that is inside a section
+	 *
+	 * @return the sections by thread
+	 */
+	public Map<Thread, Section> getCurrentSections() {
+		Map<Thread, Section> result = new HashMap<>();
+		synchronized (threads) {
+			for (Map.Entry<Thread, ThreadState> entry : threads.entrySet()) {
+				Section section = entry.getValue().current;
+				if (section != null) {
+					result.put(entry.getKey(), section);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Stores the time measured during this tick for all sections, must be
+	 * called by the main thread after all world workers are done. The server
+	 * wide section of a phase that only runs inside worlds gets the sum of the
+	 * world sections.
+	 */
+	public void endTick() {
+		for (Section section : sections) {
+			if (section.world != null && section.phase.isWorldOnly()) {
+				globalSections[section.phase.ordinal()].current += section.current;
+			}
+		}
+		for (Section section : sections) {
+			section.flush();
+		}
+	}
+
+	/**
+	 * Clears all stored samples
+	 */
+	public void reset() {
+		for (Section section : sections) {
+			section.reset();
+		}
+	}
+
+	/**
+	 * Gets all the sections that belong to a world
+	 *
+	 * @return the sections, sorted by world name
+	 */
+	public List<Section> getWorldSections() {
+		List<Section> list = new ArrayList<>();
+		for (Section section : sections) {
+			if (section.getWorld() != null) {
+				list.add(section);
+			}
+		}
+		Collections.sort(list, new Comparator<Section>() {
+
+			@Override
+			public int compare(Section o1, Section o2) {
+				int c = o1.getWorld().compareTo(o2.getWorld());
+				return c != 0 ? c : o1.getPhase().compareTo(o2.getPhase());
+			}
+		});
+		return list;
+	}
+
+	public class Section {
+
+		private final String world;
+		private final TickPhase phase;
+		private final long[] samples = new long[SAMPLES];
+		private int pointer = 0;
+		private int count = 0;
+		private long current = 0;
+		/**
+		 * The section the timing thread was in before this one was started
+		 */
+		private Section parent;
+
+		private Section(String world, TickPhase phase) {
+			this.world = world;
+			this.phase = phase;
+		}
+
+		/**
+		 * Starts timing this section
+		 *
+		 * @return the start time, to be passed to {@link #end(long)}
+		 */
+		public long start() {
+			ThreadState state = threadState.get();
+			parent = state.current;
+			state.current = this;
+			return System.nanoTime();
+		}
+
+		/**
+		 * Stops timing this section
+		 *
+		 * @param start the value returned by {@link #start()}
+		 */
+		public void end(long start) {
+			current += System.nanoTime() - start;
+			threadState.get().current = parent;
+			parent = null;
+		}
+
+		private synchronized void flush() {
+			samples[pointer] = current;
+			if (++pointer >= samples.length)
+				pointer = 0;
+			if (count < samples.length)
+				count++;
+			current = 0;
+		}
+
+		private synchronized void reset() {
+			pointer = 0;
+			count = 0;
+		}
+
+		public String getWorld() {
+			return world;
+		}
+
+		public TickPhase getPhase() {
+			return phase;
+		}
+
+		public String getName() {
+			return world == null ? phase.getDisplayName() : world + ": " + phase.getDisplayName();
+		}
+
+		/**
+		 * Calculates the statistics over the stored samples
+		 *
+		 * @return the statistics, all times are in nanoseconds
+		 */
+		public Stats getStats() {
+			long[] sorted;
+			synchronized (this) {
+				sorted = Arrays.copyOf(samples, count);
+			}
+			Arrays.sort(sorted);
+			return new Stats(sorted);
+		}
+
+		@Override
+		public String toString() {
+			return "Section{" + getName() + "}";
+		}
+	}
+
+	public static class Stats {
+
+		private final long[] sorted;
+		private final long total;
+
+		private Stats(long[] sorted) {
+			this.sorted = sorted;
+			long t = 0;
+			for (long l : sorted)
+				t += l;
+			this.total = t;
+		}
+
+		public int getSampleCount() {
+			return sorted.length;
+		}
+
+		/**
+		 * Gets the given percentile of the samples
+		 *
+		 * @param percentile the percentile, between 0 and 100
+		 * @return the time in nanoseconds, or 0 if there are no samples
+		 */
+		public long getPercentile(double percentile) {
+			if (sorted.length == 0)
+				return 0;
+			int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+		}
+
+		public long getMax() {
+			return sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+		}
+
+		public double getAverage() {
+			return sorted.length == 0 ? 0 : total / (double) sorted.length;
+		}
+
+		/**
+		 * Formats the p50, p95, p99 and max in milliseconds
+		 *
+		 * @return the formatted text
+		 */
+		public String format() {
+			return String.format("p50 %.2f p95 %.2f p99 %.2f max %.2f ms",
+					getPercentile(50) / 1_000_000d, getPercentile(95) / 1_000_000d,
+					getPercentile(99) / 1_000_000d, getMax() / 1_000_000d);
+		}
+	}
+}
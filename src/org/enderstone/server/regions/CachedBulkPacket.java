@@ -0,0 +1,164 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import org.enderstone.server.packet.Packet;
+import org.enderstone.server.packet.PacketDataWrapper;
+import org.enderstone.server.packet.PreEncodedPacket;
+import org.enderstone.server.packet.play.PacketOutMapChunkBulk;
+
+/**
+ * A chunk bulk packet that is compressed from the deflated columns kept by
+ * the {@link EnderChunkMap}s. Only the small header with the positions is
+ * deflated for every connection, the columns themselves are deflated once
+ * however many players receive them in whatever combination.
+ *
+ * Without compression, or when a column has been released, the packet is
+ * encoded the normal way.
+ *
+ * @author Fernando
+ */
+public class CachedBulkPacket extends PacketOutMapChunkBulk implements PreEncodedPacket {
+
+	private static final int ADLER_BASE = 65521;
+	private final int[] x;
+	private final int[] z;
+	private final short[] primaryBitMap;
+	private final EnderChunkMap[] maps;
+
+	/**
+	 * Creates a new CachedBulkPacket
+	 *
+	 * @param x the chunk x of every column
+	 * @param z the chunk z of every column
+	 * @param primaryBitMap the sections sent of every column
+	 * @param data the chunk data of every column, taken before the maps could
+	 * be released
+	 * @param maps the maps the chunk data came from
+	 */
+	public CachedBulkPacket(int[] x, int[] z, short[] primaryBitMap, byte[][] data, EnderChunkMap[] maps) {
+		super(true, x, z, primaryBitMap, data);
+		this.x = x;
+		this.z = z;
+		this.primaryBitMap = primaryBitMap;
+		this.maps = maps;
+	}
+
+	@Override
+	public ByteBuf getEncoded(boolean compressed) throws IOException {
+		if (!compressed) {
+			return null;
+		}
+		EnderChunkMap.DeflatedColumn[] columns = new EnderChunkMap.DeflatedColumn[maps.length];
+		for (int i = 0; i < maps.length; i++) {
+			columns[i] = maps[i].getDeflatedColumn();
+			if (columns[i] == null) {
+				return null;
+			}
+		}
+		byte[] header = encodeHeader();
+		byte[] deflatedHeader;
+		Deflater deflater = new Deflater(8, true);
+		try {
+			deflatedHeader = EnderChunkMap.DeflatedColumn.deflateSegment(deflater, header);
+		} finally {
+			deflater.end();
+		}
+		int length = header.length;
+		int deflatedLength = 2 + deflatedHeader.length + 2 + 4;
+		long adler = adler32(header);
+		for (EnderChunkMap.DeflatedColumn column : columns) {
+			length += column.length;
+			deflatedLength += column.data.length;
+			adler = combineAdler32(adler, column.adler & 0xFFFFFFFFL, column.length);
+		}
+		ByteBuf out = Unpooled.buffer(deflatedLength + 10);
+		PacketDataWrapper wrapper = new PacketDataWrapper(null, out);
+		wrapper.writeVarInt(deflatedLength + Packet.getVarIntSize(length));
+		wrapper.writeVarInt(length);
+		out.writeByte(0x78); // zlib header: deflate with a 32K window
+		out.writeByte(0xDA);
+		out.writeBytes(deflatedHeader);
+		for (EnderChunkMap.DeflatedColumn column : columns) {
+			out.writeBytes(column.data);
+		}
+		out.writeByte(0x03); // empty final block
+		out.writeByte(0x00);
+		out.writeInt((int) adler);
+		return out;
+	}
+
+	/**
+	 * Encodes the packet id and everything in front of the column data
+	 */
+	private byte[] encodeHeader() {
+		ByteBuf buf = Unpooled.buffer(6 + x.length * 10);
+		try {
+			PacketDataWrapper wrapper = new PacketDataWrapper(null, buf);
+			wrapper.writeVarInt(getId());
+			wrapper.writeBoolean(true);
+			wrapper.writeVarInt(x.length);
+			for (int i = 0; i < x.length; i++) {
+				wrapper.writeInt(x[i]);
+				wrapper.writeInt(z[i]);
+				wrapper.writeShort(primaryBitMap[i]);
+			}
+			byte[] header = new byte[buf.readableBytes()];
+			buf.readBytes(header);
+			return header;
+		} finally {
+			buf.release();
+		}
+	}
+
+	private static long adler32(byte[] data) {
+		Adler32 checksum = new Adler32();
+		checksum.update(data, 0, data.length);
+		return checksum.getValue();
+	}
+
+	/**
+	 * Calculates the Adler-32 checksum of two blocks of data joined together
+	 * from the checksums of the blocks, like adler32_combine of zlib
+	 */
+	static long combineAdler32(long adler1, long adler2, long length2) {
+		long rem = length2 % ADLER_BASE;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = rem * sum1 % ADLER_BASE;
+		sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+		sum2 += (adler1 >> 16 & 0xFFFF) + (adler2 >> 16 & 0xFFFF) + ADLER_BASE - rem;
+		if (sum1 >= ADLER_BASE) {
+			sum1 -= ADLER_BASE;
+		}
+		if (sum1 >= ADLER_BASE) {
+			sum1 -= ADLER_BASE;
+		}
+		if (sum2 >= ADLER_BASE << 1) {
+			sum2 -= ADLER_BASE << 1;
+		}
+		if (sum2 >= ADLER_BASE) {
+			sum2 -= ADLER_BASE;
+		}
+		return sum1 | sum2 << 16;
+	}
+}
@@ -21,9 +21,43 @@ import java.util.List;
 import java.util.Random;
 import org.enderstone.server.regions.generators.MultiChunkBlockPopulator;
 
+/**
+ * Generates the terrain of new chunks.
+ *
+ * Thread safety: {@link #generateExtBlockSections(EnderWorld, Random, int, int)}
+ * is called by multiple generator threads at the same time, also for the same
+ * world. It must be a pure function of the world seed and the chunk
+ * coordinates: it may read {@link EnderWorld#getSeed()} and use the random it
+ * gets, but it may not touch other state of the world (chunks, entities,
+ * players) or write to fields of the generator shared between calls. Caching
+ * values derived from the seed only is fine as long as the cache is safe to
+ * share between threads.
+ *
+ * The populators are only used on the main thread, after the chunk and its
+ * neighbours have been added to the world, so they may change the world.
+ *
+ * @author Fernando
+ */
 public interface ChunkGenerator {
 
+	/**
+	 * Generates the blocks of a chunk, may be called from any thread
+	 *
+	 * @param world the world, only the seed may be used
+	 * @param random random seeded from the chunk coordinates
+	 * @param x the chunk x
+	 * @param z the chunk z
+	 * @return 16 sections of 4096 blocks in y, z, x order, sections may be null
+	 * when they are empty
+	 */
 	public BlockId[][] generateExtBlockSections(EnderWorld world, Random random, int x, int z);
 
+	/**
+	 * Gets the populators that decorate the chunks after generation, only
+	 * called from the main thread
+	 *
+	 * @param world the world
+	 * @return the populators
+	 */
 	public List<MultiChunkBlockPopulator> getDefaultPopulators(EnderWorld world);
 }
@@ -0,0 +1,140 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the encoded chunk packets of the most recently sent chunks alive, up
+ * to a maximum amount of memory. The least recently sent entries are evicted
+ * first, evicted entries are released and rebuilt by the chunk the next time
+ * they are needed.
+ *
+ * @author Fernando
+ */
+public class ChunkPacketCache {
+
+	/**
+	 * The cached entries in least recently used order, with the memory that
+	 * was counted for them
+	 */
+	private final Map<EnderChunkMap, Integer> entries = new LinkedHashMap<>(256, 0.75f, true);
+	private long maxMemory;
+	private long memory;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Creates a new ChunkPacketCache
+	 *
+	 * @param maxMemory the maximum memory used by the cached entries in bytes
+	 */
+	public ChunkPacketCache(long maxMemory) {
+		this.maxMemory = maxMemory;
+	}
+
+	/**
+	 * Marks an entry as used, adding it to the cache if it isn't in the cache
+	 * yet, this may evict older entries
+	 *
+	 * @param map the entry
+	 * @param hit true if the entry was reused, false if it was just built
+	 */
+	public synchronized void access(EnderChunkMap map, boolean hit) {
+		if (hit) {
+			hits++;
+		} else {
+			misses++;
+		}
+		int size = map.getMemoryUsage();
+		Integer old = entries.put(map, size);
+		memory += size - (old == null ? 0 : old);
+		evict(map);
+	}
+
+	/**
+	 * Updates the memory counted for an entry after its encoded packets got
+	 * built
+	 *
+	 * @param map the entry
+	 */
+	public synchronized void resize(EnderChunkMap map) {
+		Integer old = entries.get(map);
+		if (old != null) {
+			int size = map.getMemoryUsage();
+			entries.put(map, size);
+			memory += size - old;
+			evict(map);
+		}
+	}
+
+	/**
+	 * Removes and releases an entry
+	 *
+	 * @param map the entry
+	 */
+	public synchronized void remove(EnderChunkMap map) {
+		Integer old = entries.remove(map);
+		if (old != null) {
+			memory -= old;
+		}
+		map.release();
+	}
+
+	private void evict(EnderChunkMap keep) {
+		Iterator<Map.Entry<EnderChunkMap, Integer>> it = entries.entrySet().iterator();
+		while (memory > maxMemory && it.hasNext()) {
+			Map.Entry<EnderChunkMap, Integer> eldest = it.next();
+			if (eldest.getKey() == keep) {
+				continue;
+			}
+			it.remove();
+			memory -= eldest.getValue();
+			eldest.getKey().release();
+			evictions++;
+		}
+	}
+
+	public synchronized void setMaxMemory(long maxMemory) {
+		this.maxMemory = maxMemory;
+		evict(null);
+	}
+
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	public synchronized long getMemory() {
+		return memory;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+/**
+ * The blocks of a 16x16x16 part of a chunk. Every block is stored as a state,
+ * the block id shifted left 4 bits combined with the 4 bit block data.
+ *
+ * The states are stored as indexes into a small palette of the states used in
+ * this section, packed into longs with as few bits as needed. A section with
+ * only one state doesn't store any indexes at all, and a section with more
+ * than 256 different states stores the states directly using 16 bits.
+ *
+ * Indexes are stored in y, z, x order, the same as the section arrays of the
+ * chunk format.
+ *
+ * @author Fernando
+ */
+public class ChunkSection {
+
+	public static final int BLOCKS = 16 * 16 * 16;
+	private static final int MIN_BITS = 4;
+	private static final int MAX_PALETTE_BITS = 8;
+	private static final int DIRECT_BITS = 16;
+
+	/**
+	 * The states used in this section, null when the states are stored
+	 * directly
+	 */
+	private int[] palette;
+	private int paletteSize;
+	/**
+	 * Bits per entry, 0 when the section only contains palette[0]
+	 */
+	private int bits;
+	private long[] storage;
+
+	/**
+	 * Creates a section filled with one state
+	 *
+	 * @param state the state, id &lt;&lt; 4 | data
+	 */
+	public ChunkSection(int state) {
+		this.palette = new int[] { state };
+		this.paletteSize = 1;
+		this.bits = 0;
+	}
+
+	/**
+	 * Creates an empty section, filled with air
+	 */
+	public ChunkSection() {
+		this(0);
+	}
+
+	/**
+	 * Creates a section from separate id and data arrays
+	 *
+	 * @param ids 4096 block ids
+	 * @param data 4096 block data values, or null for all 0
+	 */
+	public ChunkSection(short[] ids, byte[] data) {
+		this(data == null ? ids[0] << 4 : ids[0] << 4 | data[0] & 0xF);
+		for (int i = 1; i < BLOCKS; i++) {
+			set(i, data == null ? ids[i] << 4 : ids[i] << 4 | data[i] & 0xF);
+		}
+	}
+
+	private ChunkSection(ChunkSection other) {
+		this.palette = other.palette == null ? null : other.palette.clone();
+		this.paletteSize = other.paletteSize;
+		this.bits = other.bits;
+		this.storage = other.storage == null ? null : other.storage.clone();
+	}
+
+	/**
+	 * Gets the index of a block inside a section
+	 *
+	 * @param x 0-15
+	 * @param y 0-15
+	 * @param z 0-15
+	 * @return the index
+	 */
+	public static int index(int x, int y, int z) {
+		return (y << 8) | (z << 4) | x;
+	}
+
+	public int get(int index) {
+		if (bits == 0) {
+			return palette[0];
+		}
+		int value = getRawValue(index);
+		return palette == null ? value : palette[value];
+	}
+
+	public int getId(int index) {
+		return get(index) >>> 4;
+	}
+
+	public int getData(int index) {
+		return get(index) & 0xF;
+	}
+
+	public void set(int index, int state) {
+		if (palette == null) {
+			setRaw(index, state);
+			return;
+		}
+		int value = indexOf(state);
+		if (value < 0) {
+			if (bits == 0 && paletteSize == 1) {
+				resize(MIN_BITS);
+			} else if (paletteSize == 1 << bits) {
+				resize(bits >= MAX_PALETTE_BITS ? DIRECT_BITS : bits + 1);
+				if (palette == null) {
+					setRaw(index, state);
+					return;
+				}
+			}
+			value = paletteSize;
+			if (value == palette.length) {
+				int[] grown = new int[palette.length * 2];
+				System.arraycopy(palette, 0, grown, 0, paletteSize);
+				palette = grown;
+			}
+			palette[paletteSize++] = state;
+		}
+		if (bits != 0) {
+			setRaw(index, value);
+		}
+	}
+
+	private int indexOf(int state) {
+		for (int i = 0; i < paletteSize; i++) {
+			if (palette[i] == state) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void setRaw(int index, int value) {
+		int perLong = 64 / bits;
+		int shift = index % perLong * bits;
+		long mask = ((1L << bits) - 1) << shift;
+		int i = index / perLong;
+		storage[i] = storage[i] & ~mask | ((long) value << shift) & mask;
+	}
+
+	/**
+	 * Changes the amount of bits per entry, copying the current blocks
+	 */
+	private void resize(int newBits) {
+		long[] newStorage = new long[(BLOCKS + 64 / newBits - 1) / (64 / newBits)];
+		boolean direct = newBits == DIRECT_BITS;
+		if (bits != 0 || direct) {
+			ChunkSection old = new ChunkSection(this);
+			this.bits = newBits;
+			this.storage = newStorage;
+			if (direct) {
+				this.palette = null;
+				this.paletteSize = 0;
+			}
+			for (int i = 0; i < BLOCKS; i++) {
+				setRaw(i, direct ? old.get(i) : old.getRawValue(i));
+			}
+		} else {
+			// single value, all indexes are 0 already
+			this.bits = newBits;
+			this.storage = newStorage;
+		}
+	}
+
+	private int getRawValue(int index) {
+		int perLong = 64 / bits;
+		return (int) (storage[index / perLong] >>> (index % perLong * bits)) & ((1 << bits) - 1);
+	}
+
+	/**
+	 * Checks if every block of this section has the same state
+	 *
+	 * @return true if this section uses the single value storage
+	 */
+	public boolean isSingleValue() {
+		return bits == 0;
+	}
+
+	/**
+	 * Checks if this section only contains air, without looking at the blocks
+	 * when the section uses the single value storage
+	 *
+	 * @return true if this is empty
+	 */
+	public boolean isEmpty() {
+		if (bits == 0) {
+			return palette[0] == 0;
+		}
+		for (int i = 0; i < BLOCKS; i++) {
+			if (get(i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getBitsPerEntry() {
+		return bits;
+	}
+
+	/**
+	 * Gets the amount of different states in the palette, including states
+	 * that aren't used anymore
+	 *
+	 * @return the palette size, or 0 when the states are stored directly
+	 */
+	public int getPaletteSize() {
+		return paletteSize;
+	}
+
+	/**
+	 * Gets a state from the palette, every state in this section is one of
+	 * the palette states unless the states are stored directly
+	 *
+	 * @param index the index in the palette, less than
+	 * {@link #getPaletteSize()}
+	 * @return the state
+	 */
+	public int getPaletteEntry(int index) {
+		if (index >= paletteSize) {
+			throw new IndexOutOfBoundsException(index + " >= " + paletteSize);
+		}
+		return palette[index];
+	}
+
+	public ChunkSection copy() {
+		return new ChunkSection(this);
+	}
+}
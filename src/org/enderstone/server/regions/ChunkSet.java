@@ -0,0 +1,39 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+import java.util.Set;
+
+/**
+ * A set of chunks that can be looked up by their position
+ *
+ * @author Fernando
+ */
+public interface ChunkSet extends Set<EnderChunk> {
+
+	/**
+	 * Gets the chunk at a position
+	 *
+	 * @param x the chunk x
+	 * @param z the chunk z
+	 * @return the chunk, or null if this set has no chunk at the position
+	 */
+	public EnderChunk get(int x, int z);
+
+	public boolean contains(int x, int z);
+}
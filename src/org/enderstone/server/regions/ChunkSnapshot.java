@@ -0,0 +1,122 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jnbt.ByteArrayTag;
+import org.jnbt.ByteTag;
+import org.jnbt.CompoundTag;
+import org.jnbt.IntTag;
+import org.jnbt.ListTag;
+import org.jnbt.Tag;
+
+/**
+ * Immutable copy of the blocks of a chunk, used to save chunks outside the
+ * main thread. The section arrays are shared with the chunk, the chunk copies
+ * a section before it changes it, so creating a snapshot doesn't copy any
+ * blocks.
+ *
+ * @author Fernando
+ */
+public class ChunkSnapshot {
+
+	private final int x;
+	private final int z;
+	private final ChunkSection[] sections;
+	private final byte[] biome;
+	private final boolean populated;
+
+	ChunkSnapshot(int x, int z, ChunkSection[] sections, byte[] biome, boolean populated) {
+		this.x = x;
+		this.z = z;
+		this.sections = sections;
+		this.biome = biome;
+		this.populated = populated;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getZ() {
+		return z;
+	}
+
+	ChunkSection[] getSections() {
+		return sections;
+	}
+
+	byte[] getBiomes() {
+		return biome;
+	}
+
+	public boolean isPopulated() {
+		return populated;
+	}
+
+	/**
+	 * Serializes the snapshot in the anvil chunk format, safe to call from any
+	 * thread
+	 *
+	 * @return the root tag of the chunk
+	 */
+	public CompoundTag saveToNBT() {
+		List<Tag> sectionTags = new ArrayList<>();
+		for (int i = 0; i < sections.length; i++) {
+			ChunkSection blockSection = sections[i];
+			if (blockSection == null) {
+				continue;
+			}
+			byte[] blocks = new byte[4096];
+			byte[] add = null;
+			byte[] meta = new byte[2048];
+			for (int j = 0; j < ChunkSection.BLOCKS; j++) {
+				int state = blockSection.get(j);
+				int id = state >>> 4;
+				blocks[j] = (byte) id;
+				if (id > 255) {
+					if (add == null) {
+						add = new byte[2048];
+					}
+					add[j >> 1] |= ((id >> 8) & 0xF) << ((j & 1) << 2);
+				}
+				meta[j >> 1] |= (state & 0xF) << ((j & 1) << 2);
+			}
+			Map<String, Tag> section = new HashMap<>();
+			section.put("Y", new ByteTag("Y", (byte) i));
+			section.put("Blocks", new ByteArrayTag("Blocks", blocks));
+			section.put("Data", new ByteArrayTag("Data", meta));
+			if (add != null) {
+				section.put("Add", new ByteArrayTag("Add", add));
+			}
+			sectionTags.add(new CompoundTag("", section));
+		}
+		Map<String, Tag> level = new HashMap<>();
+		level.put("xPos", new IntTag("xPos", x));
+		level.put("zPos", new IntTag("zPos", z));
+		level.put("TerrainPopulated", new ByteTag("TerrainPopulated", (byte) (populated ? 1 : 0)));
+		level.put("Biomes", new ByteArrayTag("Biomes", biome));
+		level.put("Sections", new ListTag("Sections", CompoundTag.class, sectionTags));
+		Map<String, Tag> root = new HashMap<>();
+		root.put("Level", new CompoundTag("Level", level));
+		return new CompoundTag("", root);
+	}
+}
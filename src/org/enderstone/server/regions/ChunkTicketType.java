@@ -0,0 +1,47 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+/**
+ * The reasons a chunk is kept loaded. Every holder adds a ticket of its type
+ * to the chunk and removes it again when it's done with the chunk, the chunk
+ * is queued for unloading when its last ticket is removed.
+ *
+ * @author Fernando
+ */
+public enum ChunkTicketType {
+
+	/**
+	 * The chunk is in the view of a player and the player has received it
+	 */
+	PLAYER,
+	/**
+	 * The chunk is near the spawn of the world
+	 */
+	SPAWN,
+	/**
+	 * The chunk is loaded as a neighbour of a chunk that is waiting to be
+	 * populated
+	 */
+	POPULATION,
+	/**
+	 * The chunk is loaded for work that didn't finish yet, like a chunk that
+	 * is waiting in the send queue of a player
+	 */
+	ASYNC;
+}
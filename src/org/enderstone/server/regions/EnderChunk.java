@@ -17,11 +17,10 @@
  */
 package org.enderstone.server.regions;
 
-import java.lang.ref.Reference;
-import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.enderstone.server.EnderLogger;
@@ -33,7 +32,10 @@ import org.enderstone.server.api.World;
 import org.enderstone.server.entity.player.EnderPlayer;
 import org.enderstone.server.packet.play.PacketOutBlockChange;
 import org.enderstone.server.regions.io.NBTStorable;
+import org.jnbt.ByteArrayTag;
+import org.jnbt.ByteTag;
 import org.jnbt.CompoundTag;
+import org.jnbt.ListTag;
 import org.jnbt.Tag;
 
 /**
@@ -44,48 +46,204 @@ public class EnderChunk implements Chunk, NBTStorable {
 
 	protected final static int CHUNK_SECTION_SIZE = 16;
 	protected final static int MAX_CHUNK_SECTIONS = 16;
-	private static final Reference<EnderChunkMap> NULL_REFERENCE = new WeakReference<EnderChunkMap>(null);
 	private final int x;
 	private final int z;
-	private final short[][] blockID;
-	private final byte[][] data;
+	/**
+	 * The sections from bottom to top, null for sections that were never used
+	 */
+	private final ChunkSection[] sections;
 	private final byte[] biome;
 	public boolean hasPopulated = false;
 	private boolean isValid = true;
 	private EnderWorld world;
     private final List<BlockData> blockData;
     public final AtomicReference<ChunkState> chunkState = new AtomicReference<>(ChunkState.LOADED);
-    private int unloadTimer = 20;
+    /**
+     * The amount of tickets of every {@link ChunkTicketType} that keep this
+     * chunk loaded
+     */
+    private final int[] tickets = new int[ChunkTicketType.values().length];
+    private int ticketCount = 0;
+    /**
+     * The tick this chunk was queued for unloading, -1 when it isn't in the
+     * unload queue
+     */
+    private long unloadQueuedAt = -1;
+    /**
+     * The amount of times this chunk is in the unload queue, only the last
+     * entry is used, the older ones are skipped
+     */
+    private int unloadQueueEntries = 0;
+    /**
+     * The tick this chunk was queued for saving, -1 when it isn't in the save
+     * queue
+     */
+    private long saveQueuedAt = -1;
+	/**
+	 * Bitmask of the sections that are shared with a snapshot, these are
+	 * copied before they are changed
+	 */
+	private int sharedSections = 0;
+	/**
+	 * The y of the highest non air block for every column, indexed by
+	 * <code>z << 4 | x</code>, 0 when the column is empty
+	 */
+	private final int[] heightMap = new int[16 * 16];
+	/**
+	 * True while the {@link LightEngine} didn't spread the light of this
+	 * chunk yet
+	 */
+	boolean lightPending;
+	/**
+	 * Block light per section, null for sections without any block light
+	 */
+	private final NibbleArray[] blockLight = new NibbleArray[MAX_CHUNK_SECTIONS];
+	/**
+	 * Sky light per section, null for sections that are fully lit by the sky
+	 */
+	private final NibbleArray[] skyLight = new NibbleArray[MAX_CHUNK_SECTIONS];
 
-	public EnderChunk(EnderWorld world, int x, int z, short[][] blockID, byte[][] data, byte[] biome, List<BlockData> blockData) {
+	public EnderChunk(EnderWorld world, int x, int z, ChunkSection[] sections, byte[] biome, List<BlockData> blockData) {
 		this.world = world;
+		if (sections.length != MAX_CHUNK_SECTIONS) {
+			throw new IllegalArgumentException("sections.length != 16");
+		}
+		this.z = z;
+		this.sections = sections;
+		this.biome = biome;
+        this.blockData = blockData;
+		this.x = x;
+		this.rebuildHeightMap();
+		this.initSkyLight();
+	}
+
+	public EnderChunk(EnderWorld world, int x, int z, short[][] blockID, byte[][] data, byte[] biome, List<BlockData> blockData) {
+		this(world, x, z, toSections(blockID, data), biome, blockData);
+	}
+    
+    public EnderChunk(EnderWorld world, int x, int z) {
+        this(world, x, z, new ChunkSection[MAX_CHUNK_SECTIONS], new byte[16*16], new ArrayList<BlockData>());
+    }
+
+	/**
+	 * Creates a chunk from a snapshot that hasn't been written to the disk
+	 * yet, the sections stay shared with the snapshot until they are changed
+	 *
+	 * @param world the world
+	 * @param snapshot the snapshot
+	 */
+	public EnderChunk(EnderWorld world, ChunkSnapshot snapshot) {
+		this(world, snapshot.getX(), snapshot.getZ(), snapshot.getSections().clone(), snapshot.getBiomes().clone(), new ArrayList<BlockData>());
+		this.hasPopulated = snapshot.isPopulated();
+		this.sharedSections = 0xFFFF;
+	}
+
+	private static ChunkSection[] toSections(short[][] blockID, byte[][] data) {
 		if (blockID.length != MAX_CHUNK_SECTIONS) {
 			throw new IllegalArgumentException("blockID.length != 16");
 		}
-		for (int i = 0; i < MAX_CHUNK_SECTIONS; i++) {
-			if (blockID[i] == null) continue;
-			if (blockID[i].length != MAX_CHUNK_SECTIONS * MAX_CHUNK_SECTIONS * MAX_CHUNK_SECTIONS)
-				throw new IllegalArgumentException("blockID[i].length != MAX_CHUNK_SECTIONS * MAX_CHUNK_SECTIONS * MAX_CHUNK_SECTIONS");
-		}
 		if (data.length != MAX_CHUNK_SECTIONS) {
 			throw new IllegalArgumentException("data.length != 16");
 		}
+		ChunkSection[] sections = new ChunkSection[MAX_CHUNK_SECTIONS];
 		for (int i = 0; i < MAX_CHUNK_SECTIONS; i++) {
-			if (data[i] == null) continue;
-			if (data[i].length != MAX_CHUNK_SECTIONS * MAX_CHUNK_SECTIONS * MAX_CHUNK_SECTIONS)
+			if (blockID[i] == null) continue;
+			if (blockID[i].length != ChunkSection.BLOCKS)
+				throw new IllegalArgumentException("blockID[i].length != MAX_CHUNK_SECTIONS * MAX_CHUNK_SECTIONS * MAX_CHUNK_SECTIONS");
+			if (data[i] != null && data[i].length != ChunkSection.BLOCKS)
 				throw new IllegalArgumentException("data[i].length != MAX_CHUNK_SECTIONS * MAX_CHUNK_SECTIONS * MAX_CHUNK_SECTIONS");
+			sections[i] = new ChunkSection(blockID[i], data[i]);
 		}
-		this.z = z;
-		this.blockID = blockID;
-		this.data = data;
-		this.biome = biome;
-        this.blockData = blockData;
-		this.x = x;
+		return sections;
+	}
+
+	/**
+	 * Recalculates the heightmap from the sections, sections that are
+	 * completely air are skipped without looking at their blocks
+	 */
+	private void rebuildHeightMap() {
+		Arrays.fill(heightMap, 0);
+		int remaining = heightMap.length;
+		for (int s = MAX_CHUNK_SECTIONS - 1; s >= 0 && remaining > 0; s--) {
+			ChunkSection section = sections[s];
+			if (section == null || section.isSingleValue() && section.get(0) >>> 4 == 0) {
+				continue;
+			}
+			for (int column = 0; column < heightMap.length; column++) {
+				if (heightMap[column] != 0) {
+					continue;
+				}
+				for (int y = 15; y >= 0; y--) {
+					if (section.get(y << 8 | column) >>> 4 != 0) {
+						heightMap[column] = s << 4 | y;
+						remaining--;
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fills the sky light straight down from the sky, light that spreads
+	 * sideways under overhangs is added by the {@link LightEngine} when the
+	 * blocks around it change
+	 */
+	private void initSkyLight() {
+		int top = 0;
+		for (int height : heightMap) {
+			top = Math.max(top, height);
+		}
+		int topSection = top >> 4;
+		for (int s = 0; s < MAX_CHUNK_SECTIONS; s++) {
+			skyLight[s] = s <= topSection ? new NibbleArray() : null;
+		}
+		for (int column = 0; column < heightMap.length; column++) {
+			int level = 15;
+			for (int y = topSection << 4 | 0xF; y >= 0 && level > 0; y--) {
+				ChunkSection section = sections[y >> 4];
+				if (section != null) {
+					level = Math.max(0, level - LightEngine.getOpacity(section.get((y & 0xF) << 8 | column) >>> 4));
+				}
+				skyLight[y >> 4].set((y & 0xF) << 8 | column, level);
+			}
+		}
+	}
+
+	/**
+	 * Updates the heightmap after a block change, only scans downwards when
+	 * the highest block of the column is removed
+	 */
+	private void updateHeightMap(int x, int y, int z, boolean air) {
+		int column = z << 4 | x;
+		int height = heightMap[column];
+		if (!air) {
+			if (y > height) {
+				heightMap[column] = y;
+			}
+		} else if (y == height) {
+			int i = y - 1;
+			for (; i > 0; i--) {
+				ChunkSection section = sections[i >> 4];
+				if (section != null && section.get(ChunkSection.index(x, i & 0xF, z)) >>> 4 != 0) {
+					break;
+				}
+			}
+			heightMap[column] = i < 0 ? 0 : i;
+		}
+	}
+
+	/**
+	 * Creates a snapshot of the blocks of this chunk, this doesn't copy the
+	 * blocks themselves, only the sections changed after this call are copied.
+	 * Must be called from the main thread.
+	 *
+	 * @return the snapshot
+	 */
+	public ChunkSnapshot createSnapshot() {
+		this.sharedSections = 0xFFFF;
+		return new ChunkSnapshot(x, z, sections.clone(), biome.clone(), hasPopulated);
 	}
-    
-    public EnderChunk(EnderWorld world, int x, int z) {
-        this(world, x, z, new short[MAX_CHUNK_SECTIONS][], new byte[MAX_CHUNK_SECTIONS][], new byte[16*16], new ArrayList<BlockData>());
-    }
 
     @Override
 	public int getZ() {
@@ -117,9 +275,65 @@ public class EnderChunk implements Chunk, NBTStorable {
 		return this.x == other.x;
 	}
     
-    public void resetChunkUnloadTimer(int newAmount) {
-        if(this.unloadTimer < newAmount)
-            this.unloadTimer = newAmount;
+    /**
+     * Adds a ticket that keeps this chunk loaded, must be called from the
+     * thread that ticks the world
+     *
+     * @param type the type of the ticket
+     */
+    public void addTicket(ChunkTicketType type) {
+        if (this.chunkState.get() == ChunkState.GONE)
+            throw new IllegalStateException("Chunk unloaded");
+        this.tickets[type.ordinal()]++;
+        this.ticketCount++;
+    }
+
+    /**
+     * Removes a ticket, the chunk is queued for unloading when this was the
+     * last ticket. Must be called from the thread that ticks the world.
+     *
+     * @param type the type of the ticket
+     */
+    public void removeTicket(ChunkTicketType type) {
+        if (this.tickets[type.ordinal()] <= 0) {
+            throw new IllegalStateException("No " + type + " ticket on " + this);
+        }
+        this.tickets[type.ordinal()]--;
+        if (--this.ticketCount == 0 && this.chunkState.get() != ChunkState.GONE) {
+            this.world.queueUnload(this);
+        }
+    }
+
+    public int getTicketCount() {
+        return this.ticketCount;
+    }
+
+    public int getTicketCount(ChunkTicketType type) {
+        return this.tickets[type.ordinal()];
+    }
+
+    public long getUnloadQueuedAt() {
+        return this.unloadQueuedAt;
+    }
+
+    public void setUnloadQueuedAt(long tick) {
+        this.unloadQueuedAt = tick;
+    }
+
+    public int getUnloadQueueEntries() {
+        return this.unloadQueueEntries;
+    }
+
+    public void setUnloadQueueEntries(int entries) {
+        this.unloadQueueEntries = entries;
+    }
+
+    public long getSaveQueuedAt() {
+        return this.saveQueuedAt;
+    }
+
+    public void setSaveQueuedAt(long tick) {
+        this.saveQueuedAt = tick;
     }
 
 	/**
@@ -143,12 +357,9 @@ public class EnderChunk implements Chunk, NBTStorable {
 		}
 		if (material == null)
 			material = BlockId.AIR;
-		if (blockID[y >> 4] == null) {
-			blockID[y >> 4] = new short[16 * 16 * 16];
-			this.data[y >> 4] = new byte[16 * 16 * 16];
+		if (writeBlock(x, y, z, material, data)) {
+			world.getLightEngine().queueBlockChange(x + (16 * this.x), y, z + (16 * this.z));
 		}
-		blockID[y >> 4][((y & 0xF) << 8) | (z << 4) | x] = material.getId();
-		this.data[y >> 4][((y & 0xF) << 8) | (z << 4) | x] = data;
 		
 		// do this if the block might be able to fall or move by physics
 		if (Main.getInstance().doPhysics) {
@@ -172,8 +383,31 @@ public class EnderChunk implements Chunk, NBTStorable {
 				}
 			}
 		}
-        this.chunkState.set(ChunkState.LOADED_SAVE);
-		compressed = NULL_REFERENCE;
+        if (this.chunkState.getAndSet(ChunkState.LOADED_SAVE) == ChunkState.LOADED) {
+            world.queueSave(this);
+        }
+	}
+
+	/**
+	 * Writes the block to its section and updates the heightmap, without
+	 * telling the world, players or light engine about the change
+	 *
+	 * @return true if the light around the block has to be updated
+	 */
+	boolean writeBlock(int x, int y, int z, BlockId material, byte data) {
+		int section = y >> 4;
+		if (sections[section] == null) {
+			sections[section] = new ChunkSection();
+		} else if ((sharedSections & 1 << section) != 0) {
+			sections[section] = sections[section].copy();
+		}
+		sharedSections &= ~(1 << section);
+		int index = ChunkSection.index(x, y & 0xF, z);
+		int oldId = sections[section].getId(index);
+		sections[section].set(index, material.getId() << 4 | data);
+		updateHeightMap(x, y, z, material == BlockId.AIR);
+		markDirty(section);
+		return LightEngine.affectsLight(oldId, material.getId());
 	}
 
 	public BlockId getBlock(int x, int y, int z) {
@@ -182,10 +416,11 @@ public class EnderChunk implements Chunk, NBTStorable {
 		}
 		// if the Block section the block is in hasn't been used yet, allocate
 		// it
-		if (blockID[y >> 4] == null) {
+		ChunkSection section = sections[y >> 4];
+		if (section == null) {
 			return BlockId.AIR; // block is air as it hasnt been allocated
 		}
-		return BlockId.byId(blockID[y >> 4][((y & 0xF) << 8) | (z << 4) | x]);
+		return BlockId.byId((short) section.getId(ChunkSection.index(x, y & 0xF, z)));
 
 	}
 
@@ -195,146 +430,214 @@ public class EnderChunk implements Chunk, NBTStorable {
 		}
 		// if the Block section the block is in hasn't been used yet, allocate
 		// it
-		if (data[y >> 4] == null) {
+		ChunkSection section = sections[y >> 4];
+		if (section == null) {
 			return 0; // block is air as it hasnt been allocated
 		}
-		return data[y >> 4][((y & 0xF) << 8) | (z << 4) | x];
+		return (byte) section.getData(ChunkSection.index(x, y & 0xF, z));
+
+	}
+
+	/**
+	 * Gets the state of a block without looking it up in {@link BlockId}
+	 *
+	 * @return the state, id &lt;&lt; 4 | data
+	 */
+	int getState(int x, int y, int z) {
+		ChunkSection section = sections[y >> 4];
+		return section == null ? 0 : section.get(ChunkSection.index(x, y & 0xF, z));
+	}
+
+	ChunkSection getSection(int y) {
+		return sections[y];
+	}
+
+	public int getBlockLight(int x, int y, int z) {
+		NibbleArray light = blockLight[y >> 4];
+		return light == null ? 0 : light.get(ChunkSection.index(x, y & 0xF, z));
+	}
 
+	public int getSkyLight(int x, int y, int z) {
+		NibbleArray light = skyLight[y >> 4];
+		return light == null ? 15 : light.get(ChunkSection.index(x, y & 0xF, z));
+	}
+
+	/**
+	 * Changes the block light, only the {@link LightEngine} should call this
+	 */
+	void setBlockLight(int x, int y, int z, int level) {
+		NibbleArray light = blockLight[y >> 4];
+		if (light == null) {
+			if (level == 0) {
+				return;
+			}
+			light = blockLight[y >> 4] = new NibbleArray();
+		}
+		light.set(ChunkSection.index(x, y & 0xF, z), level);
+		markDirty(y >> 4);
 	}
 
-	public Reference<EnderChunkMap> compressed = NULL_REFERENCE;
+	/**
+	 * Changes the sky light, only the {@link LightEngine} should call this
+	 */
+	void setSkyLight(int x, int y, int z, int level) {
+		NibbleArray light = skyLight[y >> 4];
+		if (light == null) {
+			if (level == 15) {
+				return;
+			}
+			light = skyLight[y >> 4] = new NibbleArray(15);
+		}
+		light.set(ChunkSection.index(x, y & 0xF, z), level);
+		markDirty(y >> 4);
+	}
 
 	/**
-	 * Gets the format used by the chunk packet
+	 * The last built chunk packet data, kept alive by the
+	 * {@link ChunkPacketCache}
+	 */
+	private volatile EnderChunkMap packetCache;
+	/**
+	 * Bitmask of the sections that changed since packetCache was built
+	 */
+	private int dirtySections = 0xFFFF;
+
+	private void markDirty(int section) {
+		dirtySections |= 1 << section;
+	}
+
+	/**
+	 * Gets the format used by the chunk packet, only the sections that
+	 * changed since the last call are encoded again
 	 *
 	 * @return
 	 */
-	public EnderChunkMap getCompressedChunk() // TODO add block / skyligth
-	{
-		EnderChunkMap map;
-		if ((map = compressed.get()) != null) {
+	public EnderChunkMap getCompressedChunk() {
+		ChunkPacketCache cache = Main.getInstance().chunkPacketCache;
+		EnderChunkMap map = packetCache;
+		if (map != null && dirtySections == 0 && !map.isReleased()) {
+			cache.access(map, true);
 			return map;
 		}
-		map = build();
-		compressed = new WeakReference<>(map);
-		return map;
+		EnderChunkMap built = build(map, dirtySections, cache);
+		dirtySections = 0;
+		packetCache = built;
+		if (map != null) {
+			cache.remove(map);
+		}
+		cache.access(built, false);
+		return built;
+	}
+
+	/**
+	 * Releases the cached chunk packet, called when the chunk gets unloaded
+	 */
+	public void releasePacketCache() {
+		EnderChunkMap map = packetCache;
+		packetCache = null;
+		dirtySections = 0xFFFF;
+		if (map != null) {
+			Main.getInstance().chunkPacketCache.remove(map);
+		}
 	}
 
 	public EnderChunkMap build() {
-		int totalChunkSize = 65535;
-		int currentIndex = 0;
-		EnderChunkMap chunkmap = new EnderChunkMap();
-		byte[] totalArray = new byte[196864];
+		return build(null, 0xFFFF, null);
+	}
+
+	/**
+	 * Builds the chunk packet data, copying the sections that didn't change
+	 * from the previous data
+	 */
+	private EnderChunkMap build(EnderChunkMap previous, int dirty, ChunkPacketCache cache) {
+		EnderChunkMap chunkmap = new EnderChunkMap(x, z, cache);
 		int blockLength;
 		/**
 		 * Calculate bitmasks & empty sections
 		 */
 		{
-			for (blockLength = 0; blockLength < blockID.length; blockLength++) {
-				if (blockID[blockLength] != null && (totalChunkSize & 1 << blockLength) != 0) {
+			for (blockLength = 0; blockLength < sections.length; blockLength++) {
+				if (sections[blockLength] != null) {
 					chunkmap.primaryBitmap |= 1 << blockLength;
 				}
 			}
 		}
-		/**
-		 * Write first byte of block id's
-		 */
-		{
-			for (blockLength = 0; blockLength < blockID.length; blockLength++) {
-
-				if ((blockID[blockLength] != null) && ((totalChunkSize & 1 << blockLength) != 0)) {
-					int lastIndex = currentIndex;
-					short[] idArray = this.blockID[blockLength];
-					for (int idSize = 0; idSize < idArray.length; idSize++) {
-						int id = idArray[idSize] & 0xFF;
-						int dataId = this.data[blockLength][idSize];
-						char val = (char) (id << 4 | dataId);
-						totalArray[(currentIndex++)] = ((byte) (val & 0xFF));
-						totalArray[(currentIndex++)] = ((byte) (val >> '\b' & 0xFF));
-					}
-					assert lastIndex + blockID[blockLength].length * 2 == currentIndex;
-				}
-			}
+		int sectionCount = Integer.bitCount(chunkmap.primaryBitmap);
+		int lightLength = ChunkSection.BLOCKS / 2;
+		int blockLightStart = sectionCount * ChunkSection.BLOCKS * 2;
+		int skyLightStart = blockLightStart + sectionCount * lightLength;
+		int biomeStart = skyLightStart + sectionCount * lightLength;
+		byte[] previousData = previous == null ? null : previous.getChunkData();
+		byte[] totalArray;
+		if (previousData != null && previous.primaryBitmap == chunkmap.primaryBitmap) {
+			totalArray = previousData.clone();
+		} else {
+			totalArray = new byte[biomeStart + biome.length];
+			dirty = 0xFFFF;
 		}
-		/**
-		 * Block Light - uses data because its the same size as the lighting array we don't have
-		 */
-		{
-			for (blockLength = 0; blockLength < data.length; ++blockLength) {
-				if (data[blockLength] != null && (totalChunkSize & 1 << blockLength) != 0) {
-					int lastIndex = currentIndex;
-					byte[] nibblearray = data[blockLength];
-					byte halfData = 0;
-					boolean hd = false;
-
-					for (int counter = 0; counter < nibblearray.length; counter++) {
-						byte blockLigth = 15;
-						if (hd) {
-							halfData = (byte) ((blockLigth << 4) | halfData);
-							totalArray[currentIndex++] = halfData;
-						} else {
-							halfData = blockLigth;
+		int sent = 0;
+		for (blockLength = 0; blockLength < sections.length; blockLength++) {
+			ChunkSection section = sections[blockLength];
+			if (section == null) {
+				continue;
+			}
+			if ((dirty & 1 << blockLength) != 0) {
+				/**
+				 * Write the block states, 2 bytes per block in little endian
+				 */
+				{
+					int currentIndex = sent * ChunkSection.BLOCKS * 2;
+					if (section.isSingleValue()) {
+						int state = section.get(0);
+						char val = (char) ((state >>> 4 & 0xFF) << 4 | state & 0xF);
+						for (int i = 0; i < ChunkSection.BLOCKS; i++) {
+							totalArray[(currentIndex++)] = ((byte) (val & 0xFF));
+							totalArray[(currentIndex++)] = ((byte) (val >> '\b' & 0xFF));
+						}
+					} else {
+						for (int i = 0; i < ChunkSection.BLOCKS; i++) {
+							int state = section.get(i);
+							char val = (char) ((state >>> 4 & 0xFF) << 4 | state & 0xF);
+							totalArray[(currentIndex++)] = ((byte) (val & 0xFF));
+							totalArray[(currentIndex++)] = ((byte) (val >> '\b' & 0xFF));
 						}
-						hd = !hd;
 					}
-					assert lastIndex + data[blockLength].length / 2 == currentIndex;
-					// j += nibblearray.length / 2 ;
 				}
-			}
-		}
-		/**
-		 * Skylight - uses BlockID array because its the same size as the sky array we don't have
-		 */
-		{
-			for (blockLength = 0; blockLength < blockID.length; ++blockLength) {
-				if (blockID[blockLength] != null && (totalChunkSize & 1 << blockLength) != 0) {
-					int lastIndex = currentIndex;
-					short[] nibblearray = blockID[blockLength];
-					byte halfData = 0;
-					boolean hd = false;
-
-					for (int counter = 0; counter < nibblearray.length; counter++) {
-						byte skyLigth = (byte) (15);
-						if (hd) {
-							halfData = (byte) ((skyLigth << 4) | halfData);
-							totalArray[currentIndex++] = halfData;
-						} else {
-							halfData = skyLigth;
-						}
-						hd = !hd;
+				/**
+				 * Block light and sky light, 4 bits per block
+				 */
+				{
+					int index = blockLightStart + sent * lightLength;
+					NibbleArray light = blockLight[blockLength];
+					if (light != null) {
+						System.arraycopy(light.getData(), 0, totalArray, index, lightLength);
+					} else {
+						Arrays.fill(totalArray, index, index + lightLength, (byte) 0);
+					}
+					index = skyLightStart + sent * lightLength;
+					light = skyLight[blockLength];
+					if (light != null) {
+						System.arraycopy(light.getData(), 0, totalArray, index, lightLength);
+					} else {
+						Arrays.fill(totalArray, index, index + lightLength, (byte) 0xFF);
 					}
-					assert lastIndex + data[blockLength].length / 2 == currentIndex;
-					// j += nibblearray.length / 2 ;
 				}
 			}
+			sent++;
 		}
 		/**
 		 * Biomes
 		 */
 		{
-			byte[] newArray = biome;
-			System.arraycopy(newArray, 0, totalArray, currentIndex, newArray.length);
-			currentIndex += newArray.length;
-		}
-		/**
-		 * Copy
-		 */
-		{
-			chunkmap.chunkData = new byte[currentIndex];
-			System.arraycopy(totalArray, 0, chunkmap.chunkData, 0, currentIndex);
+			System.arraycopy(biome, 0, totalArray, biomeStart, biome.length);
 		}
+		chunkmap.chunkData = totalArray;
 		return chunkmap;
 	}
 
     @Override
 	public int getHighestBlockAt(int x, int z) {
-		for (int i = 255; i > 0; i--) {
-			BlockId bl = this.getBlock(x, i, z);
-			if (!bl.equals(BlockId.AIR)) {
-				return i;
-			}
-		}
-		return (short) 0;
+		return heightMap[z << 4 | x];
 	}
 
 	public boolean isValid() {
@@ -358,33 +661,54 @@ public class EnderChunk implements Chunk, NBTStorable {
 
     @Override
     public CompoundTag saveToNBT() {
-        //TODO throw new UnsupportedOperationException("Not supported yet.");
-        return new CompoundTag("level", Collections.<String, Tag>emptyMap());
+        return createSnapshot().saveToNBT();
     }
 
     @Override
     public void loadFromNBT(CompoundTag tag) {
-        // TODO throw new UnsupportedOperationException("Not supported yet.");
+        Map<String, Tag> level = ((CompoundTag) tag.getValue().get("Level")).getValue();
+        Tag populated = level.get("TerrainPopulated");
+        this.hasPopulated = populated != null && ((ByteTag) populated).getValue() != 0;
+        Tag biomes = level.get("Biomes");
+        if (biomes != null) {
+            byte[] b = ((ByteArrayTag) biomes).getValue();
+            System.arraycopy(b, 0, this.biome, 0, Math.min(b.length, this.biome.length));
+        }
+        for (Tag t : ((ListTag) level.get("Sections")).getValue()) {
+            Map<String, Tag> section = ((CompoundTag) t).getValue();
+            int y = ((ByteTag) section.get("Y")).getValue();
+            if (y < 0 || y >= MAX_CHUNK_SECTIONS) {
+                continue;
+            }
+            byte[] blocks = ((ByteArrayTag) section.get("Blocks")).getValue();
+            byte[] meta = ((ByteArrayTag) section.get("Data")).getValue();
+            Tag addTag = section.get("Add");
+            byte[] add = addTag == null ? null : ((ByteArrayTag) addTag).getValue();
+            ChunkSection blockSection = new ChunkSection();
+            for (int j = 0; j < ChunkSection.BLOCKS; j++) {
+                int shift = (j & 1) << 2;
+                int id = blocks[j] & 0xFF;
+                if (add != null) {
+                    id |= ((add[j >> 1] >> shift) & 0xF) << 8;
+                }
+                blockSection.set(j, id << 4 | (meta[j >> 1] >> shift) & 0xF);
+            }
+            this.sections[y] = blockSection;
+        }
+        this.sharedSections = 0;
+        this.rebuildHeightMap();
+        this.initSkyLight();
+        Arrays.fill(this.blockLight, null);
+        this.dirtySections = 0xFFFF;
     }
 
     public void serverTick() {
         // do tile blocks like furnaces and hoppers here
     }
     
-    public boolean tickUnload() {
-        if (this.unloadTimer != Integer.MAX_VALUE && this.unloadTimer != Integer.MIN_VALUE) {
-            this.unloadTimer--;
-        }
-        return this.unloadTimer < 0;
-    }
-
-    public int getUnloadTimer() {
-        return this.unloadTimer;
-    }
-
     @Override
     public String toString() {
-        return "EnderChunk{" + "x=" + x + ", z=" + z + ", isValid=" + isValid + ", chunkState=" + chunkState + ", unloadTimer=" + unloadTimer + '}';
+        return "EnderChunk{" + "x=" + x + ", z=" + z + ", isValid=" + isValid + ", chunkState=" + chunkState + ", tickets=" + ticketCount + '}';
     }
     
     
@@ -1,4 +1,4 @@
-/* 
+/*
  * Enderstone
  * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
  *
@@ -17,9 +17,24 @@
  */
 package org.enderstone.server.regions;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import org.enderstone.server.packet.PacketDataWrapper;
+import org.enderstone.server.packet.PreEncodedPacket;
+import org.enderstone.server.packet.codec.DecodeException;
+import org.enderstone.server.packet.codec.MinecraftCompressionCodex;
 import org.enderstone.server.packet.play.PacketOutChunkData;
 
 /**
+ * The data of a chunk in the format of the chunk packet. The encoded packet is
+ * kept after it is first sent, so every other player gets the same bytes
+ * without encoding or deflating them again. Entries are kept alive by the
+ * {@link ChunkPacketCache}, and released when they are evicted or the chunk
+ * changes.
  *
  * @author Fernando
  */
@@ -27,8 +42,241 @@ public class EnderChunkMap {
 
 	public byte[] chunkData;
 	public int primaryBitmap;
+	private final int x;
+	private final int z;
+	private final ChunkPacketCache cache;
+	private ByteBuf encoded;
+	private ByteBuf compressed;
+	private DeflatedColumn deflated;
+	private boolean released;
+
+	/**
+	 * Creates a new EnderChunkMap
+	 *
+	 * @param x the chunk x
+	 * @param z the chunk z
+	 * @param cache the cache that keeps this entry, or null
+	 */
+	public EnderChunkMap(int x, int z, ChunkPacketCache cache) {
+		this.x = x;
+		this.z = z;
+		this.cache = cache;
+	}
 
 	public PacketOutChunkData toPacket(int x, int z) {
-		return new PacketOutChunkData(x, z, true, (short) (primaryBitmap & '\uffff'), chunkData.length, chunkData);
+		return toPacket(x, z, getChunkData());
+	}
+
+	/**
+	 * Creates the chunk packet
+	 *
+	 * @param x the chunk x
+	 * @param z the chunk z
+	 * @param chunkData the chunk data of this entry, taken before this entry
+	 * could be released
+	 * @return the packet
+	 */
+	public PacketOutChunkData toPacket(int x, int z, byte[] chunkData) {
+		if (x == this.x && z == this.z) {
+			return new CachedPacket(this, chunkData);
+		}
+		return new PacketOutChunkData(x, z, true, (short) primaryBitmap, chunkData.length, chunkData);
+	}
+
+	/**
+	 * Gets the encoded chunk packet, encoding it the first time
+	 *
+	 * @param compress true for the compressed format
+	 * @return a buffer the caller owns a reference to, or null if this entry
+	 * has been released
+	 * @throws IOException when the packet couldn't be encoded
+	 */
+	public ByteBuf getEncoded(boolean compress) throws IOException {
+		ByteBuf result;
+		boolean built = false;
+		synchronized (this) {
+			if (released) {
+				return null;
+			}
+			if (compress) {
+				if (compressed == null) {
+					compressed = encode(true);
+					built = true;
+				}
+				result = compressed.duplicate().retain();
+			} else {
+				if (encoded == null) {
+					encoded = encode(false);
+					built = true;
+				}
+				result = encoded.duplicate().retain();
+			}
+		}
+		// outside the lock, the cache locks itself before it locks its entries
+		if (built && cache != null) {
+			cache.resize(this);
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the chunk data deflated as a segment that can be joined with the
+	 * segments of other chunks in one compressed chunk bulk packet, deflating
+	 * it the first time
+	 *
+	 * @return the deflated chunk data, or null if this entry has been released
+	 */
+	DeflatedColumn getDeflatedColumn() {
+		DeflatedColumn result;
+		synchronized (this) {
+			if (released) {
+				return null;
+			}
+			if (deflated != null) {
+				return deflated;
+			}
+			Deflater deflater = new Deflater(8, true);
+			try {
+				result = deflated = new DeflatedColumn(chunkData, deflater);
+			} finally {
+				deflater.end();
+			}
+		}
+		if (cache != null) {
+			cache.resize(this);
+		}
+		return result;
+	}
+
+	private ByteBuf encode(boolean compress) throws IOException {
+		PacketOutChunkData packet = new PacketOutChunkData(x, z, true, (short) primaryBitmap, chunkData.length, chunkData);
+		ByteBuf buf = Unpooled.buffer(packet.getSize() + 5);
+		try {
+			packet.writeFully(new PacketDataWrapper(null, buf));
+		} catch (DecodeException ex) {
+			buf.release();
+			throw new IOException(ex);
+		}
+		if (!compress) {
+			return buf;
+		}
+		try {
+			PacketDataWrapper in = new PacketDataWrapper(null, buf);
+			byte[] array = new byte[in.readVarInt()];
+			in.readBytes(array);
+			ByteBuf out = Unpooled.buffer(array.length / 4 + 16);
+			Deflater deflater = new Deflater(8);
+			try {
+				MinecraftCompressionCodex.writeCompressed(deflater, array, new PacketDataWrapper(null, out));
+			} finally {
+				deflater.end();
+			}
+			return out;
+		} finally {
+			buf.release();
+		}
+	}
+
+	/**
+	 * Gets the amount of memory used by this entry
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized int getMemoryUsage() {
+		if (released) {
+			return 0;
+		}
+		int size = chunkData.length;
+		if (encoded != null) {
+			size += encoded.capacity();
+		}
+		if (compressed != null) {
+			size += compressed.capacity();
+		}
+		if (deflated != null) {
+			size += deflated.data.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Releases the chunk data and the encoded packets, packets that were
+	 * created before are encoded the normal way
+	 */
+	public synchronized void release() {
+		released = true;
+		chunkData = null;
+		if (encoded != null) {
+			encoded.release();
+			encoded = null;
+		}
+		if (compressed != null) {
+			compressed.release();
+			compressed = null;
+		}
+		deflated = null;
+	}
+
+	/**
+	 * Gets the chunk data, safe to call while another thread may release
+	 * this entry
+	 *
+	 * @return the chunk data, or null if this entry has been released
+	 */
+	public synchronized byte[] getChunkData() {
+		return chunkData;
+	}
+
+	public synchronized boolean isReleased() {
+		return released;
+	}
+
+	/**
+	 * Data deflated without the zlib header and trailer, ending with a full
+	 * flush. A full flush ends on a byte boundary and resets the dictionary,
+	 * so segments deflated on their own can be placed one after the other in
+	 * the same zlib stream.
+	 */
+	static class DeflatedColumn {
+
+		final byte[] data;
+		final int length;
+		final int adler;
+
+		DeflatedColumn(byte[] input, Deflater deflater) {
+			this.data = deflateSegment(deflater, input);
+			this.length = input.length;
+			Adler32 checksum = new Adler32();
+			checksum.update(input, 0, input.length);
+			this.adler = (int) checksum.getValue();
+		}
+
+		static byte[] deflateSegment(Deflater deflater, byte[] input) {
+			deflater.setInput(input);
+			byte[] buffer = new byte[input.length / 2 + 64];
+			int length = 0;
+			while (true) {
+				length += deflater.deflate(buffer, length, buffer.length - length, Deflater.FULL_FLUSH);
+				if (length < buffer.length) {
+					return Arrays.copyOf(buffer, length);
+				}
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+		}
+	}
+
+	private static class CachedPacket extends PacketOutChunkData implements PreEncodedPacket {
+
+		private final EnderChunkMap map;
+
+		public CachedPacket(EnderChunkMap map, byte[] chunkData) {
+			super(map.x, map.z, true, (short) map.primaryBitmap, chunkData.length, chunkData);
+			this.map = map;
+		}
+
+		@Override
+		public ByteBuf getEncoded(boolean compressed) throws IOException {
+			return map.getEncoded(compressed);
+		}
 	}
 }
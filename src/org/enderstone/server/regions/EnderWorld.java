@@ -20,11 +20,12 @@ package org.enderstone.server.regions;
 import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
@@ -41,20 +42,28 @@ import org.enderstone.server.api.entity.Mob;
 import org.enderstone.server.api.entity.Player;
 import org.enderstone.server.entity.EnderEntity;
 import org.enderstone.server.entity.EntityItem;
+import org.enderstone.server.entity.EntityTracker;
+import org.enderstone.server.entity.player.ChunkSendQueue;
 import org.enderstone.server.entity.player.EnderPlayer;
 import org.enderstone.server.inventory.ItemStack;
 import org.enderstone.server.packet.Packet;
 import org.enderstone.server.packet.play.PacketOutEntityDestroy;
 import org.enderstone.server.packet.play.PacketOutSoundEffect;
+import org.enderstone.server.profiler.TickPhase;
+import org.enderstone.server.profiler.TickProfiler;
 import org.enderstone.server.regions.generators.MultiChunkBlockPopulator;
 import org.enderstone.server.regions.io.ChunkManager;
 import org.enderstone.server.regions.tileblocks.TileBlock;
+import org.enderstone.server.scheduler.FutureCallback;
+import org.enderstone.server.scheduler.ServerFuture;
 import org.enderstone.server.regions.tileblocks.TileBlocks;
-import org.enderstone.server.util.IntegerArrayComparator;
 
 public class EnderWorld implements World {
 
-	private Long seed = null;
+	/**
+	 * Created upfront, the generators read this from the chunk loading threads
+	 */
+	private final long seed = Main.random.nextLong();
 	//private final RegionSet loadedChunks = new RegionSet();
 	private final ChunkGenerator generator;
     private final ChunkManager chunks;
@@ -63,15 +72,84 @@ public class EnderWorld implements World {
 	public static final int AMOUNT_OF_CHUNKSECTIONS = 16;
 	public final Set<EnderEntity> entities = new HashSet<>();
 	public final Set<EnderPlayer> players = new HashSet<>();
-	public final List<TileBlock> tickList = new ArrayList<>();
+	/**
+	 * Every tile block is ticked once every TILE_TICK_INTERVAL ticks, the
+	 * tile blocks are divided over the buckets by a hash of their position
+	 */
+	private static final int TILE_TICK_INTERVAL = 10;
+	private final List<List<TileBlock>> tileBuckets = new ArrayList<>(TILE_TICK_INTERVAL);
+	/**
+	 * The bucket that is being ticked, and the index inside that bucket when
+	 * the budget ran out in the previous tick
+	 */
+	private int tileBucket = 0;
+	private int tileBucketIndex = 0;
 	private Location spawnLocation;
 	public final String worldName;
-    private long cleanuptimer = 0;
+	/**
+	 * Radius in chunks around the spawn chunk that is kept loaded
+	 */
+	private static final int SPAWN_CHUNK_RADIUS = 2;
+	private final EntityTracker entityTracker = new EntityTracker(this);
+	private final TickProfiler.Section tickSection;
+	private final TickProfiler.Section entityUpdateSection;
+	private final TickProfiler.Section tileBlockSection;
+	private final TickProfiler.Section chunkCleanupSection;
+	private final TickProfiler.Section lightingSection;
+	private final LightEngine lightEngine = new LightEngine(this);
+	/**
+	 * Chunks waiting for their neighbours before they can be populated
+	 */
+	private final Map<Long, ServerFuture<EnderChunk>> pendingPopulations = new HashMap<>();
 
 	public EnderWorld(String worldName, ChunkGenerator gen, File worldDirectory) {
 		this.worldName = worldName;
 		this.generator = gen;
-        this.chunks = new ChunkManager(gen, new File(worldDirectory, "region"), this); // todo: edit this path
+        this.chunks = new ChunkManager(gen, new File(worldDirectory, "region"), this, // todo: edit this path
+				ChunkManager.createChunkSet(Main.getInstance().getWorldProperty(worldName, "chunk-map", "long")));
+		TickProfiler profiler = Main.getInstance().profiler;
+		this.tickSection = profiler.createWorldSection(worldName, TickPhase.WORLD_TICK);
+		this.entityUpdateSection = profiler.createWorldSection(worldName, TickPhase.ENTITY_UPDATES);
+		this.tileBlockSection = profiler.createWorldSection(worldName, TickPhase.TILE_BLOCKS);
+		this.chunkCleanupSection = profiler.createWorldSection(worldName, TickPhase.CHUNK_CLEANUP);
+		this.lightingSection = profiler.createWorldSection(worldName, TickPhase.LIGHTING);
+		for (int i = 0; i < TILE_TICK_INTERVAL; i++) {
+			this.tileBuckets.add(new ArrayList<TileBlock>());
+		}
+		this.keepSpawnLoaded();
+	}
+
+	/**
+	 * Loads the chunks around the spawn chunk and adds a
+	 * {@link ChunkTicketType#SPAWN} ticket to them, so they are never
+	 * unloaded
+	 */
+	private void keepSpawnLoaded() {
+		FutureCallback<EnderChunk> addTicket = new FutureCallback<EnderChunk>() {
+
+			@Override
+			public void onSuccess(EnderChunk chunk) {
+				chunk.addTicket(ChunkTicketType.SPAWN);
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				// the ChunkManager logged it already
+			}
+		};
+		for (int x = -SPAWN_CHUNK_RADIUS; x <= SPAWN_CHUNK_RADIUS; x++) {
+			for (int z = -SPAWN_CHUNK_RADIUS; z <= SPAWN_CHUNK_RADIUS; z++) {
+				this.chunks.requestChunk(x, z).addCallback(addTicket);
+			}
+		}
+	}
+
+	void queueUnload(EnderChunk chunk) {
+		this.chunks.queueUnload(chunk);
+	}
+
+	void queueSave(EnderChunk chunk) {
+		this.chunks.queueSave(chunk);
 	}
 
 	public EnderChunk getOrCreateChunk(int x, int z) {
@@ -105,6 +183,13 @@ public class EnderWorld implements World {
         this.chunks.saveChunk(ender);
 	}
 
+	/**
+	 * Queues all chunks with unsaved changes to be written to the disk
+	 */
+	public void saveChunks() {
+		this.chunks.saveChunks();
+	}
+
 	private EnderChunk checkChunkPopulation(EnderChunk c) {
 		if (c == null || c.hasPopulated) {
 			return c;
@@ -156,84 +241,211 @@ public class EnderWorld implements World {
 		getOrCreateChunk(x >> 4, z >> 4).setBlock(x & 0xF, y & 0xFF, z & 0xF, id, data);
 	}
 
+	/**
+	 * Updates the view of the player after it moved to another chunk or
+	 * changed its view radius. Only the chunks in the strips that left the
+	 * view are removed and only the chunks in the strips that entered the view
+	 * are queued in the {@link ChunkSendQueue}, which sends them over the next
+	 * ticks. This does nothing while the player stays inside the same chunk,
+	 * so it's cheap enough to call every tick.
+	 *
+	 * @param player the player
+	 * @param informer the informer that sends the chunks to the player
+	 * @param radius the view radius in chunks
+	 */
 	public void doChunkUpdatesForPlayer(EnderPlayer player, ChunkInformer informer, int radius) {
-		doChunkUpdatesForPlayer(player, informer, radius, false);
-	}
-
-	public void doChunkUpdatesForPlayer(EnderPlayer player, ChunkInformer informer, int radius, boolean force) {
+		ChunkSendQueue queue = player.chunkSendQueue;
+		int px = player.getLocation().getBlockX() >> 4;
+		int pz = player.getLocation().getBlockZ() >> 4;
+		boolean hadView = queue.hasView();
+		int oldX = queue.getViewX();
+		int oldZ = queue.getViewZ();
+		int oldRadius = queue.getViewRadius();
+		if (hadView && oldX == px && oldZ == pz && oldRadius == radius) {
+			return;
+		}
 		synchronized (informer) {
-			RegionSet playerChunks = player.getLoadedChunks();
-			List<EnderChunk> newPlayerChunks = new ArrayList<>();
-			int r2 = radius * 2 + 1;
-			int px = player.getLocation().getBlockX() >> 4;
-			int cx = (px) - radius;
-			int mx = cx + r2;
-			int pz = player.getLocation().getBlockZ() >> 4;
-			int minz = (pz) - radius;
-			int cz = minz;
-			int mz = cz + r2;
 			try {
-				if (playerChunks.isEmpty()) {
-					while (cx++ < mx) {
-						for (cz = minz; cz < mz; cz++) {
-							EnderChunk c = getOrCreateChunk(cx, cz);
-                            c.resetChunkUnloadTimer(20);
-							playerChunks.add(c);
-							informer.sendChunk(c);
-						}
-					}
+				if (hadView) {
+					updateViewStrips(player, informer, false, oldX - oldRadius, oldZ - oldRadius, oldX + oldRadius, oldZ + oldRadius,
+							px - radius, pz - radius, px + radius, pz + radius);
+					updateViewStrips(player, informer, true, px - radius, pz - radius, px + radius, pz + radius,
+							oldX - oldRadius, oldZ - oldRadius, oldX + oldRadius, oldZ + oldRadius);
 				} else {
-					int maxSize = force ? Integer.MAX_VALUE : informer.maxChunks();
-					int[][] chunkLoad = new int[(radius * 2) * (radius * 2) * 2][];
-					int index = 0;
-					Set<EnderChunk> copy = new RegionSet(playerChunks);
-
-					for (; cx < mx; cx++) {
-						for (cz = minz; cz < mz; cz++) {
-							EnderChunk tmp = getOrCreateChunk(cx, cz);
-                            tmp.resetChunkUnloadTimer(20);
-							if (!copy.contains(tmp)) {
-								chunkLoad[index++] = new int[] { cx, cz };
-							} else {
-								copy.remove(tmp);
-							}
-						}
-					}
-					Iterator<EnderChunk> loop = copy.iterator();
-					while (loop.hasNext()) {
-						EnderChunk i = loop.next();
+					// an empty area is excluded, so the full square is added
+					updateViewStrips(player, informer, true, px - radius, pz - radius, px + radius, pz + radius, 1, 1, 0, 0);
+				}
+				queue.setView(px, pz, radius);
+			} finally {
+				informer.done();
+			}
+		}
+	}
+
+	/**
+	 * Adds or removes the chunks inside a square that are outside another
+	 * square. Only the rows above and below the excluded square and the
+	 * columns at its left and right are visited.
+	 */
+	private void updateViewStrips(EnderPlayer player, ChunkInformer informer, boolean add, int minX, int minZ, int maxX, int maxZ,
+			int exMinX, int exMinZ, int exMaxX, int exMaxZ) {
+		for (int cz = minZ; cz <= maxZ; cz++) {
+			if (cz < exMinZ || cz > exMaxZ) {
+				for (int cx = minX; cx <= maxX; cx++) {
+					updateViewChunk(player, informer, add, cx, cz);
+				}
+			} else {
+				int leftEnd = Math.min(maxX, exMinX - 1);
+				for (int cx = minX; cx <= leftEnd; cx++) {
+					updateViewChunk(player, informer, add, cx, cz);
+				}
+				for (int cx = Math.max(minX, exMaxX + 1); cx <= maxX; cx++) {
+					updateViewChunk(player, informer, add, cx, cz);
+				}
+			}
+		}
+	}
+
+	private void updateViewChunk(EnderPlayer player, ChunkInformer informer, boolean add, int x, int z) {
+		RegionSet playerChunks = player.getLoadedChunks();
+		if (add) {
+			if (playerChunks.get(x, z) == null) {
+				player.chunkSendQueue.add(x, z);
+			}
+			return;
+		}
+		player.chunkSendQueue.remove(x, z);
+		EnderChunk chunk = playerChunks.get(x, z);
+		if (chunk != null) {
+			playerChunks.remove(chunk);
+			informer.removeChunk(chunk);
+			chunk.removeTicket(ChunkTicketType.PLAYER);
+		}
+	}
+
+	/**
+	 * Forgets the chunks the player has in this world without telling the
+	 * client, used when the player leaves the world or the server
+	 *
+	 * @param player the player
+	 */
+	public void releasePlayerChunks(EnderPlayer player) {
+		for (EnderChunk chunk : player.getLoadedChunks()) {
+			chunk.removeTicket(ChunkTicketType.PLAYER);
+		}
+		player.getLoadedChunks().clear();
+		player.chunkSendQueue.clear();
+	}
 
-						playerChunks.remove(i);
-						informer.removeChunk(i);
+	/**
+	 * Loads or generates a chunk without blocking, see
+	 * {@link ChunkManager#requestChunk(int, int)}. The chunk isn't populated.
+	 *
+	 * @param x the chunk x
+	 * @param z the chunk z
+	 * @return the future that completes on the main thread with the chunk
+	 */
+	public ServerFuture<EnderChunk> requestChunk(int x, int z) {
+		return this.chunks.requestChunk(x, z);
+	}
+
+	/**
+	 * Requests a chunk together with its 8 neighbours, and populates it once
+	 * all of them are loaded. The chunks hold a
+	 * {@link ChunkTicketType#POPULATION} ticket while they wait for the
+	 * others, so they can't be unloaded before the population is done.
+	 *
+	 * @param x the chunk x
+	 * @param z the chunk z
+	 * @return the future that completes on the main thread with the populated
+	 * chunk
+	 */
+	public ServerFuture<EnderChunk> requestPopulatedChunk(final int x, final int z) {
+		final Long key = ((long) x << 32) ^ (z & 0xFFFFFFFFL);
+		ServerFuture<EnderChunk> pending = this.pendingPopulations.get(key);
+		if (pending != null) {
+			return pending;
+		}
+		final ServerFuture<EnderChunk> result = Main.getInstance().asyncExecutor.newFuture();
+		this.pendingPopulations.put(key, result);
+		// the futures of the ChunkManager complete on the main thread, so the counter is only touched by one thread
+		FutureCallback<EnderChunk> neighbourLoaded = new FutureCallback<EnderChunk>() {
+			private final EnderChunk[] loaded = new EnderChunk[9];
+			private int loadedCount = 0;
+			private int remaining = 9;
+			private boolean failed = false;
+
+			@Override
+			public void onSuccess(EnderChunk chunk) {
+				chunk.addTicket(ChunkTicketType.POPULATION);
+				loaded[loadedCount++] = chunk;
+				if (--remaining == 0) {
+					if (!failed) {
+						pendingPopulations.remove(key);
+						result.complete(checkChunkPopulation(getChunk0(x, z)));
 					}
-					Arrays.sort(chunkLoad, 0, index, new IntegerArrayComparator(px, pz));
-
-					if (maxSize < chunkLoad.length)
-						chunkLoad[maxSize] = null;
-					index = 0;
-					for (int[] load : chunkLoad) {
-						if (load == null) {
-							break;
-						}
-						cx = load[0];
-						cz = load[1];
-						EnderChunk c = getOrCreateChunk(cx, cz);
-						newPlayerChunks.add(c);
-						informer.sendChunk(c);
-						index++;
+					releaseTickets();
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				if (!failed) {
+					failed = true;
+					if (pendingPopulations.get(key) == result) {
+						pendingPopulations.remove(key);
 					}
+					result.fail(cause);
+				}
+				if (--remaining == 0) {
+					releaseTickets();
 				}
-			} finally {
-				informer.done();
-				playerChunks.addAll(newPlayerChunks);
+			}
+
+			private void releaseTickets() {
+				for (int i = 0; i < loadedCount; i++) {
+					loaded[i].removeTicket(ChunkTicketType.POPULATION);
+				}
+			}
+		};
+		for (int i = -1; i <= 1; i++) {
+			for (int k = -1; k <= 1; k++) {
+				this.chunks.requestChunk(x + i, z + k).addCallback(neighbourLoaded);
 			}
 		}
+		return result;
+	}
+
+	/**
+	 * Gets a chunk only if it is loaded
+	 *
+	 * @param x the chunk x
+	 * @param z the chunk z
+	 * @return the chunk, or null if it isn't loaded
+	 */
+	public EnderChunk getLoadedChunk(int x, int z) {
+		return this.chunks.getLoadedChunk(x, z);
+	}
+
+	public LightEngine getLightEngine() {
+		return lightEngine;
+	}
+
+	/**
+	 * @return the amount of chunks without tickets waiting to be unloaded
+	 */
+	public int getUnloadQueueSize() {
+		return this.chunks.getUnloadQueueSize();
+	}
+
+	/**
+	 * @return the amount of changed chunks waiting to be saved
+	 */
+	public int getSaveQueueSize() {
+		return this.chunks.getSaveQueueSize();
 	}
 
 	public long getSeed() {
-		if (seed == null) {
-			seed = Main.random.nextLong();
-		}
 		return seed;
 	}
 
@@ -251,8 +463,6 @@ public class EnderWorld implements World {
 		public void removeChunk(EnderChunk chunk);
 
 		public void done();
-
-		public int maxChunks();
 	}
 
 	public void broadcastSound(String soundName, float volume, byte pitch, Location loc, EnderPlayer exceptOne) {
@@ -273,10 +483,13 @@ public class EnderWorld implements World {
 	public void removeEntity(EnderEntity e, boolean broadcastRemove) {
 		if (this.entities.contains(e)) {
 			this.entities.remove(e);
+			Main.getInstance().entityRegistry.remove(e);
 		}
 		if (broadcastRemove) {
 			this.broadcastPacket(new PacketOutEntityDestroy(new Integer[] { e.getEntityId() }), e.getLocation());
-			for (EnderPlayer ep : Main.getInstance().onlinePlayers) {
+			// only the players of this world can track the entity, the players
+			// of other worlds may be used by their own world worker right now
+			for (EnderPlayer ep : this.players) {
 				Iterator<EnderEntity> it = ep.canSeeEntity.iterator();
 				while (it.hasNext()) {
 					EnderEntity et = it.next();
@@ -288,10 +501,14 @@ public class EnderWorld implements World {
 		}
 	}
 
-	public void updateEntities(Set<EnderPlayer> onlinePlayers) {
-		for (EnderEntity e : this.entities) {
-			e.updatePlayers(onlinePlayers);
-		}
+	/**
+	 * Sends the spawn and destroy packets for the entities that came in or
+	 * went out of range of the players in this world
+	 */
+	private void updateEntities() {
+		long start = entityUpdateSection.start();
+		this.entityTracker.update();
+		entityUpdateSection.end(start);
 	}
 
 	public Block getBlock(int x, int y, int z) {
@@ -306,21 +523,21 @@ public class EnderWorld implements World {
 	}
 
 	public void serverTick() {
+		long tickStart = tickSection.start();
+		this.updateEntities();
 		for (EnderEntity pending : this.pendingEntities) {
 			this.entities.add(pending);
+			Main.getInstance().entityRegistry.add(pending, this);
 			pending.onSpawn();
 		}
 		this.pendingEntities.clear();
-        if(cleanuptimer++ > 20) {
-            cleanuptimer = 0;
-            this.chunks.cleanUpOldChunks();
-        }
 
 		Iterator<EnderEntity> it = this.entities.iterator();
 		while (it.hasNext()) {
 			EnderEntity e = it.next();
 			if (e.shouldBeRemoved()) {
 				it.remove();
+				Main.getInstance().entityRegistry.remove(e);
 				if (e.shouldBroadcastDespawn()) {
 					if (e.getWorld() instanceof EnderWorld) {
 						((EnderWorld) e.getWorld()).broadcastPacket(new PacketOutEntityDestroy(new Integer[] { e.getEntityId() }), e.getLocation());
@@ -329,16 +546,50 @@ public class EnderWorld implements World {
 			}
 			e.serverTick();
 		}
-		if (this.time % 10 == 0) {
-			List<TileBlock> copiedList = new ArrayList<>(tickList);
-			for (TileBlock tile : copiedList) {
-				boolean shouldRemove = tile.serverTick();
-				if (shouldRemove) {
-					this.tickList.remove(tile);
-				}
+		long tileStart = tileBlockSection.start();
+		this.tickTileBlocks(Main.getInstance().tileBlockBudget);
+		tileBlockSection.end(tileStart);
+		long lightStart = lightingSection.start();
+		lightEngine.process(Main.getInstance().lightBudget);
+		lightingSection.end(lightStart);
+		long cleanupStart = chunkCleanupSection.start();
+		chunks.processQueues(Main.getInstance().chunkUnloadBudget, Main.getInstance().chunkSaveBudget);
+		chunkCleanupSection.end(cleanupStart);
+		this.time += 1;
+		tickSection.end(tickStart);
+	}
+
+	/**
+	 * Ticks the tile blocks of the current bucket, when the budget runs out
+	 * the next tick continues in the same bucket, so under load every tile
+	 * block is ticked less often instead of all of them on the same tick.
+	 *
+	 * @param budget the maximum amount of tile blocks to tick
+	 */
+	private void tickTileBlocks(int budget) {
+		List<TileBlock> bucket = tileBuckets.get(tileBucket);
+		// tile blocks added while ticking are placed at the end and wait for the next round
+		int end = bucket.size();
+		while (tileBucketIndex < end && budget-- > 0) {
+			TileBlock tile = bucket.get(tileBucketIndex);
+			if (tile.serverTick()) {
+				bucket.remove(tileBucketIndex);
+				end--;
+			} else {
+				tileBucketIndex++;
 			}
 		}
-		this.time += 1;
+		if (tileBucketIndex < end) {
+			return;
+		}
+		tileBucketIndex = 0;
+		tileBucket = (tileBucket + 1) % TILE_TICK_INTERVAL;
+	}
+
+	private static int getTileBucket(int x, int y, int z) {
+		int hash = (x * 31 + y) * 31 + z;
+		hash ^= hash >>> 16;
+		return (hash & Integer.MAX_VALUE) % TILE_TICK_INTERVAL;
 	}
 
 	public void doTileBlock(int x, int y, int z) {
@@ -349,14 +600,15 @@ public class EnderWorld implements World {
 		BlockId blockId = chunk.getBlock(x & 0xF, y & 0xFF, z & 0xF);
 		Class<? extends TileBlock> clazz = TileBlocks.getTileBlock(blockId);
 		if (clazz != null) {
-			for (TileBlock tile : this.tickList) {
+			List<TileBlock> bucket = this.tileBuckets.get(getTileBucket(x, y, z));
+			for (TileBlock tile : bucket) {
 				if (tile.getX() == x && tile.getY() == y && tile.getZ() == z) {
 					// already is a tile block
 					return;
 				}
 			}
 			try {
-				this.tickList.add(clazz.getConstructor(EnderWorld.class, int.class, int.class, int.class).newInstance(this, x, y, z));
+				bucket.add(clazz.getConstructor(EnderWorld.class, int.class, int.class, int.class).newInstance(this, x, y, z));
 			} catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException | NoSuchMethodException | SecurityException e) {
 				e.printStackTrace();
 			}
@@ -0,0 +1,583 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Keeps the block light and sky light of the loaded chunks of a world up to
+ * date. Block changes are queued and handled in batches every tick, changing
+ * the same block multiple times before the batch runs costs only one update.
+ *
+ * An update removes the old light of the changed block with a breadth first
+ * search over the blocks that got their light from it, and then spreads the
+ * light of the new block and the remaining neighbours again. The work is
+ * proportional to the amount of blocks that change light level, light never
+ * spreads into chunks that aren't loaded.
+ *
+ * New chunks get their sky light from {@link EnderChunk}, filled straight
+ * down from the sky. When the chunk is queued here its light sources, the sky
+ * light next to columns that are higher than their neighbours and the light
+ * at its borders are spread. A chunk that is about to be sent is lit
+ * directly if its turn didn't come yet.
+ *
+ * Must only be used by the thread that ticks the world.
+ *
+ * @author Fernando
+ */
+public class LightEngine {
+
+	private static final byte[] EMISSION = new byte[4096];
+	private static final byte[] OPACITY = new byte[4096];
+	private static final int[] DX = { 0, 0, -1, 1, 0, 0 };
+	private static final int[] DY = { -1, 1, 0, 0, 0, 0 };
+	private static final int[] DZ = { 0, 0, 0, 0, -1, 1 };
+	private static final int DOWN = 0;
+
+	static {
+		Arrays.fill(OPACITY, (byte) 15);
+		BlockId[] transparent = {
+			BlockId.AIR, BlockId.SAPLING, BlockId.GLASS, BlockId.BED_BLOCK, BlockId.POWERED_RAIL,
+			BlockId.DETECTOR_RAIL, BlockId.LONG_GRASS, BlockId.DEAD_BUSH, BlockId.PISTON_EXTENSION,
+			BlockId.PISTON_MOVING_PIECE, BlockId.YELLOW_FLOWER, BlockId.RED_ROSE, BlockId.BROWN_MUSHROOM,
+			BlockId.RED_MUSHROOM, BlockId.TORCH, BlockId.FIRE, BlockId.MOB_SPAWNER, BlockId.CHEST,
+			BlockId.REDSTONE_WIRE, BlockId.CROPS, BlockId.SIGN_POST, BlockId.WOODEN_DOOR, BlockId.LADDER,
+			BlockId.RAILS, BlockId.WALL_SIGN, BlockId.LEVER, BlockId.STONE_PLATE, BlockId.IRON_DOOR_BLOCK,
+			BlockId.WOOD_PLATE, BlockId.REDSTONE_TORCH_OFF, BlockId.REDSTONE_TORCH_ON, BlockId.BUTTON,
+			BlockId.SNOW, BlockId.SUGAR_CANE_BLOCK, BlockId.FENCE, BlockId.PORTAL, BlockId.CAKE_BLOCK,
+			BlockId.DIODE_BLOCK_OFF, BlockId.DIODE_BLOCK_ON, BlockId.TRAP_DOOR, BlockId.IRON_FENCE,
+			BlockId.THIN_GLASS, BlockId.PUMPKIN_STEM, BlockId.MELON_STEM, BlockId.VINE, BlockId.FENCE_GATE,
+			BlockId.WATER_LILY, BlockId.NETHER_FENCE, BlockId.NETHER_WARTS, BlockId.ENCHANTMENT_TABLE,
+			BlockId.BREWING_STAND, BlockId.CAULDRON, BlockId.ENDER_PORTAL, BlockId.DRAGON_EGG, BlockId.COCOA,
+			BlockId.ENDER_CHEST, BlockId.TRIPWIRE_HOOK, BlockId.TRIPWIRE, BlockId.BEACON, BlockId.COBBLE_WALL,
+			BlockId.FLOWER_POT, BlockId.CARROT, BlockId.POTATO, BlockId.WOOD_BUTTON, BlockId.SKULL,
+			BlockId.ANVIL, BlockId.TRAPPED_CHEST, BlockId.GOLD_PLATE, BlockId.IRON_PLATE,
+			BlockId.REDSTONE_COMPARATOR_OFF, BlockId.REDSTONE_COMPARATOR_ON, BlockId.DAYLIGHT_DETECTOR,
+			BlockId.HOPPER, BlockId.ACTIVATOR_RAIL, BlockId.STAINED_GLASS, BlockId.SLIME_BLOCK, BlockId.BARRIER,
+			BlockId.IRON_TRAPDOOR, BlockId.CARPET, BlockId.FLOWER, BlockId.BANNER_STANDING,
+			BlockId.BANNER_HANGING, BlockId.INVERTED_DAYLIGHT_SENSOR, BlockId.SPRUCE_FENCE_GATE,
+			BlockId.BIRCH_FENCE_GATE, BlockId.JUNGLE_FENCE_GATE, BlockId.DARK_OAK_FENCE_GATE,
+			BlockId.ACACIA_FENCE_GATE, BlockId.SPRUCE_FENCE, BlockId.BIRCH_FENCE, BlockId.JUNGLE_FENCE,
+			BlockId.DARK_OAK_FENCE, BlockId.ACACIA_FENCE, BlockId.SPRUCE_DOOR_BLOCK, BlockId.BIRCH_DOOR_BLOCK,
+			BlockId.JUNGLE_DOOR_BLOCK, BlockId.ACACIA_DOOR_BLOCK, BlockId.DARK_OAK_DOOR_BLOCK
+		};
+		for (BlockId id : transparent) {
+			OPACITY[id.getId()] = 0;
+		}
+		OPACITY[BlockId.LEAVES.getId()] = 1;
+		OPACITY[BlockId.ACACIA_LEAVES.getId()] = 1;
+		OPACITY[BlockId.WEB.getId()] = 1;
+		OPACITY[BlockId.WATER.getId()] = 3;
+		OPACITY[BlockId.WATER_FLOWING.getId()] = 3;
+		OPACITY[BlockId.ICE.getId()] = 3;
+
+		EMISSION[BlockId.TORCH.getId()] = 14;
+		EMISSION[BlockId.FIRE.getId()] = 15;
+		EMISSION[BlockId.LAVA.getId()] = 15;
+		EMISSION[BlockId.LAVA_FLOWING.getId()] = 15;
+		EMISSION[BlockId.GLOWSTONE.getId()] = 15;
+		EMISSION[BlockId.JACK_O_LANTERN.getId()] = 15;
+		EMISSION[BlockId.REDSTONE_LAMP_ON.getId()] = 15;
+		EMISSION[BlockId.BEACON.getId()] = 15;
+		EMISSION[BlockId.SEA_LANTERN.getId()] = 15;
+		EMISSION[BlockId.ENDER_PORTAL.getId()] = 15;
+		EMISSION[BlockId.BURNING_FURNACE.getId()] = 13;
+		EMISSION[BlockId.PORTAL.getId()] = 11;
+		EMISSION[BlockId.GLOWING_REDSTONE_ORE.getId()] = 9;
+		EMISSION[BlockId.DIODE_BLOCK_ON.getId()] = 9;
+		EMISSION[BlockId.REDSTONE_COMPARATOR_ON.getId()] = 9;
+		EMISSION[BlockId.REDSTONE_TORCH_ON.getId()] = 7;
+		EMISSION[BlockId.BROWN_MUSHROOM.getId()] = 1;
+	}
+
+	private final EnderWorld world;
+	/**
+	 * Changed blocks waiting for an update, a set so a block that is changed
+	 * multiple times before the next batch is only updated once
+	 */
+	private final Set<Long> pendingChanges = new LinkedHashSet<>();
+	private final Queue<EnderChunk> pendingChunks = new ArrayDeque<>();
+	private final LongQueue decrease = new LongQueue();
+	private final LongQueue increase = new LongQueue();
+	private EnderChunk lastChunk;
+	private long updatedBlocks;
+	private long coalescedChanges;
+
+	public LightEngine(EnderWorld world) {
+		this.world = world;
+	}
+
+	/**
+	 * Gets the light a block gives off
+	 *
+	 * @param id the block id
+	 * @return the light level, 0-15
+	 */
+	public static int getEmission(int id) {
+		return EMISSION[id];
+	}
+
+	/**
+	 * Gets how much light is lost when it passes through a block, light
+	 * always loses at least 1 level for every block it travels
+	 *
+	 * @param id the block id
+	 * @return the opacity, 0-15
+	 */
+	public static int getOpacity(int id) {
+		return OPACITY[id];
+	}
+
+	/**
+	 * Checks if replacing a block with another block could change the light
+	 *
+	 * @param oldId the id of the old block
+	 * @param newId the id of the new block
+	 * @return true if the light has to be updated
+	 */
+	public static boolean affectsLight(int oldId, int newId) {
+		return EMISSION[oldId] != EMISSION[newId] || OPACITY[oldId] != OPACITY[newId];
+	}
+
+	/**
+	 * Gets a loaded chunk, light is never spread into chunks that aren't
+	 * loaded
+	 *
+	 * @param x the chunk x
+	 * @param z the chunk z
+	 * @return the chunk, or null if it isn't loaded
+	 */
+	protected EnderChunk getChunk(int x, int z) {
+		return world.getLoadedChunk(x, z);
+	}
+
+	/**
+	 * Queues the light around a changed block to be updated
+	 *
+	 * @param x the block x
+	 * @param y the block y
+	 * @param z the block z
+	 */
+	public void queueBlockChange(int x, int y, int z) {
+		if (!pendingChanges.add(pack(x, y, z, 0))) {
+			coalescedChanges++;
+		}
+	}
+
+	/**
+	 * Queues a chunk that just got loaded to spread the light of its light
+	 * sources and from its neighbours
+	 *
+	 * @param chunk the chunk
+	 */
+	public void queueChunk(EnderChunk chunk) {
+		chunk.lightPending = true;
+		pendingChunks.add(chunk);
+	}
+
+	/**
+	 * Spreads the light of a queued chunk now instead of waiting for its turn,
+	 * called before a chunk is sent for the first time
+	 *
+	 * @param chunk the chunk
+	 */
+	public void lightIfPending(EnderChunk chunk) {
+		if (!chunk.lightPending) {
+			return;
+		}
+		try {
+			lightChunk(chunk);
+		} finally {
+			lastChunk = null;
+		}
+	}
+
+	/**
+	 * Handles the queued updates until the budget runs out, updates that
+	 * didn't fit are kept for the next call
+	 *
+	 * @param budget the time budget in nanoseconds
+	 * @return the amount of block changes and chunks that have been handled
+	 */
+	public int process(long budget) {
+		long deadline = System.nanoTime() + budget;
+		int done = 0;
+		lastChunk = null;
+		try {
+			Iterator<Long> changes = pendingChanges.iterator();
+			while (changes.hasNext()) {
+				long pos = changes.next();
+				changes.remove();
+				updateBlock(unpackX(pos), unpackY(pos), unpackZ(pos));
+				done++;
+				if (System.nanoTime() - deadline >= 0) {
+					return done;
+				}
+			}
+			EnderChunk chunk;
+			while ((chunk = pendingChunks.poll()) != null) {
+				if (!chunk.lightPending) {
+					continue; // lit before it was sent
+				}
+				if (chunk.chunkState.get() != EnderChunk.ChunkState.GONE) {
+					lightChunk(chunk);
+				}
+				done++;
+				if (System.nanoTime() - deadline >= 0) {
+					return done;
+				}
+			}
+			return done;
+		} finally {
+			// chunks may be unloaded before the next call
+			lastChunk = null;
+		}
+	}
+
+	public int getPendingChanges() {
+		return pendingChanges.size();
+	}
+
+	public int getPendingChunks() {
+		return pendingChunks.size();
+	}
+
+	/**
+	 * @return the total amount of blocks that changed light level
+	 */
+	public long getUpdatedBlocks() {
+		return updatedBlocks;
+	}
+
+	/**
+	 * @return the total amount of block changes that were merged with an
+	 * already queued change of the same block
+	 */
+	public long getCoalescedChanges() {
+		return coalescedChanges;
+	}
+
+	private void updateBlock(int x, int y, int z) {
+		EnderChunk chunk = chunkAt(x, z);
+		if (chunk == null) {
+			return;
+		}
+		int id = chunk.getState(x & 0xF, y, z & 0xF) >>> 4;
+		updateLight(chunk, x, y, z, false, EMISSION[id]);
+		updateLight(chunk, x, y, z, true, y == 255 && OPACITY[id] == 0 ? 15 : 0);
+	}
+
+	private void updateLight(EnderChunk chunk, int x, int y, int z, boolean sky, int source) {
+		int old = getLight(chunk, x, y, z, sky);
+		if (old > 0) {
+			setLight(chunk, x, y, z, sky, 0);
+			decrease.add(pack(x, y, z, old));
+			runDecrease(sky);
+		}
+		if (source > 0) {
+			setLight(chunk, x, y, z, sky, source);
+			increase.add(pack(x, y, z, source));
+		}
+		// the neighbours may shine into the changed block
+		for (int d = 0; d < 6; d++) {
+			int ny = y + DY[d];
+			if (ny < 0 || ny > 255) {
+				continue;
+			}
+			int nx = x + DX[d];
+			int nz = z + DZ[d];
+			EnderChunk neighbour = chunkAt(nx, nz);
+			if (neighbour == null) {
+				continue;
+			}
+			int level = getLight(neighbour, nx, ny, nz, sky);
+			if (level > 1) {
+				increase.add(pack(nx, ny, nz, level));
+			}
+		}
+		runIncrease(sky);
+	}
+
+	/**
+	 * Spreads the light of the light sources of a chunk, the sky light under
+	 * overhangs, and the light between the chunk and its loaded neighbours
+	 */
+	private void lightChunk(EnderChunk chunk) {
+		chunk.lightPending = false;
+		int baseX = chunk.getX() << 4;
+		int baseZ = chunk.getZ() << 4;
+		for (int s = 0; s < EnderChunk.MAX_CHUNK_SECTIONS; s++) {
+			ChunkSection section = chunk.getSection(s);
+			if (section == null || !mayEmit(section)) {
+				continue;
+			}
+			for (int i = 0; i < ChunkSection.BLOCKS; i++) {
+				int emission = EMISSION[section.get(i) >>> 4];
+				if (emission == 0) {
+					continue;
+				}
+				int x = i & 0xF;
+				int y = s << 4 | i >> 8;
+				int z = i >> 4 & 0xF;
+				if (emission > chunk.getBlockLight(x, y, z)) {
+					setLight(chunk, baseX + x, y, baseZ + z, false, emission);
+					increase.add(pack(baseX + x, y, baseZ + z, emission));
+				}
+			}
+		}
+		seedBorders(chunk, false);
+		runIncrease(false);
+		seedSkyColumns(chunk);
+		seedBorders(chunk, true);
+		runIncrease(true);
+	}
+
+	/**
+	 * Queues the sky light that can spread sideways. The sky light is filled
+	 * straight down, so only the blocks of a column that are next to a higher
+	 * column can light the blocks under that higher column.
+	 */
+	private void seedSkyColumns(EnderChunk chunk) {
+		int baseX = chunk.getX() << 4;
+		int baseZ = chunk.getZ() << 4;
+		for (int x = 0; x < 16; x++) {
+			for (int z = 0; z < 16; z++) {
+				int height = chunk.getHighestBlockAt(x, z);
+				for (int d = 2; d < 6; d++) {
+					int nx = x + DX[d];
+					int nz = z + DZ[d];
+					if (nx < 0 || nx > 15 || nz < 0 || nz > 15) {
+						continue; // handled by seedBorders
+					}
+					int neighbourHeight = chunk.getHighestBlockAt(nx, nz);
+					for (int y = height; y < neighbourHeight; y++) {
+						int level = chunk.getSkyLight(x, y, z);
+						if (level > chunk.getSkyLight(nx, y, nz) + 1) {
+							increase.add(pack(baseX + x, y, baseZ + z, level));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean mayEmit(ChunkSection section) {
+		int paletteSize = section.getPaletteSize();
+		if (paletteSize == 0) {
+			return true;
+		}
+		for (int i = 0; i < paletteSize; i++) {
+			if (EMISSION[section.getPaletteEntry(i) >>> 4] != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Queues the blocks at the borders of a chunk that can shine into the
+	 * chunk next to them
+	 */
+	private void seedBorders(EnderChunk chunk, boolean sky) {
+		for (int d = 2; d < 6; d++) {
+			EnderChunk neighbour = getChunk(chunk.getX() + DX[d], chunk.getZ() + DZ[d]);
+			if (neighbour == null) {
+				continue;
+			}
+			for (int i = 0; i < 16; i++) {
+				// position of the border block in chunk, and the block next to it in neighbour
+				int x = DX[d] == 0 ? i : DX[d] < 0 ? 0 : 15;
+				int z = DZ[d] == 0 ? i : DZ[d] < 0 ? 0 : 15;
+				int nx = x - DX[d] * 15;
+				int nz = z - DZ[d] * 15;
+				for (int y = 0; y < 256; y++) {
+					int own = getLocalLight(chunk, x, y, z, sky);
+					int other = getLocalLight(neighbour, nx, y, nz, sky);
+					if (own > other + 1) {
+						increase.add(pack((chunk.getX() << 4) + x, y, (chunk.getZ() << 4) + z, own));
+					} else if (other > own + 1) {
+						increase.add(pack((neighbour.getX() << 4) + nx, y, (neighbour.getZ() << 4) + nz, other));
+					}
+				}
+			}
+		}
+	}
+
+	private void runDecrease(boolean sky) {
+		while (!decrease.isEmpty()) {
+			long entry = decrease.poll();
+			int x = unpackX(entry);
+			int y = unpackY(entry);
+			int z = unpackZ(entry);
+			int level = unpackLevel(entry);
+			for (int d = 0; d < 6; d++) {
+				int ny = y + DY[d];
+				if (ny < 0 || ny > 255) {
+					continue;
+				}
+				int nx = x + DX[d];
+				int nz = z + DZ[d];
+				EnderChunk chunk = chunkAt(nx, nz);
+				if (chunk == null) {
+					continue;
+				}
+				int neighbourLevel = getLight(chunk, nx, ny, nz, sky);
+				if (neighbourLevel == 0) {
+					continue;
+				}
+				if (neighbourLevel < level || sky && d == DOWN && level == 15 && neighbourLevel == 15) {
+					setLight(chunk, nx, ny, nz, sky, 0);
+					decrease.add(pack(nx, ny, nz, neighbourLevel));
+				} else {
+					// lit by something else, spread it again into the removed area
+					increase.add(pack(nx, ny, nz, neighbourLevel));
+				}
+			}
+		}
+	}
+
+	private void runIncrease(boolean sky) {
+		while (!increase.isEmpty()) {
+			long entry = increase.poll();
+			int x = unpackX(entry);
+			int y = unpackY(entry);
+			int z = unpackZ(entry);
+			int level = unpackLevel(entry);
+			EnderChunk current = chunkAt(x, z);
+			if (current == null || getLight(current, x, y, z, sky) != level) {
+				continue; // changed after it was queued
+			}
+			for (int d = 0; d < 6; d++) {
+				int ny = y + DY[d];
+				if (ny < 0 || ny > 255) {
+					continue;
+				}
+				int nx = x + DX[d];
+				int nz = z + DZ[d];
+				EnderChunk chunk = chunkAt(nx, nz);
+				if (chunk == null) {
+					continue;
+				}
+				int opacity = OPACITY[chunk.getState(nx & 0xF, ny, nz & 0xF) >>> 4];
+				int newLevel = sky && d == DOWN && level == 15 && opacity == 0 ? 15 : level - Math.max(1, opacity);
+				if (newLevel > getLight(chunk, nx, ny, nz, sky)) {
+					setLight(chunk, nx, ny, nz, sky, newLevel);
+					if (newLevel > 1) {
+						increase.add(pack(nx, ny, nz, newLevel));
+					}
+				}
+			}
+		}
+	}
+
+	private EnderChunk chunkAt(int x, int z) {
+		int chunkX = x >> 4;
+		int chunkZ = z >> 4;
+		EnderChunk chunk = lastChunk;
+		if (chunk != null && chunk.getX() == chunkX && chunk.getZ() == chunkZ) {
+			return chunk;
+		}
+		chunk = getChunk(chunkX, chunkZ);
+		if (chunk != null) {
+			lastChunk = chunk;
+		}
+		return chunk;
+	}
+
+	private static int getLight(EnderChunk chunk, int x, int y, int z, boolean sky) {
+		return getLocalLight(chunk, x & 0xF, y, z & 0xF, sky);
+	}
+
+	private static int getLocalLight(EnderChunk chunk, int x, int y, int z, boolean sky) {
+		return sky ? chunk.getSkyLight(x, y, z) : chunk.getBlockLight(x, y, z);
+	}
+
+	private void setLight(EnderChunk chunk, int x, int y, int z, boolean sky, int level) {
+		if (sky) {
+			chunk.setSkyLight(x & 0xF, y, z & 0xF, level);
+		} else {
+			chunk.setBlockLight(x & 0xF, y, z & 0xF, level);
+		}
+		updatedBlocks++;
+	}
+
+	/**
+	 * Packs a position and a light level in a long, 26 bits for x and z, 8
+	 * bits for y and 4 bits for the level
+	 */
+	private static long pack(int x, int y, int z, int level) {
+		return (long) (x & 0x3FFFFFF) << 38 | (long) (z & 0x3FFFFFF) << 12 | (y & 0xFF) << 4 | level & 0xF;
+	}
+
+	private static int unpackX(long packed) {
+		return (int) (packed >> 38);
+	}
+
+	private static int unpackZ(long packed) {
+		return (int) (packed << 26 >> 38);
+	}
+
+	private static int unpackY(long packed) {
+		return (int) (packed >>> 4 & 0xFF);
+	}
+
+	private static int unpackLevel(long packed) {
+		return (int) (packed & 0xF);
+	}
+
+	/**
+	 * Queue of longs backed by an array that grows when needed, this avoids
+	 * boxing every queued block
+	 */
+	private static class LongQueue {
+
+		private long[] entries = new long[1024];
+		private int head;
+		private int tail;
+
+		public void add(long value) {
+			if (tail == entries.length) {
+				if (head > entries.length / 2) {
+					System.arraycopy(entries, head, entries, 0, tail - head);
+				} else {
+					entries = Arrays.copyOfRange(entries, head, entries.length * 2);
+				}
+				tail -= head;
+				head = 0;
+			}
+			entries[tail++] = value;
+		}
+
+		public long poll() {
+			long value = entries[head++];
+			if (head == tail) {
+				head = tail = 0;
+			}
+			return value;
+		}
+
+		public boolean isEmpty() {
+			return head == tail;
+		}
+	}
+}
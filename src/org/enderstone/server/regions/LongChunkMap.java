@@ -0,0 +1,286 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of chunks stored in an open addressing hash table, keyed by the
+ * position of the chunk packed in a long. Collisions are resolved using
+ * linear probing, and removed entries are filled by moving the entries after
+ * them back, so there are no tombstones and nothing is boxed.
+ *
+ * Compared to a {@link RegionSet} this uses less memory when the chunks are
+ * spread over many regions, but it can't find the chunks in an area without
+ * looking at every chunk.
+ *
+ * @author Fernando
+ */
+public class LongChunkMap extends AbstractSet<EnderChunk> implements ChunkSet {
+
+	private static final int MIN_CAPACITY = 64;
+	private long[] keys;
+	/**
+	 * The chunks, null for empty slots
+	 */
+	private EnderChunk[] values;
+	private int mask;
+	private int size;
+	private int maxSize;
+
+	public LongChunkMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize the amount of chunks this can hold before it grows
+	 */
+	public LongChunkMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity * 3 / 4 < expectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = new EnderChunk[capacity];
+		this.mask = capacity - 1;
+		this.maxSize = capacity * 3 / 4;
+	}
+
+	private static long key(int x, int z) {
+		return ((long) x << 32) ^ (z & 0xFFFFFFFFL);
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ h >>> 32) & mask;
+	}
+
+	/**
+	 * Finds the slot of a key
+	 *
+	 * @return the slot, or -1 if the key isn't in this map
+	 */
+	private int find(long key) {
+		int i = slot(key);
+		while (values[i] != null) {
+			if (keys[i] == key) {
+				return i;
+			}
+			i = i + 1 & mask;
+		}
+		return -1;
+	}
+
+	@Override
+	public EnderChunk get(int x, int z) {
+		int i = find(key(x, z));
+		return i < 0 ? null : values[i];
+	}
+
+	@Override
+	public boolean contains(int x, int z) {
+		return find(key(x, z)) >= 0;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (!(o instanceof EnderChunk)) {
+			return false;
+		}
+		EnderChunk c = (EnderChunk) o;
+		return contains(c.getX(), c.getZ());
+	}
+
+	/**
+	 * Adds a chunk, replacing the chunk at the same position
+	 */
+	@Override
+	public boolean add(EnderChunk c) {
+		long key = key(c.getX(), c.getZ());
+		int i = slot(key);
+		while (values[i] != null) {
+			if (keys[i] == key) {
+				EnderChunk old = values[i];
+				values[i] = c;
+				return old != c;
+			}
+			i = i + 1 & mask;
+		}
+		keys[i] = key;
+		values[i] = c;
+		if (++size > maxSize) {
+			rehash(values.length << 1);
+		}
+		return true;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		EnderChunk[] oldValues = values;
+		allocate(capacity);
+		for (int j = 0; j < oldValues.length; j++) {
+			if (oldValues[j] != null) {
+				int i = slot(oldKeys[j]);
+				while (values[i] != null) {
+					i = i + 1 & mask;
+				}
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if (!(o instanceof EnderChunk)) {
+			return false;
+		}
+		EnderChunk c = (EnderChunk) o;
+		int i = find(key(c.getX(), c.getZ()));
+		if (i < 0) {
+			return false;
+		}
+		removeSlot(i, null);
+		return true;
+	}
+
+	/**
+	 * Empties a slot and moves the entries after it back when their probe
+	 * sequence passes the empty slot
+	 *
+	 * @param pos the slot
+	 * @param wrapped when not null, the entries that moved from the start of
+	 * the table to a slot at or after pos are added to it
+	 */
+	private void removeSlot(int pos, List<EnderChunk> wrapped) {
+		size--;
+		int hole = pos;
+		int i = pos;
+		while (true) {
+			i = i + 1 & mask;
+			EnderChunk c = values[i];
+			if (c == null) {
+				break;
+			}
+			int home = slot(keys[i]);
+			// the entry can move to the hole if its home slot isn't cyclically between the hole and its slot
+			if (hole <= i ? hole >= home || home > i : hole >= home && home > i) {
+				if (wrapped != null && i < hole) {
+					wrapped.add(c);
+				}
+				keys[hole] = keys[i];
+				values[hole] = c;
+				hole = i;
+			}
+		}
+		values[hole] = null;
+	}
+
+	@Override
+	public Iterator<EnderChunk> iterator() {
+		return new Iterator<EnderChunk>() {
+
+			/**
+			 * The slots are visited from the end to the start, so removing an
+			 * entry only moves entries that were visited already, except the
+			 * entries that wrap around the end of the table
+			 */
+			private int pos = values.length;
+			private int next = -1;
+			private int last = -1;
+			private List<EnderChunk> wrapped;
+			private int wrappedIndex;
+			private EnderChunk lastWrapped;
+
+			{
+				findNext();
+			}
+
+			private void findNext() {
+				next = pos - 1;
+				while (next >= 0 && values[next] == null) {
+					next--;
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next >= 0 || wrapped != null && wrappedIndex < wrapped.size();
+			}
+
+			@Override
+			public EnderChunk next() {
+				if (next >= 0) {
+					pos = next;
+					last = next;
+					lastWrapped = null;
+					findNext();
+					return values[last];
+				}
+				if (wrapped != null && wrappedIndex < wrapped.size()) {
+					last = -1;
+					lastWrapped = wrapped.get(wrappedIndex++);
+					return lastWrapped;
+				}
+				throw new NoSuchElementException();
+			}
+
+			@Override
+			public void remove() {
+				if (lastWrapped != null) {
+					LongChunkMap.this.remove(lastWrapped);
+					lastWrapped = null;
+					return;
+				}
+				if (last < 0) {
+					throw new IllegalStateException();
+				}
+				if (wrapped == null) {
+					wrapped = new ArrayList<>(2);
+				}
+				removeSlot(last, wrapped);
+				last = -1;
+				// entries before the removed slot could have moved back
+				findNext();
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		if (size == 0) {
+			return;
+		}
+		Arrays.fill(values, null);
+		size = 0;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions;
+
+import java.util.Arrays;
+
+/**
+ * 4096 values of 4 bits, packed 2 per byte in the same order as the light
+ * arrays of the chunk packet: the even index in the low nibble
+ *
+ * @author Fernando
+ */
+public class NibbleArray {
+
+	private final byte[] data;
+
+	/**
+	 * Creates a new NibbleArray with every value set to <code>value</code>
+	 *
+	 * @param value the initial value
+	 */
+	public NibbleArray(int value) {
+		this.data = new byte[ChunkSection.BLOCKS / 2];
+		if (value != 0) {
+			Arrays.fill(data, (byte) (value << 4 | value));
+		}
+	}
+
+	public NibbleArray() {
+		this(0);
+	}
+
+	public int get(int index) {
+		return data[index >> 1] >> ((index & 1) << 2) & 0xF;
+	}
+
+	public void set(int index, int value) {
+		int shift = (index & 1) << 2;
+		int i = index >> 1;
+		data[i] = (byte) (data[i] & ~(0xF << shift) | (value & 0xF) << shift);
+	}
+
+	/**
+	 * Gets the backing array, changes to the returned array are reflected in
+	 * this NibbleArray
+	 *
+	 * @return the packed values
+	 */
+	public byte[] getData() {
+		return data;
+	}
+}
@@ -20,19 +20,28 @@ package org.enderstone.server.regions;
 import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * This Set is used to store the chunks in a HashSet manner from a world, it generally has better performance over a
  * HashSet for chunks since its focussed on storing chunks from a region together in the same subnode
  *
+ * Every node keeps the amount of chunks it contains, nodes without chunks are removed and the size of the set is kept
+ * up to date, so {@link #size()} doesn't have to look at the nodes. The chunks in a rectangle or a circle can be found
+ * by only looking at the nodes of the regions that overlap it.
+ *
+ * A chunk replaces the chunk at the same position, as 2 chunks at the same position are equal.
+ *
  * @author ferrybig
  */
-public class RegionSet extends AbstractSet<EnderChunk> {
+public class RegionSet extends AbstractSet<EnderChunk> implements ChunkSet {
 
 	private static final int REGION_BUCKET_SIZE = 32 * 32;
 	
 	private static final int CHUNK_BUCKET_SIZE = 16;
 	private Node[][] chunkBuckets = new Node[CHUNK_BUCKET_SIZE][CHUNK_BUCKET_SIZE];
+	private int size;
+	private int nodeCount;
 
 	private static class Node {
 
@@ -44,6 +53,10 @@ public class RegionSet extends AbstractSet<EnderChunk> {
 		private final int regionX, regionZ;
 		private Node next;
 		private final EnderChunk[] regionChunks = new EnderChunk[REGION_BUCKET_SIZE];
+		/**
+		 * The amount of chunks in regionChunks that aren't null
+		 */
+		private int size;
 
 	}
 
@@ -70,202 +83,313 @@ public class RegionSet extends AbstractSet<EnderChunk> {
 						thisNode = thisNode.next;
 					}
 					System.arraycopy(otherNode.regionChunks, 0, thisNode.regionChunks, 0, REGION_BUCKET_SIZE);
+					thisNode.size = otherNode.size;
 				}
 			}
 		}
+		this.size = other.size;
+		this.nodeCount = other.nodeCount;
+	}
+
+	/**
+	 * Finds the node of a region
+	 *
+	 * @return the node, or null if the region has no chunks
+	 */
+	private Node getNode(int rX, int rZ) {
+		Node n = this.chunkBuckets[maskCordinate(rX)][maskCordinate(rZ)];
+		while (n != null && (n.regionX != rX || n.regionZ != rZ)) {
+			n = n.next;
+		}
+		return n;
 	}
 
 	@Override
 	public boolean add(EnderChunk c) {
 		int x = c.getX();
 		int z = c.getZ();
-		
 		int rX = calculateRegionPos(x);
 		int rZ = calculateRegionPos(z);
-		Node prev;
-		Node n = this.chunkBuckets[maskCordinate(rX)][maskCordinate(rZ)];
+		Node n = getNode(rX, rZ);
 		if (n == null) {
-			n = this.chunkBuckets[maskCordinate(rX)][maskCordinate(rZ)] = new Node(rX, rZ);
+			n = new Node(rX, rZ);
+			n.next = this.chunkBuckets[maskCordinate(rX)][maskCordinate(rZ)];
+			this.chunkBuckets[maskCordinate(rX)][maskCordinate(rZ)] = n;
+			this.nodeCount++;
 		}
-		do {
-			prev = n;
-			if (n.regionX == rX && n.regionZ == rZ) {
-				n.regionChunks[calculateChunkPos(x) + calculateChunkPos(z) * 32] = c;
-				return true;
-			}
-		} while ((n = n.next) != null);
-
-		prev.next = new Node(rX, rZ);
-		prev.regionChunks[calculateChunkPos(x) + calculateChunkPos(z) * 32] = c;
-		return true;
+		int index = calculateChunkPos(x) + calculateChunkPos(z) * 32;
+		EnderChunk old = n.regionChunks[index];
+		n.regionChunks[index] = c;
+		if (old == null) {
+			n.size++;
+			this.size++;
+			return true;
+		}
+		return old != c;
 	}
 
 	@Override
 	public Iterator<EnderChunk> iterator() {
 		return new Iterator<EnderChunk>() {
 
-			private EnderChunk next;
-			private int loopSize = Integer.MAX_VALUE;
+			/**
+			 * Index of the bucket of the node, in x * 16 + z order
+			 */
+			private int bucket = -1;
 			private Node node;
-			private int chunkX;
-			private int chunkZ;
-			private boolean hasNext = true;
+			/**
+			 * The index of the next chunk inside the node
+			 */
+			private int index;
+			private Node lastNode;
+			private int lastIndex = -1;
 
-			private boolean calculateNext() {
-				if (hasNext == false) {
-					return false;
-				}
-				mainLoop:
-				while (next == null) {
-					if (loopSize >= 32 * 32) {
-						loopSize = 0;
+			{
+				findNext(null, 0);
+			}
 
-						if (node != null) {
-							node = node.next;
-						}
-						while (node == null) {
-							node = RegionSet.this.chunkBuckets[chunkX][chunkZ];
-							if (chunkX >= 15) {
-								if (chunkZ >= 15) {
-									break mainLoop;
-								}
-								chunkZ++;
-								chunkX = 0;
-							} else {
-								chunkX++;
+			/**
+			 * Finds the first chunk at or after the index in the node, or in the nodes after it
+			 */
+			private void findNext(Node start, int startIndex) {
+				Node n = start;
+				int i = startIndex;
+				while (true) {
+					if (n != null && n.size > 0) {
+						for (; i < REGION_BUCKET_SIZE; i++) {
+							if (n.regionChunks[i] != null) {
+								node = n;
+								index = i;
+								return;
 							}
 						}
 					}
-					next = node.regionChunks[loopSize];
-					loopSize++;
-				}
-				if (next == null) {
-					hasNext = false;
+					i = 0;
+					if (n != null) {
+						n = n.next;
+					}
+					while (n == null) {
+						if (++bucket >= CHUNK_BUCKET_SIZE * CHUNK_BUCKET_SIZE) {
+							node = null;
+							return;
+						}
+						n = chunkBuckets[bucket / CHUNK_BUCKET_SIZE][bucket % CHUNK_BUCKET_SIZE];
+					}
 				}
-				return next != null;
-
 			}
 
 			@Override
 			public boolean hasNext() {
-				if (next == null) {
-					return calculateNext();
-				}
-				return true;
+				return node != null;
 			}
 
 			@Override
 			public EnderChunk next() {
-				if (next == null) {
-					if (!calculateNext()) {
-						throw new IllegalStateException("No Chunks");
-					}
+				if (node == null) {
+					throw new NoSuchElementException("No Chunks");
 				}
-				EnderChunk n = next;
-				next = null;
-				return n;
+				EnderChunk c = node.regionChunks[index];
+				lastNode = node;
+				lastIndex = index;
+				findNext(node, index + 1);
+				return c;
 			}
 
 			@Override
 			public void remove() {
-				throw new IllegalStateException("NOPE!");
+				if (lastIndex < 0) {
+					throw new IllegalStateException();
+				}
+				// removing the node from its bucket keeps its next pointer, so the iteration can continue
+				removeAt(lastNode, lastIndex);
+				lastIndex = -1;
 			}
 		};
 	}
 
-	@Override
-	public int size() {
-		int size = 0;
-		for (Node[] nodes : chunkBuckets) {
-			for (Node singleNode : nodes) {
-				if (singleNode == null) {
-					continue;
+	/**
+	 * Removes the chunk at an index of a node, and the node when it's empty
+	 * afterwards
+	 */
+	private void removeAt(Node n, int index) {
+		n.regionChunks[index] = null;
+		n.size--;
+		this.size--;
+		if (n.size == 0) {
+			int bX = maskCordinate(n.regionX);
+			int bZ = maskCordinate(n.regionZ);
+			Node prev = this.chunkBuckets[bX][bZ];
+			if (prev == n) {
+				this.chunkBuckets[bX][bZ] = n.next;
+			} else {
+				while (prev.next != n) {
+					prev = prev.next;
 				}
-				do {
-					for (EnderChunk c : singleNode.regionChunks) {
-						if (c != null) {
-							size++;
-						}
-					}
-				} while ((singleNode = singleNode.next) != null);
+				prev.next = n.next;
 			}
+			this.nodeCount--;
 		}
+	}
+
+	@Override
+	public int size() {
 		return size;
 	}
 
+	/**
+	 * Gets the amount of regions that have at least 1 chunk in this set
+	 *
+	 * @return the amount of regions
+	 */
+	public int getRegionCount() {
+		return nodeCount;
+	}
+
 	@Override
 	public void clear() {
-		chunkBuckets = new Node[16][16];
+		chunkBuckets = new Node[CHUNK_BUCKET_SIZE][CHUNK_BUCKET_SIZE];
+		size = 0;
+		nodeCount = 0;
 	}
 
 	@Override
 	public boolean remove(Object o) {
+		if (!(o instanceof EnderChunk)) {
+			return false;
+		}
 		EnderChunk c = (EnderChunk) o;
 		int x = c.getX();
 		int z = c.getZ();
-		int rX = calculateRegionPos(x);
-		int rZ = calculateRegionPos(z);
-		Node n = this.chunkBuckets[maskCordinate(rX)][maskCordinate(rZ)];
-		if (n != null) {
-			do {
-				if (n.regionX == rX && n.regionZ == rZ) {
-					boolean contains = n.regionChunks[calculateChunkPos(x) + calculateChunkPos(z) * 32] != null;
-					n.regionChunks[calculateChunkPos(x) + calculateChunkPos(z) * 32] = null;
-					return contains;
-				}
-			} while ((n = n.next) != null);
+		Node n = getNode(calculateRegionPos(x), calculateRegionPos(z));
+		if (n == null) {
+			return false;
+		}
+		int index = calculateChunkPos(x) + calculateChunkPos(z) * 32;
+		if (n.regionChunks[index] == null) {
+			return false;
 		}
-		return false;
+		removeAt(n, index);
+		return true;
 	}
 
 	@Override
 	public boolean contains(Object o) {
-		EnderChunk c = (EnderChunk) o;
-		int x = c.getX();
-		int z = c.getZ();
-		int rX = calculateRegionPos(x);
-		int rZ = calculateRegionPos(z);
-		Node n = this.chunkBuckets[maskCordinate(rX)][maskCordinate(rZ)];
-		if (n != null) {
-			do {
-				if (n.regionX == rX && n.regionZ == rZ) {
-					return n.regionChunks[calculateChunkPos(x) + calculateChunkPos(z) * 32] != null;
-				}
-			} while ((n = n.next) != null);
+		if (!(o instanceof EnderChunk)) {
+			return false;
 		}
-		return false;
+		EnderChunk c = (EnderChunk) o;
+		return contains(c.getX(), c.getZ());
 	}
 
+	@Override
 	public boolean contains(int x, int z) {
-		int rX = calculateRegionPos(x);
-		int rZ = calculateRegionPos(z);
-		Node n = this.chunkBuckets[maskCordinate(rX)][maskCordinate(rZ)];
-		if (n != null) {
-			do {
-				if (n.regionX == rX && n.regionZ == rZ) {
-					return n.regionChunks[calculateChunkPos(x) + calculateChunkPos(z) * 32] == null;
+		Node n = getNode(calculateRegionPos(x), calculateRegionPos(z));
+		return n != null && n.regionChunks[calculateChunkPos(x) + calculateChunkPos(z) * 32] != null;
+	}
+
+	@Override
+	public EnderChunk get(int x, int z) {
+		Node n = getNode(calculateRegionPos(x), calculateRegionPos(z));
+		if (n == null) {
+			return null;
+		}
+		EnderChunk chunkF = n.regionChunks[calculateChunkPos(x) + calculateChunkPos(z) * 32];
+		if (chunkF != null && (chunkF.getX() != x || chunkF.getZ() != z)) {
+			throw new Error("chunkF.getX() != x " + chunkF.getX() + ":" + x + " AND chunkF.getZ() != z " + chunkF.getZ() + ":" + z);
+		}
+		return chunkF;
+	}
+
+	/**
+	 * Adds the chunks inside a rectangle to a collection, only the regions that
+	 * overlap the rectangle are looked at
+	 *
+	 * @param minX the lowest chunk x, inclusive
+	 * @param minZ the lowest chunk z, inclusive
+	 * @param maxX the highest chunk x, inclusive
+	 * @param maxZ the highest chunk z, inclusive
+	 * @param result the collection the chunks are added to
+	 * @return the amount of chunks found
+	 */
+	public int getInRectangle(int minX, int minZ, int maxX, int maxZ, Collection<? super EnderChunk> result) {
+		return find(minX, minZ, maxX, maxZ, 0, 0, -1, result);
+	}
+
+	/**
+	 * Adds the chunks inside a circle to a collection, only the regions that
+	 * overlap the square around the circle are looked at
+	 *
+	 * @param centerX the chunk x of the center
+	 * @param centerZ the chunk z of the center
+	 * @param radius the radius in chunks, inclusive
+	 * @param result the collection the chunks are added to
+	 * @return the amount of chunks found
+	 */
+	public int getInRadius(int centerX, int centerZ, int radius, Collection<? super EnderChunk> result) {
+		return find(centerX - radius, centerZ - radius, centerX + radius, centerZ + radius, centerX, centerZ, (long) radius * radius, result);
+	}
+
+	/**
+	 * Finds the chunks in a rectangle, and inside a circle if radiusSquared
+	 * isn't negative
+	 */
+	private int find(int minX, int minZ, int maxX, int maxZ, int centerX, int centerZ, long radiusSquared, Collection<? super EnderChunk> result) {
+		if (minX > maxX || minZ > maxZ || size == 0) {
+			return 0;
+		}
+		int minRX = calculateRegionPos(minX);
+		int minRZ = calculateRegionPos(minZ);
+		int maxRX = calculateRegionPos(maxX);
+		int maxRZ = calculateRegionPos(maxZ);
+		int found = 0;
+		if ((long) (maxRX - minRX + 1) * (maxRZ - minRZ + 1) > nodeCount) {
+			// there are less nodes than regions in the area, so looking at every node is cheaper
+			for (Node[] nodes : chunkBuckets) {
+				for (Node n : nodes) {
+					for (; n != null; n = n.next) {
+						if (n.regionX >= minRX && n.regionX <= maxRX && n.regionZ >= minRZ && n.regionZ <= maxRZ) {
+							found += find(n, minX, minZ, maxX, maxZ, centerX, centerZ, radiusSquared, result);
+						}
+					}
+				}
+			}
+		} else {
+			for (int rX = minRX; rX <= maxRX; rX++) {
+				for (int rZ = minRZ; rZ <= maxRZ; rZ++) {
+					Node n = getNode(rX, rZ);
+					if (n != null) {
+						found += find(n, minX, minZ, maxX, maxZ, centerX, centerZ, radiusSquared, result);
+					}
 				}
-			} while ((n = n.next) != null);
+			}
 		}
-		return false;
+		return found;
 	}
 
-	public EnderChunk get(int x, int z) {
-		int rX = calculateRegionPos(x);
-		int rZ = calculateRegionPos(z);
-		Node n = this.chunkBuckets[maskCordinate(rX)][maskCordinate(rZ)];
-		if (n != null) {
-			do {
-				if (n.regionX == rX && n.regionZ == rZ) {
-					EnderChunk chunkF =  n.regionChunks[calculateChunkPos(x) + calculateChunkPos(z) * 32];
-					if(chunkF != null && (chunkF.getX() != x || chunkF.getZ() != z)){
-						throw new Error("chunkF.getX() != x " + chunkF.getX() + ":"+  x +" AND chunkF.getZ() != z " + chunkF.getZ() +":"+ z);
+	private static int find(Node n, int minX, int minZ, int maxX, int maxZ, int centerX, int centerZ, long radiusSquared, Collection<? super EnderChunk> result) {
+		int startX = Math.max(minX, n.regionX << 5);
+		int endX = Math.min(maxX, (n.regionX << 5) + 31);
+		int startZ = Math.max(minZ, n.regionZ << 5);
+		int endZ = Math.min(maxZ, (n.regionZ << 5) + 31);
+		int found = 0;
+		for (int z = startZ; z <= endZ; z++) {
+			long dz = z - centerZ;
+			for (int x = startX; x <= endX; x++) {
+				EnderChunk c = n.regionChunks[calculateChunkPos(x) + calculateChunkPos(z) * 32];
+				if (c == null) {
+					continue;
+				}
+				if (radiusSquared >= 0) {
+					long dx = x - centerX;
+					if (dx * dx + dz * dz > radiusSquared) {
+						continue;
 					}
-					return chunkF;
 				}
-			} while ((n = n.next) != null);
+				result.add(c);
+				found++;
+			}
 		}
-		return null;
+		return found;
 	}
 
 	protected static int maskCordinate(int c) {
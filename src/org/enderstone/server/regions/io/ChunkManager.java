@@ -17,27 +17,38 @@
  */
 package org.enderstone.server.regions.io;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.zip.DeflaterOutputStream;
 import org.enderstone.server.EnderLogger;
+import org.enderstone.server.Main;
 import org.enderstone.server.api.Chunk;
 import org.enderstone.server.entity.EnderEntity;
 import org.enderstone.server.entity.player.EnderPlayer;
 import org.enderstone.server.regions.BlockData;
 import org.enderstone.server.regions.BlockId;
 import org.enderstone.server.regions.ChunkGenerator;
+import org.enderstone.server.regions.ChunkSection;
+import org.enderstone.server.regions.ChunkSet;
+import org.enderstone.server.regions.ChunkSnapshot;
 import org.enderstone.server.regions.EnderChunk;
 import org.enderstone.server.regions.EnderWorld;
 import static org.enderstone.server.regions.EnderWorld.AMOUNT_OF_CHUNKSECTIONS;
+import org.enderstone.server.regions.LongChunkMap;
 import org.enderstone.server.regions.RegionSet;
+import org.enderstone.server.scheduler.AsyncExecutor;
+import org.enderstone.server.scheduler.FutureCallback;
+import org.enderstone.server.scheduler.ServerFuture;
 import org.jnbt.CompoundTag;
 import org.jnbt.NBTInputStream;
 import org.jnbt.NBTOutputStream;
@@ -54,10 +65,16 @@ public class ChunkManager {
      */
     private final File regionDirectory;
 
+
+    /**
+     * Ticks a chunk without tickets stays loaded, so a chunk that is needed
+     * again soon after isn't read from disk again
+     */
+    private static final int UNLOAD_DELAY = 100;
     /**
-     * Cache for open regionFiles
+     * Ticks between the first change of a chunk and writing it to disk
      */
-    private final Map<Long, RegionFile> regionFileCache = new HashMap<>();
+    private static final int SAVE_DELAY = 600;
 
     /**
      * Thrown away chunks that are unloaded, these objects are kept inside this
@@ -66,17 +83,63 @@ public class ChunkManager {
      */
     private final List<EnderChunk> unusedChunks = new ArrayList<>();
 
-    private final RegionSet loadedChunks;
+    /**
+     * Loaded chunks without tickets, in the order their last ticket was
+     * removed. Chunks that got a ticket again are skipped when they reach the
+     * head of the queue.
+     */
+    private final ArrayDeque<EnderChunk> unloadQueue = new ArrayDeque<>();
+    /**
+     * Chunks with unsaved changes, in the order they were first changed
+     */
+    private final ArrayDeque<EnderChunk> saveQueue = new ArrayDeque<>();
+
+    private final ChunkSet loadedChunks;
     private final EnderWorld world;
 
+    /**
+     * Chunks that are being loaded or generated on a worker thread, only
+     * accessed by the thread that ticks this world
+     */
+    private final Map<Long, ServerFuture<EnderChunk>> pendingChunks = new HashMap<>();
+
     public ChunkManager(ChunkGenerator generator, File regionDirectory, EnderWorld world) {
+        this(generator, regionDirectory, world, new LongChunkMap());
+    }
+
+    /**
+     * @param loadedChunks the empty set that keeps the loaded chunks, see
+     * {@link #createChunkSet(String)}
+     */
+    public ChunkManager(ChunkGenerator generator, File regionDirectory, EnderWorld world, ChunkSet loadedChunks) {
         this.generator = generator;
         this.regionDirectory = regionDirectory;
-        this.loadedChunks = new RegionSet();
+        this.loadedChunks = loadedChunks;
         this.world = world;
         this.regionDirectory.mkdirs();
     }
 
+    /**
+     * Creates the set that keeps the loaded chunks of a world
+     *
+     * @param type "long" for a {@link LongChunkMap}, which has the fastest
+     * lookups and stays fast when the chunks are spread out, or "region" for a
+     * {@link RegionSet}, which adds and removes chunks that are close together
+     * faster (see ChunkMapBenchmark in src-bench)
+     * @return the set
+     */
+    public static ChunkSet createChunkSet(String type) {
+        switch (type.toLowerCase()) {
+            case "region":
+                return new RegionSet();
+            case "long":
+                return new LongChunkMap();
+            default:
+                EnderLogger.warn("Unknown chunk-map " + type + ", expected long or region");
+                return new LongChunkMap();
+        }
+    }
+
     public EnderChunk getChunk(int x, int z) {
         EnderChunk c;
         if ((c = this.loadedChunks.get(x, z)) == null) {
@@ -84,81 +147,333 @@ public class ChunkManager {
                 if ((c = this.createChunk(x, z)) == null) {
                     throw new RuntimeException("Unable to create a chunk?!?! This won't happen as createChunk always returns a valid chunk");
                 }
-                markChunkUsed(x, z);
             }
-            this.loadedChunks.add(c);
+            this.addLoadedChunk(c);
         }
         return c;
     }
 
+    /**
+     * Gets a chunk without blocking the caller. Reading the chunk from disk or
+     * generating it is done on a worker thread, the chunk is added to the
+     * loaded chunks on the main thread before the returned future completes.
+     * Requests for a chunk that is already on its way share the same future.
+     *
+     * Must be called from the thread that ticks this world.
+     *
+     * @param x the chunk x
+     * @param z the chunk z
+     * @return the future that completes on the main thread with the loaded
+     * chunk
+     */
+    public ServerFuture<EnderChunk> requestChunk(final int x, final int z) {
+        AsyncExecutor async = Main.getInstance().asyncExecutor;
+        EnderChunk c = this.loadedChunks.get(x, z);
+        if (c != null) {
+            ServerFuture<EnderChunk> loaded = async.newFuture();
+            loaded.complete(c);
+            return loaded;
+        }
+        final Long key = chunkKey(x, z);
+        ServerFuture<EnderChunk> pending = this.pendingChunks.get(key);
+        if (pending != null) {
+            return pending;
+        }
+        final ServerFuture<EnderChunk> result = async.newFuture();
+        this.pendingChunks.put(key, result);
+        // reading from disk is IO bound and runs on the async workers, the CPU bound generation on the generator threads
+        final AsyncExecutor generators = Main.getInstance().generatorExecutor;
+        final ServerFuture<EnderChunk> ready = async.newFuture();
+        async.submit("Chunk loading", new Callable<EnderChunk>() {
+
+            @Override
+            public EnderChunk call() {
+                return loadChunk(x, z);
+            }
+        }).addCallback(new FutureCallback<EnderChunk>() {
+
+            @Override
+            public void onSuccess(EnderChunk chunk) {
+                if (chunk != null) {
+                    ready.complete(chunk);
+                    return;
+                }
+                generators.submit("Chunk generation", new Callable<EnderChunk>() {
+
+                    @Override
+                    public EnderChunk call() {
+                        return createChunk(x, z);
+                    }
+                }).addCallback(new FutureCallback<EnderChunk>() {
+
+                    @Override
+                    public void onSuccess(EnderChunk chunk) {
+                        ready.complete(chunk);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable cause) {
+                        ready.fail(cause);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                ready.fail(cause);
+            }
+        });
+        ready.addMainThreadCallback(new FutureCallback<EnderChunk>() {
+
+            @Override
+            public void onSuccess(EnderChunk chunk) {
+                pendingChunks.remove(key);
+                EnderChunk loaded = loadedChunks.get(x, z);
+                if (loaded == null) { // getChunk could have loaded it in the meantime
+                    addLoadedChunk(chunk);
+                    loaded = chunk;
+                }
+                result.complete(loaded);
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                pendingChunks.remove(key);
+                EnderLogger.warn("Unable to load chunk " + x + ", " + z + " of world " + world.worldName);
+                EnderLogger.exception(cause);
+                result.fail(cause);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Adds a chunk that was just loaded or generated. The chunk doesn't have
+     * any tickets yet, so it's queued for unloading until someone adds one.
+     */
+    private void addLoadedChunk(EnderChunk chunk) {
+        this.loadedChunks.add(chunk);
+        this.world.getLightEngine().queueChunk(chunk);
+        this.queueUnload(chunk);
+        if (chunk.chunkState.get() == EnderChunk.ChunkState.LOADED_SAVE) {
+            this.queueSave(chunk);
+        }
+    }
+
+    /**
+     * Queues a chunk without tickets for unloading, the chunk is unloaded
+     * after {@link #UNLOAD_DELAY} ticks if it didn't get a ticket in the
+     * meantime. A chunk that is queued again is added to the tail again, so
+     * the queue stays ordered by the tick the chunks were queued at. Its old
+     * entry is skipped when it reaches the head.
+     *
+     * @param chunk the chunk
+     */
+    public void queueUnload(EnderChunk chunk) {
+        chunk.setUnloadQueuedAt(Main.getInstance().getCurrentServerTick());
+        chunk.setUnloadQueueEntries(chunk.getUnloadQueueEntries() + 1);
+        this.unloadQueue.add(chunk);
+    }
+
+    /**
+     * Queues a chunk that got unsaved changes to be saved after
+     * {@link #SAVE_DELAY} ticks
+     *
+     * @param chunk the chunk
+     */
+    public void queueSave(EnderChunk chunk) {
+        if (chunk.getSaveQueuedAt() < 0) {
+            chunk.setSaveQueuedAt(Main.getInstance().getCurrentServerTick());
+            this.saveQueue.add(chunk);
+        }
+    }
+
+    /**
+     * Saves and unloads the chunks at the head of the queues. Only the chunks
+     * that are due are looked at, so the cost doesn't depend on the amount of
+     * loaded chunks.
+     *
+     * @param unloadBudget the maximum amount of chunks to unload
+     * @param saveBudget the maximum amount of changed chunks to save
+     */
+    public void processQueues(int unloadBudget, int saveBudget) {
+        long now = Main.getInstance().getCurrentServerTick();
+        EnderChunk chunk;
+        int unloaded = 0;
+        while (unloaded < unloadBudget && (chunk = this.unloadQueue.peek()) != null) {
+            if (chunk.getUnloadQueueEntries() > 1) {
+                // queued again later, that entry decides when it unloads
+                this.unloadQueue.poll();
+                chunk.setUnloadQueueEntries(chunk.getUnloadQueueEntries() - 1);
+                continue;
+            }
+            if (chunk.getTicketCount() == 0 && chunk.chunkState.get() != EnderChunk.ChunkState.GONE) {
+                if (now - chunk.getUnloadQueuedAt() < UNLOAD_DELAY) {
+                    break;
+                }
+                this.unlockChunk(chunk);
+                unloaded++;
+            }
+            this.unloadQueue.poll();
+            chunk.setUnloadQueueEntries(0);
+            chunk.setUnloadQueuedAt(-1);
+        }
+        int saved = 0;
+        while (saved < saveBudget && (chunk = this.saveQueue.peek()) != null) {
+            if (chunk.chunkState.get() == EnderChunk.ChunkState.LOADED_SAVE) {
+                if (now - chunk.getSaveQueuedAt() < SAVE_DELAY) {
+                    break;
+                }
+                this.saveChunk(chunk);
+                saved++;
+            }
+            this.saveQueue.poll();
+            chunk.setSaveQueuedAt(-1);
+        }
+    }
+
+    public int getUnloadQueueSize() {
+        return this.unloadQueue.size();
+    }
+
+    public int getSaveQueueSize() {
+        return this.saveQueue.size();
+    }
+
+    /**
+     * Gets a chunk only if it is loaded
+     *
+     * @param x the chunk x
+     * @param z the chunk z
+     * @return the chunk, or null if it isn't loaded
+     */
+    public EnderChunk getLoadedChunk(int x, int z) {
+        return this.loadedChunks.get(x, z);
+    }
+
+    /**
+     * Gets the amount of chunks that are being loaded or generated on a worker
+     * thread
+     *
+     * @return the amount of pending chunks
+     */
+    public int getPendingChunkCount() {
+        return this.pendingChunks.size();
+    }
+
+    private static long chunkKey(int x, int z) {
+        return ((long) x << 32) ^ (z & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Queues all chunks with unsaved changes to be written
+     */
     public void saveChunks() {
         for (EnderChunk chunk : loadedChunks) {
-            this.saveChunk(chunk);
+            if (chunk.chunkState.get() == EnderChunk.ChunkState.LOADED_SAVE) {
+                this.saveChunk(chunk);
+            }
         }
     }
 
     public void markChunkUsed(int chunkX, int chunkZ) {
         EnderChunk chunk = this.loadedChunks.get(chunkX, chunkZ);
-        chunk.chunkState.set(EnderChunk.ChunkState.LOADED_SAVE);
+        if (chunk.chunkState.getAndSet(EnderChunk.ChunkState.LOADED_SAVE) == EnderChunk.ChunkState.LOADED) {
+            this.queueSave(chunk);
+        }
     }
 
+    /**
+     * Queues a chunk to be written by the save thread, only a snapshot is taken
+     * on the calling thread. Must be called from the main thread.
+     *
+     * @param chunk the chunk
+     */
     public void saveChunk(EnderChunk chunk) {
         EnderLogger.debug("Save: " + chunk);
-        int x = chunk.getX(), z = chunk.getZ();
-        long key = ((long) calculateRegionPos(x) << 32) ^ calculateRegionPos(z);
-        synchronized (regionFileCache) {
-            RegionFile region = regionFileCache.get(Long.valueOf(key));
-            if (region == null) {
-                region = new RegionFile(new File(regionDirectory, "r." + calculateRegionPos(x) + "." + calculateRegionPos(z) + ".mca"));
-                regionFileCache.put(key, region);
-            }
-            try (DataOutputStream out = region.getChunkDataOutputStream(calculateChunkPos(x), calculateChunkPos(z))) {
-                try (NBTOutputStream out1 = new NBTOutputStream(out)) {
-                    out1.writeTag(chunk.saveToNBT());
-                }
-            } catch (IOException ex) {
-                EnderLogger.warn("Error while saving chunk");
-                EnderLogger.exception(ex);
-            }
-        }
+        Main.getInstance().saveQueue.save(this, chunk.createSnapshot());
         chunk.chunkState.set(EnderChunk.ChunkState.LOADED);
     }
 
+    /**
+     * Serializes, compresses and writes a snapshot to its region file, called
+     * by the save thread
+     *
+     * @param snapshot the snapshot
+     * @return the amount of compressed bytes written
+     * @throws IOException when the chunk couldn't be serialized
+     */
+    int writeSnapshot(ChunkSnapshot snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        try (NBTOutputStream out = new NBTOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeTag(snapshot.saveToNBT());
+        }
+        int x = snapshot.getX(), z = snapshot.getZ();
+        RegionFileCache cache = Main.getInstance().regionCache;
+        RegionFile region = cache.acquire(getRegionPath(x, z));
+        try {
+            region.write(calculateChunkPos(x), calculateChunkPos(z), bytes.toByteArray(), bytes.size());
+        } finally {
+            cache.release(region);
+        }
+        return bytes.size();
+    }
+
+    private File getRegionPath(int x, int z) {
+        return new File(regionDirectory, "r." + calculateRegionPos(x) + "." + calculateRegionPos(z) + ".mca");
+    }
+
     private void unlockChunk(EnderChunk chunk) {
-        saveChunk(chunk);
+        if (chunk.chunkState.get() == EnderChunk.ChunkState.LOADED_SAVE) {
+            saveChunk(chunk);
+        }
         EnderLogger.debug("Unload: " + chunk);
         for(EnderEntity ent : world.entities) {
             ent.removeInternally(true);
         }
         chunk.chunkState.set(EnderChunk.ChunkState.GONE);
+        chunk.releasePacketCache();
         this.loadedChunks.remove(chunk);
     }
 
+    /**
+     * Reads a chunk from its region file, safe to call from any thread
+     *
+     * @return the chunk, or null if it isn't saved yet
+     */
     private EnderChunk loadChunk(int x, int z) {
-
-        long key = ((long) calculateRegionPos(x) << 32) ^ calculateRegionPos(z);
+        ChunkSnapshot pending = Main.getInstance().saveQueue.getPending(this, x, z);
+        if (pending != null) {
+            EnderLogger.debug("Load from save queue: " + x + ", " + z);
+            return new EnderChunk(world, pending);
+        }
         EnderChunk c;
-        DataInputStream in;
-        synchronized (regionFileCache) {
-            RegionFile region = regionFileCache.get(Long.valueOf(key));
-            if (region == null) {
-                region = new RegionFile(new File(regionDirectory, "r." + calculateRegionPos(x) + "." + calculateRegionPos(z) + ".mca"));
-                regionFileCache.put(key, region);
+        try {
+            DataInputStream in;
+            RegionFileCache cache = Main.getInstance().regionCache;
+            RegionFile region = cache.acquire(getRegionPath(x, z));
+            try {
+                in = region.getChunkDataInputStream(calculateChunkPos(x), calculateChunkPos(z));
+            } finally {
+                cache.release(region);
+            }
+            if (in == null) {
+                return null;
+            }
+            CompoundTag tag;
+            try (NBTInputStream indata = new NBTInputStream(in)) {
+                tag = (CompoundTag) indata.readTag();
+            }
+            if (!tag.getValue().containsKey("Level")) {
+                return null; // written by older versions that didn't store any blocks
             }
-            in = region.getChunkDataInputStream(calculateChunkPos(x), calculateChunkPos(z));
-        }
-        if (true || in == null) { // todo: remove true when the chunk loading finaly works
-            return createChunk(x, z);
-        }
-        try (NBTInputStream indata = new NBTInputStream(in)) {
-            CompoundTag tag = (CompoundTag) indata.readTag();
             // read tag to chunk, http://minecraft.gamepedia.com/Chunk_format
             c = new EnderChunk(world, x, z);
             c.loadFromNBT(tag);
 
             c.chunkState.set(EnderChunk.ChunkState.LOADED);
-        } catch (IOException ex) {
-            EnderLogger.warn("Error while loading chunk");
+        } catch (IOException | RuntimeException ex) {
+            EnderLogger.warn("Error while loading chunk " + x + ", " + z);
             EnderLogger.exception(ex);
             return null;
         }
@@ -166,6 +481,10 @@ public class ChunkManager {
         return c;
     }
 
+    /**
+     * Generates a new chunk, safe to call from the generator threads as long
+     * as the generator follows the contract of {@link ChunkGenerator}
+     */
     private EnderChunk createChunk(int x, int z) {
         EnderChunk r;
         BlockId[][] blocks = generator.generateExtBlockSections(world, new Random((((long) x) << 32) ^ z), x, z);
@@ -175,24 +494,20 @@ public class ChunkManager {
         if (blocks.length != AMOUNT_OF_CHUNKSECTIONS) {
             blocks = new BlockId[AMOUNT_OF_CHUNKSECTIONS][];
         }
-        short[][] id = new short[16][];
-        byte[][] data = new byte[16][];
+        ChunkSection[] sections = new ChunkSection[AMOUNT_OF_CHUNKSECTIONS];
         for (int i = 0; i < blocks.length; i++) {
 
             if (blocks[i] != null) {
-                id[i] = new short[4096];
-                data[i] = new byte[4096];
-                for (int j = 0; j < 4096; j++) {
-
-                    if (blocks[i][j] == null) {
-                        id[i][j] = BlockId.AIR.getId();
-                    } else {
-                        id[i][j] = blocks[i][j].getId();
+                ChunkSection section = sections[i] = new ChunkSection();
+                for (int j = 0; j < ChunkSection.BLOCKS; j++) {
+
+                    if (blocks[i][j] != null) {
+                        section.set(j, blocks[i][j].getId() << 4);
                     }
                 }
             }
         }
-        r = new EnderChunk(world, x, z, id, data, new byte[16 * 16], new ArrayList<BlockData>());
+        r = new EnderChunk(world, x, z, sections, new byte[16 * 16], new ArrayList<BlockData>());
         r.chunkState.set(EnderChunk.ChunkState.LOADED_SAVE);
         EnderLogger.debug("Create: " + r);
         return r;
@@ -214,19 +529,4 @@ public class ChunkManager {
     public Collection<? extends Chunk> getChunks() {
         return this.loadedChunks;
     }
-
-    public void cleanUpOldChunks() {
-        int chunksSaved = 0;
-        for (EnderChunk c : loadedChunks) {
-            final EnderChunk.ChunkState state = c.chunkState.get();
-            if (state == EnderChunk.ChunkState.LOADED_SAVE && chunksSaved < 50) {
-                this.saveChunk(c);
-            }
-            if (state == EnderChunk.ChunkState.LOADED) {
-                if (c.tickUnload()) {
-                    this.unlockChunk(c);
-                }
-            }
-        }
-    }
 }
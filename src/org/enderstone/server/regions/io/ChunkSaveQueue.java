@@ -0,0 +1,298 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions.io;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.enderstone.server.EnderLogger;
+import org.enderstone.server.regions.ChunkSnapshot;
+
+/**
+ * Writes chunk snapshots to the region files on a background thread. The main
+ * thread only creates a snapshot and queues it, serializing, compressing and
+ * writing is done by the save thread.
+ *
+ * When a chunk is queued again before the previous snapshot is written, the
+ * new snapshot replaces the old one so the chunk is only written once.
+ *
+ * @author Fernando
+ */
+public class ChunkSaveQueue implements Runnable {
+
+    private static final long RATE_WINDOW = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * Snapshots waiting to be written in the order they were first queued,
+     * guarded by this
+     */
+    private final Map<SaveKey, PendingSave> queue = new LinkedHashMap<>();
+    /**
+     * The save that is being written right now, guarded by this
+     */
+    private PendingSave writing;
+    private boolean running = true;
+    private Thread thread;
+
+    private volatile long savedChunks;
+    private volatile long coalescedChunks;
+    private volatile long failedChunks;
+    private volatile long totalBytes;
+    private volatile long totalLatency;
+    private volatile long maxLatency;
+    private volatile long bytesPerSecond;
+    private long windowStart = System.nanoTime();
+    private long windowBytes;
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, "Chunk saver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a snapshot to be written, replaces the snapshot of the same chunk
+     * if it is still waiting
+     *
+     * @param manager the chunk manager of the world the chunk belongs to
+     * @param snapshot the snapshot
+     */
+    public void save(ChunkManager manager, ChunkSnapshot snapshot) {
+        SaveKey key = new SaveKey(manager, snapshot.getX(), snapshot.getZ());
+        synchronized (this) {
+            PendingSave pending = queue.get(key);
+            if (pending != null) {
+                pending.snapshot = snapshot;
+                coalescedChunks++;
+                return;
+            }
+            queue.put(key, new PendingSave(key, snapshot));
+            notifyAll();
+        }
+    }
+
+    /**
+     * Gets the newest snapshot of a chunk that hasn't been written yet, chunks
+     * loaded while they are queued should use this instead of the disk
+     *
+     * @param manager the chunk manager of the world
+     * @param x the chunk x
+     * @param z the chunk z
+     * @return the snapshot, or null if the chunk isn't waiting to be saved
+     */
+    public synchronized ChunkSnapshot getPending(ChunkManager manager, int x, int z) {
+        SaveKey key = new SaveKey(manager, x, z);
+        PendingSave pending = queue.get(key);
+        if (pending != null) {
+            return pending.snapshot;
+        }
+        if (writing != null && writing.key.equals(key)) {
+            return writing.snapshot;
+        }
+        return null;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            PendingSave save;
+            synchronized (this) {
+                writing = null;
+                notifyAll();
+                while (queue.isEmpty()) {
+                    if (!running) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        running = false;
+                    }
+                }
+                Iterator<PendingSave> it = queue.values().iterator();
+                save = it.next();
+                it.remove();
+                writing = save;
+            }
+            try {
+                int bytes = save.key.manager.writeSnapshot(save.snapshot);
+                recordSave(save, bytes);
+            } catch (IOException | RuntimeException ex) {
+                failedChunks++;
+                EnderLogger.warn("Error while saving chunk " + save.snapshot.getX() + ", " + save.snapshot.getZ());
+                EnderLogger.exception(ex);
+            }
+        }
+    }
+
+    private void recordSave(PendingSave save, int bytes) {
+        long now = System.nanoTime();
+        long latency = now - save.queued;
+        savedChunks++;
+        totalBytes += bytes;
+        totalLatency += latency;
+        if (latency > maxLatency) {
+            maxLatency = latency;
+        }
+        windowBytes += bytes;
+        if (now - windowStart >= RATE_WINDOW) {
+            bytesPerSecond = windowBytes * 1_000_000_000L / (now - windowStart);
+            windowStart = now;
+            windowBytes = 0;
+        }
+    }
+
+    /**
+     * Waits until all queued snapshots are written
+     *
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public synchronized void flush() throws InterruptedException {
+        while ((!queue.isEmpty() || writing != null) && thread != null && thread.isAlive()) {
+            wait(100);
+        }
+    }
+
+    /**
+     * Writes the remaining snapshots and stops the save thread, blocks until
+     * the thread is finished
+     */
+    public void shutdown() {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            notifyAll();
+            t = thread;
+        }
+        if (t == null) {
+            return;
+        }
+        boolean interrupted = false;
+        boolean joined = false;
+        do {
+            try {
+                t.join();
+                joined = true;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        } while (!joined);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size() + (writing == null ? 0 : 1);
+    }
+
+    public long getSavedChunks() {
+        return savedChunks;
+    }
+
+    /**
+     * Gets the amount of times a chunk was queued again before its previous
+     * snapshot was written
+     *
+     * @return the amount of coalesced saves
+     */
+    public long getCoalescedChunks() {
+        return coalescedChunks;
+    }
+
+    public long getFailedChunks() {
+        return failedChunks;
+    }
+
+    /**
+     * Gets the amount of compressed bytes written
+     *
+     * @return the amount of bytes
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Gets the write speed over the last few seconds
+     *
+     * @return the written bytes per second
+     */
+    public long getBytesPerSecond() {
+        return System.nanoTime() - windowStart > RATE_WINDOW * 2 ? 0 : bytesPerSecond;
+    }
+
+    /**
+     * Gets the average time between queueing a chunk and the chunk being on
+     * the disk
+     *
+     * @return the average flush latency in nanoseconds
+     */
+    public long getAverageLatency() {
+        long saved = savedChunks;
+        return saved == 0 ? 0 : totalLatency / saved;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    private static class PendingSave {
+
+        private final SaveKey key;
+        private final long queued = System.nanoTime();
+        private volatile ChunkSnapshot snapshot;
+
+        public PendingSave(SaveKey key, ChunkSnapshot snapshot) {
+            this.key = key;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private static class SaveKey {
+
+        private final ChunkManager manager;
+        private final int x;
+        private final int z;
+
+        public SaveKey(ChunkManager manager, int x, int z) {
+            this.manager = manager;
+            this.x = x;
+            this.z = z;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(manager) * 31 + x) * 31 + z;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SaveKey)) {
+                return false;
+            }
+            SaveKey other = (SaveKey) obj;
+            return this.manager == other.manager && this.x == other.x && this.z == other.z;
+        }
+    }
+}
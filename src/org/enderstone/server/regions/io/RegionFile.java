@@ -56,10 +56,26 @@ package org.enderstone.server.regions.io;
  data is the chunk length - 1.
 
  */
-import java.io.*;
-import java.util.ArrayList;
-import java.util.zip.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
+/*
+ * Reimplemented on a FileChannel: the 8KB header (offsets and timestamps) is
+ * memory mapped, chunks are read and written with a single positional call,
+ * and the used sectors are kept in a BitSet. The file layout is unchanged.
+ */
 public class RegionFile {
 
     private static final int VERSION_GZIP = 1;
@@ -67,83 +83,59 @@ public class RegionFile {
 
     private static final int SECTOR_BYTES = 4096;
     private static final int SECTOR_INTS = SECTOR_BYTES / 4;
+    private static final int HEADER_BYTES = SECTOR_BYTES * 2;
 
     static final int CHUNK_HEADER_SIZE = 5;
-    private static final byte emptySector[] = new byte[4096];
 
     private final File fileName;
-    private RandomAccessFile file;
-    private final int offsets[];
-    private final int chunkTimestamps[];
-    private ArrayList<Boolean> sectorFree;
+    private final FileChannel channel;
+    /**
+     * The chunk offsets followed by the chunk timestamps, changes are written
+     * to the file by the OS
+     */
+    private final MappedByteBuffer header;
+    /**
+     * Set bits are sectors in use by the header or a chunk
+     */
+    private final BitSet usedSectors = new BitSet();
+    /**
+     * Length of the file in sectors
+     */
+    private int sectorCount;
     private int sizeDelta;
     private long lastModified = 0;
 
-    public RegionFile(File path) {
-        offsets = new int[SECTOR_INTS];
-        chunkTimestamps = new int[SECTOR_INTS];
-
+    public RegionFile(File path) throws IOException {
         fileName = path;
-        debugln("REGION LOAD " + fileName);
-
-        sizeDelta = 0;
-
+        if (path.exists()) {
+            lastModified = path.lastModified();
+        }
+        channel = FileChannel.open(path.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
         try {
-            if (path.exists()) {
-                lastModified = path.lastModified();
-            } else {
-                path.createNewFile();
+            long length = channel.size();
+            if (length < HEADER_BYTES) {
+                /* the mapping below fills the chunk offset table and timestamps with zeros */
+                sizeDelta += HEADER_BYTES - (int) length;
             }
-
-            file = new RandomAccessFile(path, "rw");
-
-            if (file.length() < SECTOR_BYTES) {
-                /* we need to write the chunk offset table */
-                for (int i = 0; i < SECTOR_INTS; ++i) {
-                    file.writeInt(0);
-                }
-                // write another sector for the timestamp info
-                for (int i = 0; i < SECTOR_INTS; ++i) {
-                    file.writeInt(0);
-                }
-
-                sizeDelta += SECTOR_BYTES * 2;
-            }
-
-            if ((file.length() & 0xfff) != 0) {
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            length = Math.max(length, HEADER_BYTES);
+            if ((length & 0xfff) != 0) {
                 /* the file size is not a multiple of 4KB, grow it */
-                for (int i = 0; i < (file.length() & 0xfff); ++i) {
-                    file.write((byte) 0);
-                }
-            }
-
-            /* set up the available sector map */
-            int nSectors = (int) file.length() / SECTOR_BYTES;
-            sectorFree = new ArrayList<>(nSectors);
-
-            for (int i = 0; i < nSectors; ++i) {
-                sectorFree.add(true);
+                length = (length | 0xfff) + 1;
+                extendTo(length);
             }
+            sectorCount = (int) (length / SECTOR_BYTES);
 
-            sectorFree.set(0, false); // chunk offset table
-            sectorFree.set(1, false); // for the last modified info
-
-            file.seek(0);
+            usedSectors.set(0, 2); // chunk offset table and the last modified info
             for (int i = 0; i < SECTOR_INTS; ++i) {
-                int offset = file.readInt();
-                offsets[i] = offset;
-                if (offset != 0 && (offset >> 8) + (offset & 0xFF) <= sectorFree.size()) {
-                    for (int sectorNum = 0; sectorNum < (offset & 0xFF); ++sectorNum) {
-                        sectorFree.set((offset >> 8) + sectorNum, false);
-                    }
+                int offset = header.getInt(i * 4);
+                if (offset != 0 && (offset >> 8) + (offset & 0xFF) <= sectorCount) {
+                    usedSectors.set(offset >> 8, (offset >> 8) + (offset & 0xFF));
                 }
             }
-            for (int i = 0; i < SECTOR_INTS; ++i) {
-                int lastModValue = file.readInt();
-                chunkTimestamps[i] = lastModValue;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
         }
     }
 
@@ -159,79 +151,40 @@ public class RegionFile {
         return ret;
     }
 
-    // various small debug printing helpers
-    private void debug(String in) {
-//        System.out.print(in);
-    }
-
-    private void debugln(String in) {
-        debug(in + "\n");
-    }
-
-    private void debug(String mode, int x, int z, String in) {
-        debug("REGION " + mode + " " + fileName.getName() + "[" + x + "," + z + "] = " + in);
-    }
-
-    private void debug(String mode, int x, int z, int count, String in) {
-        debug("REGION " + mode + " " + fileName.getName() + "[" + x + "," + z + "] " + count + "B = " + in);
-    }
-
-    private void debugln(String mode, int x, int z, String in) {
-        debug(mode, x, z, in + "\n");
-    }
-
     /*
      * gets an (uncompressed) stream representing the chunk data returns null if
      * the chunk is not found or an error occurs
      */
     public synchronized DataInputStream getChunkDataInputStream(int x, int z) {
         if (outOfBounds(x, z)) {
-            debugln("READ", x, z, "out of bounds");
             return null;
         }
-
+        int offset = getOffset(x, z);
+        if (offset == 0) {
+            return null;
+        }
+        int sectorNumber = offset >> 8;
+        int numSectors = offset & 0xFF;
+        if (sectorNumber + numSectors > sectorCount) {
+            return null;
+        }
         try {
-            int offset = getOffset(x, z);
-            if (offset == 0) {
-                // debugln("READ", x, z, "miss");
+            ByteBuffer buf = ByteBuffer.allocate(numSectors * SECTOR_BYTES);
+            readFully(buf, (long) sectorNumber * SECTOR_BYTES);
+            buf.flip();
+            int length = buf.getInt();
+            if (length <= 0 || length > buf.remaining()) {
                 return null;
             }
-
-            int sectorNumber = offset >> 8;
-            int numSectors = offset & 0xFF;
-
-            if (sectorNumber + numSectors > sectorFree.size()) {
-                debugln("READ", x, z, "invalid sector");
-                return null;
-            }
-
-            file.seek(sectorNumber * SECTOR_BYTES);
-            int length = file.readInt();
-
-            if (length > SECTOR_BYTES * numSectors) {
-                debugln("READ", x, z, "invalid length: " + length + " > 4096 * " + numSectors);
-                return null;
-            }
-
-            byte version = file.readByte();
+            byte version = buf.get();
+            ByteArrayInputStream data = new ByteArrayInputStream(buf.array(), CHUNK_HEADER_SIZE, length - 1);
             if (version == VERSION_GZIP) {
-                byte[] data = new byte[length - 1];
-                file.read(data);
-                DataInputStream ret = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
-                // debug("READ", x, z, " = found");
-                return ret;
+                return new DataInputStream(new GZIPInputStream(data));
             } else if (version == VERSION_DEFLATE) {
-                byte[] data = new byte[length - 1];
-                file.read(data);
-                DataInputStream ret = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
-                // debug("READ", x, z, " = found");
-                return ret;
+                return new DataInputStream(new InflaterInputStream(data));
             }
-
-            debugln("READ", x, z, "unknown version " + version);
             return null;
         } catch (IOException e) {
-            debugln("READ", x, z, "exception");
             return null;
         }
     }
@@ -250,7 +203,7 @@ public class RegionFile {
      */
     class ChunkBuffer extends ByteArrayOutputStream {
 
-        private int x, z;
+        private final int x, z;
 
         public ChunkBuffer(int x, int z) {
             super(8096); // initialize to 8KB
@@ -258,97 +211,88 @@ public class RegionFile {
             this.z = z;
         }
 
-        public void close() {
+        @Override
+        public void close() throws IOException {
             RegionFile.this.write(x, z, buf, count);
         }
     }
 
-    /* write a chunk at (x,z) with length bytes of data to disk */
-    protected synchronized void write(int x, int z, byte[] data, int length) {
-        try {
-            int offset = getOffset(x, z);
-            int sectorNumber = offset >> 8;
-            int sectorsAllocated = offset & 0xFF;
-            int sectorsNeeded = (length + CHUNK_HEADER_SIZE) / SECTOR_BYTES + 1;
-
-            // maximum chunk size is 1MB
-            if (sectorsNeeded >= 256) {
-                return;
+    /* write a chunk at (x,z) with length bytes of deflated data to disk */
+    protected synchronized void write(int x, int z, byte[] data, int length) throws IOException {
+        if (outOfBounds(x, z)) {
+            throw new IllegalArgumentException("Chunk " + x + ", " + z + " is outside of the region");
+        }
+        int offset = getOffset(x, z);
+        int sectorNumber = offset >> 8;
+        int sectorsAllocated = offset & 0xFF;
+        int sectorsNeeded = (length + CHUNK_HEADER_SIZE) / SECTOR_BYTES + 1;
+
+        // maximum chunk size is 1MB
+        if (sectorsNeeded >= 256) {
+            throw new IOException("Chunk " + x + ", " + z + " is too large: " + length + " bytes");
+        }
+
+        if (sectorNumber == 0 || sectorsAllocated != sectorsNeeded) {
+            /* mark the sectors previously used for this chunk as free, and find the first free run that fits */
+            if (sectorNumber != 0) {
+                usedSectors.clear(sectorNumber, sectorNumber + sectorsAllocated);
             }
+            sectorNumber = findFreeRun(sectorsNeeded);
+            usedSectors.set(sectorNumber, sectorNumber + sectorsNeeded);
+            if (sectorNumber + sectorsNeeded > sectorCount) {
+                /* no free space large enough found -- grow the file in one go */
+                sizeDelta += (sectorNumber + sectorsNeeded - sectorCount) * SECTOR_BYTES;
+                sectorCount = sectorNumber + sectorsNeeded;
+                extendTo((long) sectorCount * SECTOR_BYTES);
+            }
+        }
 
-            if (sectorNumber != 0 && sectorsAllocated == sectorsNeeded) {
-                /* we can simply overwrite the old sectors */
-                debug("SAVE", x, z, length, "rewrite");
-                write(sectorNumber, data, length);
-            } else {
-                /* we need to allocate new sectors */
+        ByteBuffer buf = ByteBuffer.allocate(length + CHUNK_HEADER_SIZE);
+        buf.putInt(length + 1); // chunk length
+        buf.put((byte) VERSION_DEFLATE); // chunk version number
+        buf.put(data, 0, length); // chunk data
+        buf.flip();
+        writeFully(buf, (long) sectorNumber * SECTOR_BYTES);
 
-                /* mark the sectors previously used for this chunk as free */
-                for (int i = 0; i < sectorsAllocated; ++i) {
-                    sectorFree.set(sectorNumber + i, true);
-                }
+        setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
+        setTimestamp(x, z, (int) (System.currentTimeMillis() / 1000L));
+    }
 
-                /* scan for a free space large enough to store this chunk */
-                int runStart = sectorFree.indexOf(true);
-                int runLength = 0;
-                if (runStart != -1) {
-                    for (int i = runStart; i < sectorFree.size(); ++i) {
-                        if (runLength != 0) {
-                            if (sectorFree.get(i)) {
-                                runLength++;
-                            } else {
-                                runLength = 0;
-                            }
-                        } else if (sectorFree.get(i)) {
-                            runStart = i;
-                            runLength = 1;
-                        }
-                        if (runLength >= sectorsNeeded) {
-                            break;
-                        }
-                    }
-                }
+    /**
+     * Finds the first run of free sectors that is long enough, a run at the
+     * end of the file may continue past the end of the file
+     */
+    private int findFreeRun(int sectorsNeeded) {
+        int start = usedSectors.nextClearBit(0);
+        while (true) {
+            int end = usedSectors.nextSetBit(start);
+            if (end == -1 || end - start >= sectorsNeeded) {
+                return start;
+            }
+            start = usedSectors.nextClearBit(end);
+        }
+    }
 
-                if (runLength >= sectorsNeeded) {
-                    /* we found a free space large enough */
-                    debug("SAVE", x, z, length, "reuse");
-                    sectorNumber = runStart;
-                    setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
-                    for (int i = 0; i < sectorsNeeded; ++i) {
-                        sectorFree.set(sectorNumber + i, false);
-                    }
-                    write(sectorNumber, data, length);
-                } else {
-                    /*
-                     * no free space large enough found -- we need to grow the
-                     * file
-                     */
-                    debug("SAVE", x, z, length, "grow");
-                    file.seek(file.length());
-                    sectorNumber = sectorFree.size();
-                    for (int i = 0; i < sectorsNeeded; ++i) {
-                        file.write(emptySector);
-                        sectorFree.add(false);
-                    }
-                    sizeDelta += SECTOR_BYTES * sectorsNeeded;
-
-                    write(sectorNumber, data, length);
-                    setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
-                }
+    private void extendTo(long length) throws IOException {
+        if (channel.size() < length) {
+            writeFully(ByteBuffer.allocate(1), length - 1);
+        }
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + fileName);
             }
-            setTimestamp(x, z, (int) (System.currentTimeMillis() / 1000L));
-        } catch (IOException e) {
-            e.printStackTrace();
+            position += read;
         }
     }
 
-    /* write a chunk data to the region file at specified sector number */
-    private void write(int sectorNumber, byte[] data, int length) throws IOException {
-        debugln(" " + sectorNumber);
-        file.seek(sectorNumber * SECTOR_BYTES);
-        file.writeInt(length + 1); // chunk length
-        file.writeByte(VERSION_DEFLATE); // chunk version number
-        file.write(data, 0, length); // chunk data
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
     }
 
     /* is this an invalid chunk coordinate? */
@@ -357,26 +301,52 @@ public class RegionFile {
     }
 
     private int getOffset(int x, int z) {
-        return offsets[x + z * 32];
+        return header.getInt((x + z * 32) * 4);
     }
 
-    public boolean hasChunk(int x, int z) {
+    public synchronized boolean hasChunk(int x, int z) {
         return getOffset(x, z) != 0;
     }
 
-    private void setOffset(int x, int z, int offset) throws IOException {
-        offsets[x + z * 32] = offset;
-        file.seek((x + z * 32) * 4);
-        file.writeInt(offset);
+    /**
+     * Gets the time the chunk was last written
+     *
+     * @param x the chunk x inside the region
+     * @param z the chunk z inside the region
+     * @return the time in seconds since the epoch, or 0 if it was never written
+     */
+    public synchronized int getTimestamp(int x, int z) {
+        return header.getInt(SECTOR_BYTES + (x + z * 32) * 4);
+    }
+
+    /**
+     * Gets the length of the file
+     *
+     * @return the length in sectors of 4KB
+     */
+    public synchronized int getSectorCount() {
+        return sectorCount;
+    }
+
+    /**
+     * Gets the amount of sectors that are in use by the header or chunks
+     *
+     * @return the used sectors
+     */
+    public synchronized int getUsedSectorCount() {
+        return usedSectors.cardinality();
+    }
+
+    private void setOffset(int x, int z, int offset) {
+        header.putInt((x + z * 32) * 4, offset);
     }
 
-    private void setTimestamp(int x, int z, int value) throws IOException {
-        chunkTimestamps[x + z * 32] = value;
-        file.seek(SECTOR_BYTES + (x + z * 32) * 4);
-        file.writeInt(value);
+    private void setTimestamp(int x, int z, int value) {
+        header.putInt(SECTOR_BYTES + (x + z * 32) * 4, value);
     }
 
-    public void close() throws IOException {
-        file.close();
+    public synchronized void close() throws IOException {
+        header.force();
+        channel.close();
     }
 }
@@ -0,0 +1,225 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.regions.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.enderstone.server.EnderLogger;
+
+/**
+ * Keeps a bounded amount of region files open, shared by all worlds. The
+ * least recently used region file is closed when the limit is reached, and
+ * region files that aren't used for a while are closed by
+ * {@link #closeIdle()}.
+ *
+ * Every {@link #acquire(File)} must be followed by a {@link #release(RegionFile)}
+ * once the caller is done, region files that are acquired are never closed.
+ * When all region files are in use the cache grows over its limit until they
+ * are released.
+ *
+ * @author Fernando
+ */
+public class RegionFileCache {
+
+    /**
+     * Open region files in access order, guarded by this
+     */
+    private final LinkedHashMap<File, Entry> open = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Maps the region files to their entries, for release(RegionFile)
+     */
+    private final Map<RegionFile, Entry> entries = new HashMap<>();
+    private int maxOpen;
+    private long idleTimeout;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long idleCloses;
+
+    /**
+     * Creates a new RegionFileCache
+     *
+     * @param maxOpen the maximum amount of region files kept open
+     * @param idleTimeout time in milliseconds after which an unused region file
+     * is closed
+     */
+    public RegionFileCache(int maxOpen, long idleTimeout) {
+        this.maxOpen = maxOpen;
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+    }
+
+    /**
+     * Gets an open region file, opens it when needed
+     *
+     * @param path the path of the region file
+     * @return the region file, release it when done
+     * @throws IOException when the region file couldn't be opened
+     */
+    public synchronized RegionFile acquire(File path) throws IOException {
+        Entry entry = open.get(path);
+        if (entry != null) {
+            hits++;
+            entry.references++;
+        } else {
+            misses++;
+            entry = new Entry(path, new RegionFile(path));
+            entry.references++;
+            open.put(path, entry);
+            entries.put(entry.region, entry);
+            evict();
+        }
+        entry.lastUsed = System.nanoTime();
+        return entry.region;
+    }
+
+    /**
+     * Releases a region file acquired with {@link #acquire(File)}
+     *
+     * @param region the region file
+     */
+    public synchronized void release(RegionFile region) {
+        Entry entry = entries.get(region);
+        if (entry == null || entry.references <= 0) {
+            throw new IllegalStateException("Region file released more often than acquired");
+        }
+        entry.references--;
+        entry.lastUsed = System.nanoTime();
+        if (entry.references == 0 && open.size() > maxOpen) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> it = open.values().iterator();
+        while (open.size() > maxOpen && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.references == 0) {
+                it.remove();
+                close(entry);
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Closes the region files that weren't used during the idle timeout
+     */
+    public void closeIdle() {
+        long now = System.nanoTime();
+        List<Entry> closed = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> it = open.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.references == 0 && now - entry.lastUsed >= idleTimeout) {
+                    it.remove();
+                    entries.remove(entry.region);
+                    closed.add(entry);
+                    idleCloses++;
+                }
+            }
+        }
+        for (Entry entry : closed) {
+            try {
+                entry.region.close();
+            } catch (IOException ex) {
+                EnderLogger.warn("Error while closing region file " + entry.path);
+                EnderLogger.exception(ex);
+            }
+        }
+    }
+
+    /**
+     * Closes all region files, should only be called when nothing uses them
+     * anymore
+     */
+    public synchronized void closeAll() {
+        for (Entry entry : open.values()) {
+            if (entry.references != 0) {
+                EnderLogger.warn("Closing region file " + entry.path + " while it is still used");
+            }
+            close(entry);
+        }
+        open.clear();
+    }
+
+    private void close(Entry entry) {
+        entries.remove(entry.region);
+        try {
+            entry.region.close();
+        } catch (IOException ex) {
+            EnderLogger.warn("Error while closing region file " + entry.path);
+            EnderLogger.exception(ex);
+        }
+    }
+
+    public synchronized void setMaxOpen(int maxOpen) {
+        this.maxOpen = maxOpen;
+        evict();
+    }
+
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+    }
+
+    public synchronized int getOpenCount() {
+        return open.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the amount of region files closed because the limit was reached
+     *
+     * @return the amount of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getIdleCloses() {
+        return idleCloses;
+    }
+
+    private static class Entry {
+
+        private final File path;
+        private final RegionFile region;
+        private int references;
+        private long lastUsed;
+
+        public Entry(File path, RegionFile region) {
+            this.path = path;
+            this.region = region;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.enderstone.server.util.NettyThreadFactory;
+
+/**
+ * Runs CPU or IO heavy work outside the main thread. The queue is bounded, when
+ * it is full new work is rejected and its future fails directly instead of
+ * letting the queue grow without limit.
+ *
+ * Every task has a name, the time tasks wait inside the queue and the time
+ * they run is kept per name.
+ *
+ * @author Fernando
+ */
+public class AsyncExecutor implements Executor {
+
+	private final ThreadPoolExecutor executor;
+	private final Executor mainThread;
+	private final ConcurrentMap<String, TaskTimings> timings = new ConcurrentHashMap<>();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Creates a new AsyncExecutor
+	 *
+	 * @param threads the amount of worker threads
+	 * @param queueSize the maximum amount of tasks waiting for a worker
+	 * @param mainThread executor that runs tasks on the main thread, used for
+	 * the main thread callbacks
+	 */
+	public AsyncExecutor(int threads, int queueSize, Executor mainThread) {
+		this("Async workers", "async", threads, queueSize, mainThread);
+	}
+
+	/**
+	 * Creates a new AsyncExecutor with its own named thread group
+	 *
+	 * @param groupName the name of the thread group of the workers
+	 * @param threadName the name prefix of the worker threads
+	 * @param threads the amount of worker threads
+	 * @param queueSize the maximum amount of tasks waiting for a worker
+	 * @param mainThread executor that runs tasks on the main thread, used for
+	 * the main thread callbacks
+	 */
+	public AsyncExecutor(String groupName, String threadName, int threads, int queueSize, Executor mainThread) {
+		ThreadGroup group = new ThreadGroup(Thread.currentThread().getThreadGroup(), groupName);
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new NettyThreadFactory(group, threadName));
+		this.executor.allowCoreThreadTimeOut(true);
+		this.mainThread = mainThread;
+	}
+
+	/**
+	 * Runs work on a worker thread
+	 *
+	 * @param <T> the type of the result
+	 * @param name the name the timings of this work are stored under
+	 * @param work the work
+	 * @return the future that completes with the result of the work
+	 */
+	public <T> ServerFuture<T> submit(final String name, final Callable<T> work) {
+		final ServerFuture<T> future = new ServerFuture<>(mainThread);
+		final TaskTimings timing = getTimings(name);
+		final long queued = System.nanoTime();
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					if (future.isDone()) {
+						return; // cancelled while waiting
+					}
+					long start = System.nanoTime();
+					try {
+						future.complete(work.call());
+					} catch (Throwable t) {
+						timing.failed.incrementAndGet();
+						future.fail(t);
+					} finally {
+						timing.record(start - queued, System.nanoTime() - start);
+					}
+				}
+
+				@Override
+				public String toString() {
+					return name;
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			rejected.incrementAndGet();
+			future.fail(ex);
+		}
+		return future;
+	}
+
+	/**
+	 * Runs work on a worker thread
+	 *
+	 * @param name the name the timings of this work are stored under
+	 * @param work the work
+	 * @return the future that completes when the work is done
+	 */
+	public ServerFuture<Void> submit(String name, final Runnable work) {
+		return submit(name, new Callable<Void>() {
+
+			@Override
+			public Void call() {
+				work.run();
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		submit(command.getClass().getName(), command);
+	}
+
+	/**
+	 * Creates a future that isn't backed by any work, so it can be completed
+	 * manually
+	 *
+	 * @param <T> the type of the result
+	 * @return the new future
+	 */
+	public <T> ServerFuture<T> newFuture() {
+		return new ServerFuture<>(mainThread);
+	}
+
+	private TaskTimings getTimings(String name) {
+		TaskTimings timing = timings.get(name);
+		if (timing == null) {
+			TaskTimings created = new TaskTimings(name);
+			timing = timings.putIfAbsent(name, created);
+			if (timing == null)
+				timing = created;
+		}
+		return timing;
+	}
+
+	/**
+	 * Gets the timings of all tasks that ran, sorted by total run time
+	 *
+	 * @return the timings
+	 */
+	public List<TaskTimings> getTimings() {
+		List<TaskTimings> list = new ArrayList<>(timings.values());
+		Collections.sort(list, new Comparator<TaskTimings>() {
+
+			@Override
+			public int compare(TaskTimings o1, TaskTimings o2) {
+				return Long.compare(o2.getTotalRunTime(), o1.getTotalRunTime());
+			}
+		});
+		return list;
+	}
+
+	public int getQueueSize() {
+		return executor.getQueue().size();
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Changes the amount of worker threads
+	 *
+	 * @param threads the new amount of threads
+	 */
+	public void setThreads(int threads) {
+		if (threads > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		} else {
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	public static class TaskTimings {
+
+		private final String name;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong totalWaitTime = new AtomicLong();
+		private final AtomicLong totalRunTime = new AtomicLong();
+		private final AtomicLong maxRunTime = new AtomicLong();
+
+		private TaskTimings(String name) {
+			this.name = name;
+		}
+
+		private void record(long waitTime, long runTime) {
+			count.incrementAndGet();
+			totalWaitTime.addAndGet(waitTime);
+			totalRunTime.addAndGet(runTime);
+			long max;
+			while ((max = maxRunTime.get()) < runTime && !maxRunTime.compareAndSet(max, runTime)) {
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getFailedCount() {
+			return failed.get();
+		}
+
+		/**
+		 * @return the total time tasks waited inside the queue, in nanoseconds
+		 */
+		public long getTotalWaitTime() {
+			return totalWaitTime.get();
+		}
+
+		/**
+		 * @return the total time tasks ran, in nanoseconds
+		 */
+		public long getTotalRunTime() {
+			return totalRunTime.get();
+		}
+
+		/**
+		 * @return the longest time a task ran, in nanoseconds
+		 */
+		public long getMaxRunTime() {
+			return maxRunTime.get();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.scheduler;
+
+/**
+ * Gets called when a {@link ServerFuture} completes
+ *
+ * @author Fernando
+ * @param <T> the type of the result
+ */
+public interface FutureCallback<T> {
+
+	/**
+	 * Called when the work completed normally
+	 *
+	 * @param result the result of the work
+	 */
+	public void onSuccess(T result);
+
+	/**
+	 * Called when the work threw an exception, or could not be started
+	 *
+	 * @param cause the exception
+	 */
+	public void onFailure(Throwable cause);
+}
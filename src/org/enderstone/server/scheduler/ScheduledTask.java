@@ -0,0 +1,82 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.scheduler;
+
+/**
+ * A task scheduled at the {@link Scheduler}
+ *
+ * @author Fernando
+ */
+public class ScheduledTask {
+
+	final Scheduler scheduler;
+	final Runnable task;
+	final long delay;
+	final long period;
+	final boolean async;
+	private volatile boolean cancelled = false;
+	/**
+	 * The tick this task should run next, only used by the scheduler thread
+	 */
+	long targetTick;
+	/**
+	 * Links of the wheel slot this task is in, only used by the scheduler
+	 * thread
+	 */
+	ScheduledTask previous;
+	ScheduledTask next;
+	int slot = -1;
+
+	ScheduledTask(Scheduler scheduler, Runnable task, long delay, long period, boolean async) {
+		this.scheduler = scheduler;
+		this.task = task;
+		this.delay = delay;
+		this.period = period;
+		this.async = async;
+	}
+
+	/**
+	 * Cancels this task, a task that is already running will not be
+	 * interrupted
+	 */
+	public void cancel() {
+		this.cancelled = true;
+		scheduler.cancelled(this);
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public boolean isRepeating() {
+		return period > 0;
+	}
+
+	public boolean isAsync() {
+		return async;
+	}
+
+	public long getPeriod() {
+		return period;
+	}
+
+	@Override
+	public String toString() {
+		return "ScheduledTask{" + "task=" + task + ", period=" + period + ", async=" + async + ", cancelled=" + cancelled + '}';
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.scheduler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import org.enderstone.server.EnderLogger;
+
+/**
+ * Runs delayed and repeating tasks, delays are in server ticks. The tasks are
+ * stored in a hashed timing wheel: every slot of the wheel is a linked list of
+ * the tasks that fall in that slot, so scheduling and cancelling are O(1) and
+ * every tick only has to look at one slot.
+ *
+ * Tasks may be scheduled from any thread, tasks scheduled from other threads
+ * than the ticking thread are added to the wheel at the start of the next
+ * tick.
+ *
+ * @author Fernando
+ */
+public class Scheduler {
+
+	/**
+	 * Amount of slots in the wheel, must be a power of 2
+	 */
+	private static final int WHEEL_SIZE = 512;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	private final ScheduledTask[] wheel = new ScheduledTask[WHEEL_SIZE];
+	private final Queue<ScheduledTask> incoming = new ConcurrentLinkedQueue<>();
+	private final Executor asyncExecutor;
+	private volatile Thread tickThread;
+	private long currentTick = 0;
+	private int size = 0;
+	private boolean ticking = false;
+
+	/**
+	 * Creates a new Scheduler
+	 *
+	 * @param asyncExecutor the executor that runs the async tasks
+	 */
+	public Scheduler(Executor asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+	}
+
+	/**
+	 * Runs a task on the main thread after a delay
+	 *
+	 * @param task the task
+	 * @param delay the delay in ticks, 0 or 1 for the next tick
+	 * @return the scheduled task
+	 */
+	public ScheduledTask runTaskLater(Runnable task, long delay) {
+		return schedule(task, delay, 0, false);
+	}
+
+	/**
+	 * Runs a task on the main thread every period ticks
+	 *
+	 * @param task the task
+	 * @param delay the delay in ticks before the first run
+	 * @param period the ticks between the runs
+	 * @return the scheduled task
+	 */
+	public ScheduledTask runTaskTimer(Runnable task, long delay, long period) {
+		if (period < 1)
+			throw new IllegalArgumentException("Period must be at least 1 tick");
+		return schedule(task, delay, period, false);
+	}
+
+	/**
+	 * Runs a task on a separate thread after a delay
+	 *
+	 * @param task the task
+	 * @param delay the delay in ticks, 0 or 1 for the next tick
+	 * @return the scheduled task
+	 */
+	public ScheduledTask runTaskLaterAsync(Runnable task, long delay) {
+		return schedule(task, delay, 0, true);
+	}
+
+	/**
+	 * Runs a task on a separate thread every period ticks
+	 *
+	 * @param task the task
+	 * @param delay the delay in ticks before the first run
+	 * @param period the ticks between the runs
+	 * @return the scheduled task
+	 */
+	public ScheduledTask runTaskTimerAsync(Runnable task, long delay, long period) {
+		if (period < 1)
+			throw new IllegalArgumentException("Period must be at least 1 tick");
+		return schedule(task, delay, period, true);
+	}
+
+	private ScheduledTask schedule(Runnable run, long delay, long period, boolean async) {
+		ScheduledTask task = new ScheduledTask(this, run, Math.max(1, delay), period, async);
+		if (Thread.currentThread() == tickThread) {
+			insert(task, currentTick + task.delay);
+		} else {
+			incoming.add(task);
+		}
+		return task;
+	}
+
+	private void insert(ScheduledTask task, long targetTick) {
+		int slot = (int) (targetTick & WHEEL_MASK);
+		task.targetTick = targetTick;
+		task.slot = slot;
+		task.previous = null;
+		task.next = wheel[slot];
+		if (task.next != null)
+			task.next.previous = task;
+		wheel[slot] = task;
+		size++;
+	}
+
+	private void unlink(ScheduledTask task) {
+		if (task.previous != null)
+			task.previous.next = task.next;
+		else
+			wheel[task.slot] = task.next;
+		if (task.next != null)
+			task.next.previous = task.previous;
+		task.previous = null;
+		task.next = null;
+		task.slot = -1;
+		size--;
+	}
+
+	void cancelled(ScheduledTask task) {
+		// other threads, and tasks running inside tick(), leave the task in the wheel, it gets removed when its slot comes by
+		if (Thread.currentThread() == tickThread && !ticking && task.slot != -1) {
+			unlink(task);
+		}
+	}
+
+	/**
+	 * Advances the wheel with 1 tick and runs the tasks that are due, must
+	 * always be called from the same thread
+	 */
+	public void tick() {
+		tickThread = Thread.currentThread();
+		ScheduledTask task;
+		while ((task = incoming.poll()) != null) {
+			if (!task.isCancelled())
+				insert(task, currentTick + task.delay);
+		}
+		currentTick++;
+		ticking = true;
+		try {
+			task = wheel[(int) (currentTick & WHEEL_MASK)];
+			while (task != null) {
+				ScheduledTask next = task.next;
+				if (task.isCancelled()) {
+					unlink(task);
+				} else if (task.targetTick <= currentTick) {
+					unlink(task);
+					run(task);
+					if (task.isRepeating() && !task.isCancelled()) {
+						insert(task, currentTick + task.period);
+					}
+				}
+				task = next;
+			}
+		} finally {
+			ticking = false;
+		}
+	}
+
+	private void run(final ScheduledTask task) {
+		if (task.async) {
+			asyncExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					runSafely(task);
+				}
+			});
+		} else {
+			runSafely(task);
+		}
+	}
+
+	private static void runSafely(ScheduledTask task) {
+		try {
+			task.task.run();
+		} catch (Exception e) {
+			EnderLogger.warn("Problem while executing scheduled task " + task.task.toString());
+			EnderLogger.exception(e);
+		}
+	}
+
+	/**
+	 * Gets the amount of tasks inside the wheel, excluding the tasks that are
+	 * scheduled from other threads since the last tick
+	 *
+	 * @return the amount of tasks
+	 */
+	public int getPendingTasks() {
+		return size;
+	}
+
+	public long getCurrentTick() {
+		return currentTick;
+	}
+}
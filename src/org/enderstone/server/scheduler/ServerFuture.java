@@ -0,0 +1,242 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.enderstone.server.EnderLogger;
+
+/**
+ * The result of work that runs on another thread. Callbacks can be added
+ * using {@link #addMainThreadCallback(FutureCallback)}, these are always
+ * called on the main thread, so the callback can safely touch the worlds and
+ * players.
+ *
+ * @author Fernando
+ * @param <T> the type of the result
+ */
+public class ServerFuture<T> implements Future<T> {
+
+	private final Executor mainThread;
+	private final List<Runnable> listeners = new ArrayList<>(2);
+	private boolean done = false;
+	private boolean cancelled = false;
+	private T result;
+	private Throwable cause;
+
+	/**
+	 * Creates a new ServerFuture
+	 *
+	 * @param mainThread executor that runs tasks on the main thread
+	 */
+	public ServerFuture(Executor mainThread) {
+		this.mainThread = mainThread;
+	}
+
+	/**
+	 * Completes this future with a result
+	 *
+	 * @param result the result
+	 * @return false if this future was already completed
+	 */
+	public boolean complete(T result) {
+		synchronized (this) {
+			if (done)
+				return false;
+			this.result = result;
+			this.done = true;
+			this.notifyAll();
+		}
+		fireListeners();
+		return true;
+	}
+
+	/**
+	 * Completes this future with an exception
+	 *
+	 * @param cause the exception
+	 * @return false if this future was already completed
+	 */
+	public boolean fail(Throwable cause) {
+		synchronized (this) {
+			if (done)
+				return false;
+			this.cause = cause;
+			this.done = true;
+			this.notifyAll();
+		}
+		fireListeners();
+		return true;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (fail(new CancellationException())) {
+			synchronized (this) {
+				this.cancelled = true;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private void fireListeners() {
+		List<Runnable> copy;
+		synchronized (this) {
+			copy = new ArrayList<>(listeners);
+			listeners.clear();
+		}
+		for (Runnable listener : copy) {
+			listener.run();
+		}
+	}
+
+	private void addListener(Runnable listener) {
+		synchronized (this) {
+			if (!done) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * Adds a callback that is called on the thread that completes this
+	 * future, or directly if this future is already completed. The callback
+	 * should be short and must not touch the worlds.
+	 *
+	 * @param callback the callback
+	 * @return this future
+	 */
+	public ServerFuture<T> addCallback(final FutureCallback<? super T> callback) {
+		addListener(new Runnable() {
+
+			@Override
+			public void run() {
+				runCallback(callback);
+			}
+		});
+		return this;
+	}
+
+	/**
+	 * Adds a callback that is called on the main thread once this future is
+	 * completed
+	 *
+	 * @param callback the callback
+	 * @return this future
+	 */
+	public ServerFuture<T> addMainThreadCallback(final FutureCallback<? super T> callback) {
+		addListener(new Runnable() {
+
+			@Override
+			public void run() {
+				mainThread.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						ServerFuture.this.runCallback(callback);
+					}
+				});
+			}
+		});
+		return this;
+	}
+
+	private void runCallback(FutureCallback<? super T> callback) {
+		T r;
+		Throwable c;
+		synchronized (this) {
+			r = this.result;
+			c = this.cause;
+		}
+		try {
+			if (c == null)
+				callback.onSuccess(r);
+			else
+				callback.onFailure(c);
+		} catch (Exception e) {
+			EnderLogger.warn("Problem while executing future callback " + callback.toString());
+			EnderLogger.exception(e);
+		}
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Checks if this future completed with a result
+	 *
+	 * @return true if the work completed normally
+	 */
+	public synchronized boolean isSuccess() {
+		return done && cause == null;
+	}
+
+	/**
+	 * Gets the exception this future failed with
+	 *
+	 * @return the exception, or null if not failed (yet)
+	 */
+	public synchronized Throwable getCause() {
+		return cause;
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			this.wait();
+		}
+		return getResult();
+	}
+
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		long remaining;
+		while (!done) {
+			remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return getResult();
+	}
+
+	private T getResult() throws ExecutionException {
+		if (cause instanceof CancellationException)
+			throw (CancellationException) cause;
+		if (cause != null)
+			throw new ExecutionException(cause);
+		return result;
+	}
+}
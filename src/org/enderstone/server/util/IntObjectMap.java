@@ -0,0 +1,171 @@
+/*
+ * Enderstone
+ * Copyright (C) 2014 Sander Gielisse and Fernando van Loenhout
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.enderstone.server.util;
+
+import java.util.Arrays;
+
+/**
+ * A map from int keys to objects, the keys are stored in a primitive array
+ * using open addressing, so lookups don't box the key or follow linked
+ * entries. Null values are not supported.
+ *
+ * @author Fernando
+ * @param <V> the type of the values
+ */
+public class IntObjectMap<V> {
+
+	private static final int DEFAULT_CAPACITY = 64;
+	private static final float LOAD_FACTOR = 0.5f;
+	private int[] keys;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+	private int resizeAt;
+
+	public IntObjectMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new IntObjectMap
+	 *
+	 * @param expectedSize the amount of entries expected, the map grows when
+	 * needed
+	 */
+	public IntObjectMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new int[capacity];
+		this.values = new Object[capacity];
+		this.mask = capacity - 1;
+		this.resizeAt = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int indexOf(int key) {
+		int index = hash(key) & mask;
+		while (values[index] != null) {
+			if (keys[index] == key)
+				return index;
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int index = indexOf(key);
+		return index < 0 ? null : (V) values[index];
+	}
+
+	public boolean containsKey(int key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Maps a key to a value
+	 *
+	 * @param key the key
+	 * @param value the value, may not be null
+	 * @return the previous value, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null)
+			throw new NullPointerException("value");
+		int index = hash(key) & mask;
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				V old = (V) values[index];
+				values[index] = value;
+				return old;
+			}
+			index = (index + 1) & mask;
+		}
+		keys[index] = key;
+		values[index] = value;
+		if (++size > resizeAt)
+			rehash(keys.length << 1);
+		return null;
+	}
+
+	/**
+	 * Removes the mapping of a key
+	 *
+	 * @param key the key
+	 * @return the removed value, or null if the key wasn't mapped
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int index = indexOf(key);
+		if (index < 0)
+			return null;
+		V old = (V) values[index];
+		values[index] = null;
+		size--;
+		// shift the following entries back, so lookups don't stop at the hole
+		int hole = index;
+		index = (index + 1) & mask;
+		while (values[index] != null) {
+			int wanted = hash(keys[index]) & mask;
+			if (((index - wanted) & mask) >= ((index - hole) & mask)) {
+				keys[hole] = keys[index];
+				values[hole] = values[index];
+				values[index] = null;
+				hole = index;
+			}
+			index = (index + 1) & mask;
+		}
+		return old;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = this.keys;
+		Object[] oldValues = this.values;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int index = hash(oldKeys[i]) & mask;
+				while (values[index] != null)
+					index = (index + 1) & mask;
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+}
@@ -32,6 +32,13 @@ public class UUIDFactory {
 	private final Map<String, UUID> uuidCache = new HashMap<>();
 	private final Map<UUID, PlayerTextureStore> textureCache = new HashMap<>();
 
+	/**
+	 * Looks up the uuid of a player, this blocks while asking the Mojang
+	 * servers, call this from the async executor
+	 *
+	 * @param name the name of the player
+	 * @return the uuid, or null if not found
+	 */
 	public UUID getPlayerUUIDAsync(String name) {
 		synchronized (uuidCache) {
 			if (uuidCache.containsKey(name)) {
@@ -57,6 +64,13 @@ public class UUIDFactory {
 		}
 	}
 
+	/**
+	 * Looks up the skin of a player, this blocks while asking the Mojang
+	 * servers, call this from the async executor
+	 *
+	 * @param uuid the uuid of the player
+	 * @return the skin, or the default skin if not found
+	 */
 	public PlayerTextureStore getTextureDataAsync(UUID uuid) {
 		synchronized (textureCache) {
 			if (textureCache.containsKey(uuid)) {